@@ -9,6 +9,7 @@ public class CircularBufferInputStream extends FilterInputStream implements Clos
 	
 	protected final CircularByteBuffer buffer;
 	protected final int bufferSize;
+	protected boolean endOfStream;
 	
 	public CircularBufferInputStream(InputStream in) {
 		this(in, CircularByteBuffer.DEFAULT_BUFFER_SIZE);
@@ -20,31 +21,65 @@ public class CircularBufferInputStream extends FilterInputStream implements Clos
 		this.buffer = new CircularByteBuffer(bufferSize);
 	}
 	
-	protected void fillBuffer() throws IOException {
+	protected int fillBuffer() throws IOException {
+		// only block on the underlying stream when there is nothing buffered to hand out
+		return fillBuffer(!buffer.hasBytes());
+	}
+	
+	/**
+	 * Reads from the underlying stream straight into the ring's free space.
+	 * A blocking fill waits for at least one byte; a non-blocking fill only takes
+	 * what the stream reports as available.
+	 * 
+	 * A read deadline is the underlying stream's own timeout, for a socket its
+	 * SO_TIMEOUT. When it expires the {@link java.net.SocketTimeoutException}
+	 * propagates and the buffered bytes are left untouched, so the caller can retry.
+	 * 
+	 * @return the number of bytes added, 0 if none are available yet or the buffer is full,
+	 *         or -1 at end of stream
+	 */
+	protected int fillBuffer(boolean block) throws IOException {
 		if (in == null) {
 			throw new IOException("Stream is closed");
 		}
+		if (endOfStream) {
+			return -1;
+		}
 		
 		int space = buffer.getSpace();
-		if (space > 0 && in.available() > 0) {
-			int bytesToRead = Math.min(space, in.available());
-			byte[] tempBuffer = new byte[bytesToRead];
-			int bytesRead = in.read(tempBuffer, 0, bytesToRead);
-			if (bytesRead > 0) {
-				buffer.add(tempBuffer, 0, bytesRead);
-			}
+		if (space <= 0) {
+			return 0;
 		}
+		
+		int bytesToRead = block ? space : Math.min(space, in.available());
+		if (bytesToRead <= 0) {
+			return 0;
+		}
+		
+		int bytesRead = buffer.readFrom(in, bytesToRead);
+		if (bytesRead < 0) {
+			endOfStream = true;
+		}
+		return bytesRead;
 	}
 	
 	protected int haveBytes(int count) throws IOException{
-		if (buffer.getCurrentNumberOfBytes() >= count) {
-			return buffer.getCurrentNumberOfBytes();
+		while (buffer.getCurrentNumberOfBytes() < count && buffer.hasSpace()) {
+			if (fillBuffer(true) < 0) {
+				break;
+			}
 		}
-		
-		fillBuffer();
 		return buffer.getCurrentNumberOfBytes();
 	}
 	
+	/**
+	 * @return true once the underlying stream has reported end of stream;
+	 *         buffered bytes may still be left to read
+	 */
+	public boolean isEndOfStream() {
+		return endOfStream;
+	}
+	
 	@Override
 	public int available() throws IOException {
 		if (in == null) {
@@ -75,14 +110,8 @@ public class CircularBufferInputStream extends FilterInputStream implements Clos
 			return buffer.read() & 0xFF;
 		}
 		
-		// If no data available in buffer and underlying stream, return -1
-		if (in.available() == 0) {
-			return -1;
-		}
-		
-		// Try one more time with blocking read for single byte
-		int b = in.read();
-		return b;
+		// fillBuffer blocked until data arrived, so an empty buffer here means end of stream
+		return -1;
 	}
 	
 	@Override
@@ -102,34 +131,78 @@ public class CircularBufferInputStream extends FilterInputStream implements Clos
 		
 		int totalBytesRead = 0;
 		
-		// First, try to read from buffer
-		while (totalBytesRead < length && buffer.hasBytes()) {
-			int bytesToRead = Math.min(length - totalBytesRead, buffer.getCurrentNumberOfBytes());
-			buffer.read(targetBuffer, offset + totalBytesRead, bytesToRead);
-			totalBytesRead += bytesToRead;
+		while (totalBytesRead < length) {
+			if (buffer.hasBytes()) {
+				int bytesToRead = Math.min(length - totalBytesRead, buffer.getCurrentNumberOfBytes());
+				buffer.read(targetBuffer, offset + totalBytesRead, bytesToRead);
+				totalBytesRead += bytesToRead;
+				continue;
+			}
+			
+			// block for the first bytes only, after that take what the stream already has
+			boolean block = totalBytesRead == 0;
+			int remaining = length - totalBytesRead;
+			int bytesRead;
+			if (remaining >= bufferSize) {
+				// staging a read this large in the ring would only add a copy
+				bytesRead = readDirect(targetBuffer, offset + totalBytesRead, remaining, block);
+				if (bytesRead > 0) {
+					totalBytesRead += bytesRead;
+				}
+			} else {
+				bytesRead = fillBuffer(block);
+			}
+			if (bytesRead <= 0) {
+				break;
+			}
 		}
 		
-		// If we still need more bytes and some were already read, return what we have
-		if (totalBytesRead > 0) {
-			return totalBytesRead;
+		// a blocking read only comes back empty at end of stream
+		return totalBytesRead > 0 ? totalBytesRead : -1;
+	}
+	
+	/**
+	 * Reads bytes up to, but not including, the next {@code delimiter}, refilling
+	 * the buffer once if it is empty. The delimiter itself is left in the stream.
+	 * @param block whether to wait for data when nothing is buffered or available
+	 * @return the number of bytes read, 0 if the next byte is the delimiter or no data
+	 *         is available without blocking, or -1 at end of stream
+	 */
+	public int readUntil(int delimiter, byte[] targetBuffer, int offset, int length, boolean block) throws IOException {
+		if (in == null) {
+			throw new IOException("Stream is closed");
 		}
-		
-		// Try to fill buffer once more
-		fillBuffer();
-		
-		// Read any available bytes from buffer
-		if (buffer.hasBytes()) {
-			int bytesToRead = Math.min(length, buffer.getCurrentNumberOfBytes());
-			buffer.read(targetBuffer, offset, bytesToRead);
-			return bytesToRead;
+		if (targetBuffer == null) {
+			throw new NullPointerException("Target buffer cannot be null");
 		}
-		
-		// If still no data in buffer, check if stream has data available
-		if (in.available() == 0) {
-			return -1;  // No data available
+		if (offset < 0 || length < 0 || offset + length > targetBuffer.length) {
+			throw new IndexOutOfBoundsException("Invalid offset or length");
+		}
+		if (length == 0) {
+			return 0;
 		}
 		
-		// Do a single blocking read as last resort
-		return in.read(targetBuffer, offset, length);
+		if (!buffer.hasBytes()) {
+			int bytesRead = fillBuffer(block);
+			if (bytesRead <= 0) {
+				return bytesRead;
+			}
+		}
+		return buffer.readUntil((byte) delimiter, targetBuffer, offset, length);
+	}
+	
+	private int readDirect(byte[] targetBuffer, int offset, int length, boolean block) throws IOException {
+		if (endOfStream) {
+			return -1;
+		}
+		int bytesToRead = block ? length : Math.min(length, in.available());
+		if (bytesToRead <= 0) {
+			return 0;
+		}
+		int bytesRead = in.read(targetBuffer, offset, bytesToRead);
+		if (bytesRead < 0) {
+			endOfStream = true;
+		}
+		return bytesRead;
 	}
 }
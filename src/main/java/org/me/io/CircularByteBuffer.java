@@ -1,9 +1,18 @@
 package org.me.io;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 public class CircularByteBuffer {
 	public static final int DEFAULT_BUFFER_SIZE = 8192;
 	
+	private static final int MAX_BUFFER_SIZE = 1 << 30;
+	
+	// storage is rounded up to a power of two so indexes wrap with a mask,
+	// capacity keeps the size the caller asked for
 	private byte[] buffer;
+	private int mask;
+	private int capacity;
 	private int readIndex;
 	private int writeIndex;
 	private int currentNumberOfBytes;
@@ -16,7 +25,13 @@ public class CircularByteBuffer {
 		if (bufferSize <= 0) {
 			throw new IllegalArgumentException("Buffer size must be positive");
 		}
-		this.buffer = new byte[bufferSize];
+		if (bufferSize > MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Buffer size must not exceed " + MAX_BUFFER_SIZE);
+		}
+		int storageSize = bufferSize == 1 ? 1 : Integer.highestOneBit(bufferSize - 1) << 1;
+		this.buffer = new byte[storageSize];
+		this.mask = storageSize - 1;
+		this.capacity = bufferSize;
 		this.readIndex = 0;
 		this.writeIndex = 0;
 		this.currentNumberOfBytes = 0;
@@ -28,7 +43,7 @@ public class CircularByteBuffer {
 			throw new IllegalStateException("Buffer is full");
 		}
 		buffer[writeIndex] = b;
-		writeIndex = (writeIndex + 1) % buffer.length;
+		writeIndex = (writeIndex + 1) & mask;
 		currentNumberOfBytes++;
 	}
 	
@@ -47,9 +62,38 @@ public class CircularByteBuffer {
 			throw new IllegalStateException("Not enough space in buffer");
 		}
 		
-		for (int i = 0; i < length; i++) {
-			add(sourceBuffer[offset + i]);
+		// copy up to the end of the storage, then the remainder from index 0
+		int firstSegment = Math.min(length, buffer.length - writeIndex);
+		System.arraycopy(sourceBuffer, offset, buffer, writeIndex, firstSegment);
+		System.arraycopy(sourceBuffer, offset + firstSegment, buffer, 0, length - firstSegment);
+		writeIndex = (writeIndex + length) & mask;
+		currentNumberOfBytes += length;
+	}
+	
+	/**
+	 * Reads from {@code in} straight into the free space after the write index,
+	 * up to the end of the storage, so no intermediate array is needed.
+	 * @return the number of bytes added, 0 when there is no room, or -1 at end of stream
+	 */
+	public int readFrom(InputStream in, int maxBytes) throws IOException {
+		if (in == null) {
+			throw new NullPointerException("Input stream cannot be null");
+		}
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Invalid length");
+		}
+		
+		int length = Math.min(Math.min(maxBytes, getSpace()), buffer.length - writeIndex);
+		if (length == 0) {
+			return 0;
+		}
+		
+		int bytesRead = in.read(buffer, writeIndex, length);
+		if (bytesRead > 0) {
+			writeIndex = (writeIndex + bytesRead) & mask;
+			currentNumberOfBytes += bytesRead;
 		}
+		return bytesRead;
 	}
 	
 	public void clear() {
@@ -58,12 +102,16 @@ public class CircularByteBuffer {
 		currentNumberOfBytes = 0;
 	}
 	
+	public int getCapacity() {
+		return capacity;
+	}
+	
 	public int getCurrentNumberOfBytes() {
 		return currentNumberOfBytes;
 	}
 	
 	public int getSpace() {
-		return buffer.length - currentNumberOfBytes;
+		return capacity - currentNumberOfBytes;
 	}
 	
 	public boolean hasBytes() {
@@ -71,7 +119,7 @@ public class CircularByteBuffer {
 	}
 	
 	public boolean hasSpace() {
-		return currentNumberOfBytes < buffer.length;
+		return currentNumberOfBytes < capacity;
 	}
 	
 	public boolean hasSpace(int count) {
@@ -93,11 +141,7 @@ public class CircularByteBuffer {
 			return false;
 		}
 		
-		int tempReadIndex = readIndex;
-		for (int i = 0; i < length; i++) {
-			targetBuffer[offset + i] = buffer[tempReadIndex];
-			tempReadIndex = (tempReadIndex + 1) % buffer.length;
-		}
+		copyOut(targetBuffer, offset, length);
 		return true;
 	}
 	
@@ -106,7 +150,7 @@ public class CircularByteBuffer {
 			throw new IllegalStateException("Buffer is empty");
 		}
 		byte result = buffer[readIndex];
-		readIndex = (readIndex + 1) % buffer.length;
+		readIndex = (readIndex + 1) & mask;
 		currentNumberOfBytes--;
 		return result;
 	}
@@ -126,8 +170,54 @@ public class CircularByteBuffer {
 			throw new IllegalStateException("Not enough bytes in buffer");
 		}
 		
-		for (int i = 0; i < length; i++) {
-			targetBuffer[offset + i] = read();
+		copyOut(targetBuffer, offset, length);
+		readIndex = (readIndex + length) & mask;
+		currentNumberOfBytes -= length;
+	}
+	
+	/**
+	 * Reads bytes up to, but not including, the next {@code delimiter}.
+	 * Each contiguous segment is scanned and then copied in one go.
+	 * @return the number of bytes read, 0 if the next byte is the delimiter or the buffer is empty
+	 */
+	public int readUntil(
+		byte delimiter, 
+		byte[] targetBuffer, 
+		int offset, 
+		int length
+	) throws IllegalArgumentException, NullPointerException {
+		if (targetBuffer == null) {
+			throw new NullPointerException("Target buffer cannot be null");
+		}
+		if (offset < 0 || length < 0 || offset + length > targetBuffer.length) {
+			throw new IllegalArgumentException("Invalid offset or length");
+		}
+		
+		int limit = Math.min(length, currentNumberOfBytes);
+		int count = 0;
+		while (count < limit) {
+			int segmentEnd = Math.min(readIndex + (limit - count), buffer.length);
+			int index = readIndex;
+			while (index < segmentEnd && buffer[index] != delimiter) {
+				index++;
+			}
+			
+			int run = index - readIndex;
+			System.arraycopy(buffer, readIndex, targetBuffer, offset + count, run);
+			count += run;
+			readIndex = (readIndex + run) & mask;
+			currentNumberOfBytes -= run;
+			
+			if (index < segmentEnd) {
+				break;
+			}
 		}
+		return count;
+	}
+	
+	private void copyOut(byte[] targetBuffer, int offset, int length) {
+		int firstSegment = Math.min(length, buffer.length - readIndex);
+		System.arraycopy(buffer, readIndex, targetBuffer, offset, firstSegment);
+		System.arraycopy(buffer, 0, targetBuffer, offset + firstSegment, length - firstSegment);
 	}
 }
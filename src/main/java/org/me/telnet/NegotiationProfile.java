@@ -0,0 +1,60 @@
+package org.me.telnet;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The options a host agreed to on its last connection. With profiles enabled on a
+ * {@link Telnet}, the next connect to the same host sends the whole set of WILL and DO
+ * requests in its first write, so negotiation takes one round trip instead of one per
+ * option the host asks about.
+ */
+public final class NegotiationProfile {
+    private static final ConcurrentHashMap<String, NegotiationProfile> profiles = new ConcurrentHashMap<>();
+
+    private final BitSet local;
+    private final BitSet remote;
+
+    private NegotiationProfile(BitSet local, BitSet remote) {
+        this.local = local;
+        this.remote = remote;
+    }
+
+    /**
+     * @return the profile recorded for this host, or null if none has been recorded
+     */
+    public static NegotiationProfile get(InetAddress host, int port) {
+        return profiles.get(key(host, port));
+    }
+
+    static void remember(InetAddress host, int port, BitSet local, BitSet remote) {
+        profiles.put(key(host, port), new NegotiationProfile((BitSet) local.clone(), (BitSet) remote.clone()));
+    }
+
+    public static void forget(InetAddress host, int port) {
+        profiles.remove(key(host, port));
+    }
+
+    public static void clear() {
+        profiles.clear();
+    }
+
+    /**
+     * @return true if the host asked for this option to be enabled on our side
+     */
+    public boolean isLocal(int option) {
+        return local.get(option);
+    }
+
+    /**
+     * @return true if the host enabled this option on its side
+     */
+    public boolean isRemote(int option) {
+        return remote.get(option);
+    }
+
+    private static String key(InetAddress host, int port) {
+        return host.getHostAddress() + ":" + port;
+    }
+}
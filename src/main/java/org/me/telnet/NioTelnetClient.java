@@ -0,0 +1,704 @@
+package org.me.telnet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Telnet connection driven by a {@link NioTelnetTransport} selector instead of a thread
+ * blocked in a socket read. Option negotiation goes through the same handlers and
+ * {@code _process*} logic as {@link TelnetClient}; data is framed on IAC EOR and handed
+ * to a {@link TelnetRecordListener}, which suits TN3270 where every host write is a record.
+ * <p>
+ * Writes from any thread are queued and sent by the selector thread, so an idle
+ * connection costs a channel and its buffers but no thread.
+ * <p>
+ * With SSL enabled the connection is wrapped in an {@link SSLEngine} from a shared
+ * {@link SSLContext}, whose session cache lets reconnects to the same host resume
+ * instead of running a full handshake. Handshake failures, certificate and trust
+ * failures included, close the connection. Only with {@link #setPlaintextFallback} on is
+ * a host that answers the ClientHello with something other than TLS, or hangs up before
+ * answering, reconnected in plaintext and remembered in {@link TlsFallback}.
+ */
+public class NioTelnetClient extends Telnet {
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private static final int STATE_DATA = 0;
+    private static final int STATE_IAC = 1;
+    private static final int STATE_OPTION = 2;
+    private static final int STATE_SB = 3;
+    private static final int STATE_SB_IAC = 4;
+    
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TelnetRecordListener listener;
+    private int connectTimeout = 60000;
+    private boolean sslEnabled = true;
+    private boolean plaintextFallback;
+    private SSLContext sslContext;
+
+    private InetSocketAddress address;
+    private boolean tls;
+    private NioTelnetTransport.SelectorLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private CompletableFuture<Void> connectFuture;
+    private volatile boolean connected;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // outbound buffers waiting for the selector thread, and whether a flush is pending
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // TLS state, null while plaintext. netIn collects records read from the channel,
+    // netOut holds wrapped bytes not yet written, both only touched on the selector thread
+    private SSLEngine engine;
+    private boolean handshaking;
+    private boolean tlsAnswered;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+
+    // decoder state, only touched on the selector thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private int state = STATE_DATA;
+    private int command;
+    private byte[] record = new byte[4096];
+    private int recordLength;
+
+    public NioTelnetClient(TelnetRecordListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("Record listener cannot be null");
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * Connects and starts option negotiation, waiting at most the connect timeout for the
+     * TCP connection and, with SSL enabled, the TLS handshake.
+     */
+    public void connect(NioTelnetTransport transport, InetAddress host, int port) throws IOException {
+        CompletableFuture<Void> future = connectAsync(transport, host, port);
+        try {
+            future.get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            disconnect();
+            throw new SocketTimeoutException("Connect to " + host + ":" + port + " timed out");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            disconnect();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+    }
+
+    public void connect(NioTelnetTransport transport, String hostname, int port) throws UnknownHostException, IOException {
+        connect(transport, InetAddress.getByName(hostname), port);
+    }
+
+    /**
+     * Starts connecting without waiting. The future completes once the TCP connection is
+     * up, the TLS handshake or plaintext fallback is done, and the initial option requests
+     * have been queued.
+     */
+    public CompletableFuture<Void> connectAsync(NioTelnetTransport transport, InetAddress host, int port) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Already connected");
+        }
+        loop = transport.nextLoop();
+        connectFuture = new CompletableFuture<>();
+        output = new BufferedOutputStream(new ChannelOutputStream());
+        address = new InetSocketAddress(host, port);
+        _setRemote(host, port);
+        tls = sslEnabled && !(plaintextFallback && TlsFallback.isPlaintext(host, port));
+
+        openChannel();
+        return connectFuture;
+    }
+
+    private void openChannel() throws IOException {
+        channel = SocketChannel.open();
+        boolean immediate;
+        try {
+            channel.configureBlocking(false);
+            // records are small and interactive, don't let Nagle hold them back
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            immediate = channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Runnable register = () -> {
+            try {
+                key = channel.register(loop.selector(), immediate ? 0 : SelectionKey.OP_CONNECT, this);
+                if (immediate) {
+                    finishConnect();
+                }
+            } catch (IOException e) {
+                closed(e);
+            }
+        };
+        if (loop.inLoop()) {
+            register.run();
+        } else {
+            loop.execute(this, register);
+        }
+    }
+
+    void finishConnect() throws IOException {
+        if (!channel.finishConnect()) {
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (tls) {
+            startTls();
+        } else {
+            startTelnet();
+        }
+    }
+
+    private void startTelnet() throws IOException {
+        connected = true;
+        _connectAction_();
+        connectFuture.complete(null);
+    }
+
+    private void startTls() throws IOException {
+        SSLContext context = sslContext;
+        if (context == null) {
+            try {
+                context = SSLContext.getDefault();
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new SSLException("No default SSLContext", e);
+            }
+        }
+        // the peer host and port key the context's session cache, which is what lets a
+        // reconnect resume the previous session
+        engine = context.createSSLEngine(address.getHostString(), address.getPort());
+        engine.setUseClientMode(true);
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        if (readBuffer.capacity() < session.getApplicationBufferSize()) {
+            readBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
+        }
+        handshaking = true;
+        tlsAnswered = false;
+        engine.beginHandshake();
+        handshake();
+    }
+
+    /**
+     * Advances the handshake as far as the buffered input allows. Failures are thrown and
+     * close the connection.
+     */
+    private void handshake() throws IOException {
+        while (handshaking) {
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    if (!drainNetOut()) {
+                        return;
+                    }
+                    netOut.clear();
+                    result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS closed during handshake");
+                    }
+                    if (!drainNetOut()) {
+                        return;
+                    }
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    handshaking = false;
+                    startTelnet();
+                    // application data may have come in with the last handshake records
+                    if (readBuffer.position() > 0) {
+                        decode(readBuffer.array(), readBuffer.position());
+                        readBuffer.clear();
+                    }
+                    unwrapInbound();
+                    return;
+                default:
+                    // NEED_UNWRAP, NEED_UNWRAP_AGAIN
+                    netIn.flip();
+                    try {
+                        result = engine.unwrap(netIn, readBuffer);
+                    } finally {
+                        netIn.compact();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        return;  // wait for the rest of the record
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS closed during handshake");
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The host answered the ClientHello with something that is not TLS, or hung up without
+     * answering. Reconnects in plaintext if allowed, fails the connect otherwise.
+     */
+    private void notTls(String reason) throws IOException {
+        if (!plaintextFallback) {
+            throw new SSLHandshakeException(reason);
+        }
+        fallBackToPlaintext();
+    }
+
+    private void fallBackToPlaintext() throws IOException {
+        TlsFallback.rememberPlaintext(address.getAddress(), address.getPort());
+        key.cancel();
+        channel.close();
+        engine = null;
+        handshaking = false;
+        netIn = null;
+        netOut = null;
+        readBuffer.clear();
+        tls = false;
+        openChannel();
+    }
+
+    /**
+     * Writes pending TLS records.
+     * @return true once all of them are written, false if the channel is full and
+     *         OP_WRITE has been requested
+     */
+    private boolean drainNetOut() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        boolean drained = !netOut.hasRemaining();
+        key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return drained;
+    }
+
+    void readReady() throws IOException {
+        if (!tls) {
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                closed(null);
+                return;
+            }
+            decode(readBuffer.array(), readBuffer.position());
+            readBuffer.clear();
+            return;
+        }
+
+        int count = channel.read(netIn);
+        if (handshaking && !tlsAnswered) {
+            // only the first bytes the host sends decide whether it speaks TLS at all, a
+            // failure once it has answered with a TLS record is a real handshake failure
+            if (netIn.position() > 0) {
+                if (!TlsFallback.isTlsRecord(netIn.get(0))) {
+                    notTls("Host answered the ClientHello with non-TLS data");
+                    return;
+                }
+                tlsAnswered = true;
+            } else if (count < 0) {
+                // hosts without TLS may just hang up on a ClientHello
+                notTls("Host closed the connection before answering the ClientHello");
+                return;
+            }
+        }
+        if (count < 0) {
+            closed(handshaking ? new SSLHandshakeException("Host closed the connection during the TLS handshake") : null);
+            return;
+        }
+        if (handshaking) {
+            handshake();
+        } else {
+            unwrapInbound();
+        }
+    }
+
+    /**
+     * Decrypts every complete TLS record in {@code netIn} and decodes the telnet data.
+     */
+    private void unwrapInbound() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && engine != null) {
+                SSLEngineResult result = engine.unwrap(netIn, readBuffer);
+                if (readBuffer.position() > 0) {
+                    decode(readBuffer.array(), readBuffer.position());
+                    readBuffer.clear();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        return;
+                    case BUFFER_OVERFLOW:
+                        readBuffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                        break;
+                    case CLOSED:
+                        closed(null);
+                        return;
+                    default:
+                        break;
+                }
+                // post-handshake messages, such as a TLS 1.3 key update, may want an answer
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                    || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    answerPostHandshake();
+                }
+            }
+        } finally {
+            if (netIn != null) {
+                netIn.compact();
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks and sends the replies a post-handshake message asks for. Unlike
+     * {@link #handshake()} this never reads and leaves the telnet session alone.
+     * @return true once nothing is left to send, false if the channel is full and the
+     *         rest goes out with the next flush
+     */
+    private boolean answerPostHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (!drainNetOut()) {
+                        return false;
+                    }
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new ClosedChannelException();
+                    }
+                    break;
+                default:
+                    return drainNetOut();
+            }
+        }
+    }
+
+    /**
+     * Decodes one read's worth of input. Negotiation replies to everything in it go out
+     * together as one write.
+     */
+    private void decode(byte[] data, int length) throws IOException {
+        _beginBatch();
+        try {
+            runStateMachine(data, length);
+        } finally {
+            _endBatch();
+        }
+    }
+
+    /**
+     * Runs the telnet state machine over {@code data[0..length)}. Plain data is copied a
+     * run at a time up to the next IAC.
+     */
+    private void runStateMachine(byte[] data, int length) throws IOException {
+        int i = 0;
+        while (i < length) {
+            if (state == STATE_DATA) {
+                int start = i;
+                while (i < length && data[i] != (byte) TelnetCommand.IAC) {
+                    i++;
+                }
+                append(data, start, i - start);
+                if (i < length) {
+                    state = STATE_IAC;
+                    i++;
+                }
+                continue;
+            }
+
+            int ch = data[i++] & 0xFF;
+            switch (state) {
+                case STATE_IAC:
+                    state = STATE_DATA;
+                    switch (ch) {
+                        case TelnetCommand.IAC:
+                            append(data, i - 1, 1);
+                            break;
+                        case TelnetCommand.EOR:
+                            listener.recordReceived(record, recordLength);
+                            recordLength = 0;
+                            break;
+                        case TelnetCommand.WILL:
+                        case TelnetCommand.WONT:
+                        case TelnetCommand.DO:
+                        case TelnetCommand.DONT:
+                            command = ch;
+                            state = STATE_OPTION;
+                            break;
+                        case TelnetCommand.SB:
+                            subnegotiationCount = 0;
+                            state = STATE_SB;
+                            break;
+                        default:
+                            _processCommand(ch);
+                            break;
+                    }
+                    break;
+                case STATE_OPTION:
+                    state = STATE_DATA;
+                    switch (command) {
+                        case TelnetCommand.WILL:
+                            _processWill(ch);
+                            break;
+                        case TelnetCommand.WONT:
+                            _processWont(ch);
+                            break;
+                        case TelnetCommand.DO:
+                            _processDo(ch);
+                            break;
+                        case TelnetCommand.DONT:
+                            _processDont(ch);
+                            break;
+                    }
+                    break;
+                case STATE_SB:
+                    if (ch == TelnetCommand.IAC) {
+                        state = STATE_SB_IAC;
+                    } else if (subnegotiationCount < subnegotiationBuffer.length) {
+                        subnegotiationBuffer[subnegotiationCount++] = ch;
+                    }
+                    break;
+                case STATE_SB_IAC:
+                    if (ch == TelnetCommand.SE) {
+                        state = STATE_DATA;
+                        _processSuboption(subnegotiationBuffer, subnegotiationCount);
+                    } else {
+                        state = STATE_SB;
+                        if (ch == TelnetCommand.IAC && subnegotiationCount < subnegotiationBuffer.length) {
+                            subnegotiationBuffer[subnegotiationCount++] = ch;
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (recordLength + length > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + length));
+        }
+        System.arraycopy(data, offset, record, recordLength, length);
+        recordLength += length;
+    }
+
+    /**
+     * Sends queued buffers until the socket stops taking data, then waits for OP_WRITE.
+     */
+    void flushWrites() throws IOException {
+        if (handshaking) {
+            handshake();
+            return;
+        }
+        if (!connected || !key.isValid()) {
+            return;
+        }
+        if (tls) {
+            flushTlsWrites();
+            return;
+        }
+        ByteBuffer head;
+        while ((head = pendingWrites.peek()) != null) {
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void flushTlsWrites() throws IOException {
+        if (!answerPostHandshake()) {
+            return;
+        }
+        ByteBuffer head;
+        while ((head = pendingWrites.peek()) != null) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(head, netOut);
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            if (!head.hasRemaining()) {
+                pendingWrites.poll();
+            }
+            if (!drainNetOut()) {
+                return;
+            }
+        }
+    }
+
+    private void scheduleFlush() throws IOException {
+        if (loop.inLoop()) {
+            flushWrites();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this, () -> {
+                flushScheduled.set(false);
+                try {
+                    flushWrites();
+                } catch (IOException e) {
+                    closed(e);
+                }
+            });
+        }
+    }
+
+    void closed(IOException cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        connected = false;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already going away
+        }
+        pendingWrites.clear();
+        if (!connectFuture.isDone()) {
+            connectFuture.completeExceptionally(cause != null ? cause : new ClosedChannelException());
+        }
+        listener.disconnected(cause);
+    }
+
+    /**
+     * Closes the connection. The listener is told on the calling thread.
+     */
+    public void disconnect() {
+        if (channel != null) {
+            closed(null);
+        }
+    }
+
+    public boolean isConnected() {
+        return connected && channel.isOpen();
+    }
+
+    /**
+     * @return the TLS session once the handshake is done, or null on a plaintext connection
+     */
+    public SSLSession getSslSession() {
+        SSLEngine current = engine;
+        return current == null || handshaking ? null : current.getSession();
+    }
+
+    public boolean isSslEnabled() {
+        return sslEnabled;
+    }
+
+    /**
+     * Whether to try TLS first, true by default. Takes effect on the next connect.
+     */
+    public void setSslEnabled(boolean sslEnabled) {
+        this.sslEnabled = sslEnabled;
+    }
+
+    public boolean isPlaintextFallback() {
+        return plaintextFallback;
+    }
+
+    /**
+     * Whether a host that does not speak TLS may be reconnected in plaintext, false by
+     * default. Only a host whose first answer to the ClientHello is not a TLS record, or
+     * that hangs up before answering, falls back; certificate and other handshake failures
+     * always fail the connect. Takes effect on the next connect.
+     */
+    public void setPlaintextFallback(boolean plaintextFallback) {
+        this.plaintextFallback = plaintextFallback;
+    }
+
+    /**
+     * Context used for TLS connections, {@link SSLContext#getDefault()} when not set.
+     * Sessions are only resumed between connections that share a context.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Unescaped output for callers that already produce wire-ready data, such as 3270
+     * records terminated by IAC EOR. Bytes are sent by the selector thread on flush.
+     */
+    public OutputStream getRawOutputStream() {
+        return output;
+    }
+
+    public void setConnectTimeout(int timeout) {
+        connectTimeout = timeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Queues what is written and has the selector thread send it on flush.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+            pendingWrites.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            scheduleFlush();
+        }
+    }
+}
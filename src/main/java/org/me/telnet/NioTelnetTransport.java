@@ -0,0 +1,211 @@
+package org.me.telnet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small set of selector threads shared by many {@link NioTelnetClient} connections.
+ * Each connection is bound to one selector for its lifetime, picked round robin, and all
+ * of its reads, writes and negotiation run on that selector's thread.
+ * <p>
+ * A connection whose callback or queued task throws is closed on its own, the other
+ * connections on the selector carry on. If the selector itself fails its thread stops,
+ * and every connection on it is closed with the failure as the cause.
+ */
+public class NioTelnetTransport implements Closeable {
+    private final SelectorLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioTelnetTransport() throws IOException {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public NioTelnetTransport(int selectorThreads) throws IOException {
+        if (selectorThreads <= 0) {
+            throw new IllegalArgumentException("selectorThreads must be positive");
+        }
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                loops[i] = new SelectorLoop("telnet-selector-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    SelectorLoop nextLoop() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public int getSelectorThreads() {
+        return loops.length;
+    }
+
+    /**
+     * Stops the selector threads. Connections still open are closed with them.
+     */
+    @Override
+    public void close() {
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    /**
+     * One selector and the thread that runs it. Other threads hand it work with
+     * {@link #execute}, which wakes the selector.
+     */
+    static final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+        // why the loop stopped, null when it was closed normally
+        private volatile IOException failure;
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs {@code task} on the selector thread, {@code client} is closed if it throws.
+         */
+        void execute(NioTelnetClient client, Runnable task) {
+            tasks.add(new Task(client, task));
+            if (running) {
+                selector.wakeup();
+            } else {
+                closeQueuedTasks();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    // a selector that fails once keeps failing, stop instead of spinning
+                    close(new IOException("Selector failed on " + thread.getName(), e));
+                    break;
+                }
+
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.work.run();
+                    } catch (CancelledKeyException e) {
+                        // disconnected from another thread since the task was queued
+                        closeQuietly(task.client, null);
+                    } catch (RuntimeException e) {
+                        closeQuietly(task.client, new IOException("Task failed on the selector thread", e));
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    NioTelnetClient client = (NioTelnetClient) key.attachment();
+                    try {
+                        int ready = key.readyOps();
+                        if ((ready & SelectionKey.OP_CONNECT) != 0) {
+                            client.finishConnect();
+                        }
+                        if ((ready & SelectionKey.OP_READ) != 0) {
+                            client.readReady();
+                        }
+                        if (key.isValid() && (ready & SelectionKey.OP_WRITE) != 0) {
+                            client.flushWrites();
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(client, e);
+                    } catch (CancelledKeyException e) {
+                        closeQuietly(client, null);
+                    } catch (RuntimeException e) {
+                        // a bad record from one host, or its listener throwing, ends only that connection
+                        closeQuietly(client, new IOException("Connection failed on the selector thread", e));
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            closeQueuedTasks();
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly((NioTelnetClient) key.attachment(), failure);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+
+        void close() {
+            close(null);
+        }
+
+        /**
+         * Stops the loop, closing its connections with {@code cause}.
+         */
+        void close(IOException cause) {
+            if (cause != null && running) {
+                failure = cause;
+            }
+            running = false;
+            selector.wakeup();
+        }
+
+        /**
+         * Closes the connections of queued tasks that will not run now the loop has stopped.
+         */
+        private void closeQueuedTasks() {
+            Task task;
+            while ((task = tasks.poll()) != null) {
+                closeQuietly(task.client, failure);
+            }
+        }
+
+        /**
+         * Closes {@code client}, its disconnect listener throwing must not end the loop either.
+         */
+        private static void closeQuietly(NioTelnetClient client, IOException cause) {
+            try {
+                client.closed(cause);
+            } catch (RuntimeException e) {
+                // nothing more to tell a listener that fails on disconnect
+            }
+        }
+    }
+
+    /**
+     * Work queued for a selector thread and the connection it belongs to.
+     */
+    private static final class Task {
+        final NioTelnetClient client;
+        final Runnable work;
+
+        Task(NioTelnetClient client, Runnable work) {
+            this.client = client;
+            this.work = work;
+        }
+    }
+}
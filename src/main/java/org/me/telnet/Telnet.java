@@ -3,9 +3,11 @@ package org.me.telnet;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Telnet {
     static final boolean debug = false;
@@ -25,7 +27,18 @@ public class Telnet {
     private boolean sentWill[] = new boolean[256];
     
     private TelnetNotificationHandler notifHandler = null;
-    private List<TelnetOptionHandler> optionHandlers = new ArrayList<TelnetOptionHandler>();
+    // indexed by option code; slots are volatile so handlers can be added or removed while
+    // the reader thread is negotiating
+    private final AtomicReferenceArray<TelnetOptionHandler> optionHandlers = new AtomicReferenceArray<>(256);
+    
+    // serialises negotiation writes, a lock rather than synchronized so a virtual
+    // thread blocked in a socket write does not pin its carrier
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final TelnetCommandWriter commandWriter = new TelnetCommandWriter(this, sendLock);
+    
+    private boolean negotiationProfileEnabled = false;
+    private InetAddress remoteHost = null;
+    private int remotePort = 0;
     
     protected Socket socket = null;
     protected BufferedInputStream input = null;
@@ -59,91 +72,163 @@ public class Telnet {
     }
     
     private void _negotiateOptions() throws IOException {
-        for (TelnetOptionHandler handler : optionHandlers) {
-            if (handler.getInitLocal()) {
-                _requestWill(handler.getOptionCode());
+        _beginBatch();
+        try {
+            for (int option = 0; option < 256; option++) {
+                TelnetOptionHandler handler = optionHandlers.get(option);
+                if (handler == null) {
+                    continue;
+                }
+                if (handler.getInitLocal()) {
+                    _requestWill(option);
+                }
+                if (handler.getInitRemote()) {
+                    _requestDo(option);
+                }
             }
-            if (handler.getInitRemote()) {
-                _requestDo(handler.getOptionCode());
+            
+            NegotiationProfile profile = negotiationProfileEnabled && remoteHost != null
+                ? NegotiationProfile.get(remoteHost, remotePort) : null;
+            if (profile != null) {
+                // ask up front for what the host agreed to last time, its DO and WILL
+                // then arrive as acknowledgements and need no reply
+                for (int option = 0; option < 256; option++) {
+                    if (profile.isLocal(option) && _acceptsLocal(option)) {
+                        _requestWill(option);
+                    }
+                    if (profile.isRemote(option) && _acceptsRemote(option)) {
+                        _requestDo(option);
+                    }
+                }
             }
+        } finally {
+            _endBatch();
         }
     }
     
-    final synchronized void _sendByte(int b) throws IOException {
-        if (output != null) {
-            output.write(b);
-            if (debug) {
-                System.err.println("SENT: " + b);
+    /**
+     * Sets the host the next {@link #_connectAction_()} negotiates with, which keys its
+     * {@link NegotiationProfile}.
+     */
+    final void _setRemote(InetAddress host, int port) {
+        remoteHost = host;
+        remotePort = port;
+    }
+    
+    /**
+     * Opens a batch of replies, typically one per block of input read from the host.
+     * Replies sent inside it are flushed together when the outermost batch ends.
+     */
+    final void _beginBatch() {
+        commandWriter.beginBatch();
+    }
+    
+    final void _endBatch() throws IOException {
+        commandWriter.endBatch();
+    }
+    
+    /**
+     * Flushes replies buffered by the current batch, for a reader about to wait on the host.
+     */
+    final void _flushPending() throws IOException {
+        commandWriter.flush();
+    }
+    
+    private boolean _acceptsLocal(int option) {
+        TelnetOptionHandler handler = optionHandlers.get(option);
+        return handler != null && handler.getAcceptLocal();
+    }
+    
+    private boolean _acceptsRemote(int option) {
+        TelnetOptionHandler handler = optionHandlers.get(option);
+        return handler != null && handler.getAcceptRemote();
+    }
+    
+    /**
+     * Records the options currently agreed with the host as its negotiation profile.
+     */
+    private void _updateProfile() {
+        if (!negotiationProfileEnabled || remoteHost == null) {
+            return;
+        }
+        BitSet local = new BitSet(256);
+        BitSet remote = new BitSet(256);
+        for (int option = 0; option < 256; option++) {
+            if (receivedDo[option] && sentWill[option]) {
+                local.set(option);
+            }
+            if (receivedWill[option] && sentDo[option]) {
+                remote.set(option);
             }
         }
+        NegotiationProfile.remember(remoteHost, remotePort, local, remote);
     }
     
-    final synchronized void _sendCommand(int command) throws IOException {
-        _sendByte(TelnetCommand.IAC);
-        _sendByte(command);
+    final void _sendCommand(int command) throws IOException {
+        commandWriter.command(command);
     }
     
-    final synchronized void _sendWill(int option) throws IOException {
-        _sendByte(TelnetCommand.IAC);
-        _sendByte(TelnetCommand.WILL);
-        _sendByte(option);
-        if (output != null) {
-            output.flush();
-        }
+    final void _sendWill(int option) throws IOException {
+        commandWriter.negotiation(TelnetCommand.WILL, option);
     }
     
-    final synchronized void _sendWont(int option) throws IOException {
-        _sendByte(TelnetCommand.IAC);
-        _sendByte(TelnetCommand.WONT);
-        _sendByte(option);
-        if (output != null) {
-            output.flush();
-        }
+    final void _sendWont(int option) throws IOException {
+        commandWriter.negotiation(TelnetCommand.WONT, option);
     }
     
-    final synchronized void _sendDo(int option) throws IOException {
-        _sendByte(TelnetCommand.IAC);
-        _sendByte(TelnetCommand.DO);
-        _sendByte(option);
-        if (output != null) {
-            output.flush();
-        }
+    final void _sendDo(int option) throws IOException {
+        commandWriter.negotiation(TelnetCommand.DO, option);
     }
     
-    final synchronized void _sendDont(int option) throws IOException {
-        _sendByte(TelnetCommand.IAC);
-        _sendByte(TelnetCommand.DONT);
-        _sendByte(option);
-        if (output != null) {
-            output.flush();
-        }
+    final void _sendDont(int option) throws IOException {
+        commandWriter.negotiation(TelnetCommand.DONT, option);
     }
     
-    final synchronized void _requestWill(int option) throws IOException {
-        if (!sentWill[option] || !receivedDo[option]) {
-            _sendWill(option);
-            sentWill[option] = true;
+    final void _requestWill(int option) throws IOException {
+        sendLock.lock();
+        try {
+            if (!sentWill[option] || !receivedDo[option]) {
+                _sendWill(option);
+                sentWill[option] = true;
+            }
+        } finally {
+            sendLock.unlock();
         }
     }
     
-    final synchronized void _requestWont(int option) throws IOException {
-        if (sentWill[option] || receivedDo[option]) {
-            _sendWont(option);
-            sentWill[option] = false;
+    final void _requestWont(int option) throws IOException {
+        sendLock.lock();
+        try {
+            if (sentWill[option] || receivedDo[option]) {
+                _sendWont(option);
+                sentWill[option] = false;
+            }
+        } finally {
+            sendLock.unlock();
         }
     }
     
-    final synchronized void _requestDo(int option) throws IOException {
-        if (!sentDo[option] || !receivedWill[option]) {
-            _sendDo(option);
-            sentDo[option] = true;
+    final void _requestDo(int option) throws IOException {
+        sendLock.lock();
+        try {
+            if (!sentDo[option] || !receivedWill[option]) {
+                _sendDo(option);
+                sentDo[option] = true;
+            }
+        } finally {
+            sendLock.unlock();
         }
     }
     
-    final synchronized void _requestDont(int option) throws IOException {
-        if (sentDo[option] || receivedWill[option]) {
-            _sendDont(option);
-            sentDo[option] = false;
+    final void _requestDont(int option) throws IOException {
+        sendLock.lock();
+        try {
+            if (sentDo[option] || receivedWill[option]) {
+                _sendDont(option);
+                sentDo[option] = false;
+            }
+        } finally {
+            sendLock.unlock();
         }
     }
     
@@ -152,22 +237,15 @@ public class Telnet {
             System.err.println("RECEIVED DO: " + TelnetOption.getOption(option));
         }
         
-        boolean acceptOption = false;
-        
-        if (optionHandlers.size() > 0) {
-            for (TelnetOptionHandler handler : optionHandlers) {
-                if (handler.getOptionCode() == option) {
-                    acceptOption = handler.getAcceptLocal();
-                    break;
-                }
-            }
-        }
-        
         if (!receivedDo[option]) {
             receivedDo[option] = true;
-            if (acceptOption) {
-                _sendWill(option);
-                sentWill[option] = true;
+            if (_acceptsLocal(option)) {
+                // a DO answering our own WILL is an acknowledgement, not a request
+                if (!sentWill[option]) {
+                    _sendWill(option);
+                    sentWill[option] = true;
+                }
+                _updateProfile();
             } else {
                 _sendWont(option);
                 sentWill[option] = false;
@@ -190,6 +268,11 @@ public class Telnet {
             receivedDo[option] = false;
             _sendWont(option);
             sentWill[option] = false;
+            _updateProfile();
+        } else if (sentWill[option]) {
+            // the host refused our WILL, nothing to answer
+            sentWill[option] = false;
+            _updateProfile();
         }
         
         if (notifHandler != null) {
@@ -202,22 +285,15 @@ public class Telnet {
             System.err.println("RECEIVED WILL: " + TelnetOption.getOption(option));
         }
         
-        boolean acceptOption = false;
-        
-        if (optionHandlers.size() > 0) {
-            for (TelnetOptionHandler handler : optionHandlers) {
-                if (handler.getOptionCode() == option) {
-                    acceptOption = handler.getAcceptRemote();
-                    break;
-                }
-            }
-        }
-        
         if (!receivedWill[option]) {
             receivedWill[option] = true;
-            if (acceptOption) {
-                _sendDo(option);
-                sentDo[option] = true;
+            if (_acceptsRemote(option)) {
+                // a WILL answering our own DO is an acknowledgement, not an offer
+                if (!sentDo[option]) {
+                    _sendDo(option);
+                    sentDo[option] = true;
+                }
+                _updateProfile();
             } else {
                 _sendDont(option);
                 sentDo[option] = false;
@@ -240,6 +316,11 @@ public class Telnet {
             receivedWill[option] = false;
             _sendDont(option);
             sentDo[option] = false;
+            _updateProfile();
+        } else if (sentDo[option]) {
+            // the host refused our DO, nothing to answer
+            sentDo[option] = false;
+            _updateProfile();
         }
         
         if (notifHandler != null) {
@@ -249,34 +330,19 @@ public class Telnet {
     
     void _processSuboption(int[] suboption, int suboptionLength) throws IOException {
         if (suboptionLength > 0) {
-            for (TelnetOptionHandler handler : optionHandlers) {
-                if (handler.getOptionCode() == suboption[0]) {
-                    int[] response = handler.answerSubnegotiation(suboption, suboptionLength);
-                    if (response != null) {
-                        _sendSubnegotiation(response);
-                    }
-                    break;
+            TelnetOptionHandler handler = optionHandlers.get(suboption[0] & 0xFF);
+            if (handler != null) {
+                int[] response = handler.answerSubnegotiation(suboption, suboptionLength);
+                if (response != null) {
+                    _sendSubnegotiation(response);
                 }
             }
         }
     }
     
-    final synchronized void _sendSubnegotiation(int[] subnegotiation) throws IOException {
+    final void _sendSubnegotiation(int[] subnegotiation) throws IOException {
         if (subnegotiation != null) {
-            _sendByte(TelnetCommand.IAC);
-            _sendByte(TelnetCommand.SB);
-            for (int i = 0; i < subnegotiation.length; i++) {
-                int b = subnegotiation[i];
-                _sendByte(b);
-                if (b == TelnetCommand.IAC) {
-                    _sendByte(b);
-                }
-            }
-            _sendByte(TelnetCommand.IAC);
-            _sendByte(TelnetCommand.SE);
-            if (output != null) {
-                output.flush();
-            }
+            commandWriter.subnegotiation(subnegotiation);
         }
     }
     
@@ -290,19 +356,66 @@ public class Telnet {
         }
     }
     
+    /**
+     * Registers a handler for its option code, replacing any handler already registered
+     * for that option.
+     */
     public void addOptionHandler(TelnetOptionHandler opthand) throws IOException {
-        optionHandlers.add(opthand);
+        int option = opthand.getOptionCode();
+        if (option < 0 || option > 255) {
+            throw new IllegalArgumentException("Invalid option code: " + option);
+        }
+        optionHandlers.set(option, opthand);
     }
     
     public void deleteOptionHandler(int optcode) {
-        for (int i = 0; i < optionHandlers.size(); i++) {
-            if (optionHandlers.get(i).getOptionCode() == optcode) {
-                optionHandlers.remove(i);
-                break;
-            }
+        if (optcode >= 0 && optcode <= 255) {
+            optionHandlers.set(optcode, null);
         }
     }
     
+    /**
+     * @return the handler registered for this option, or null
+     */
+    public TelnetOptionHandler getOptionHandler(int optcode) {
+        return optcode >= 0 && optcode <= 255 ? optionHandlers.get(optcode) : null;
+    }
+    
+    /**
+     * Stops performing an option this side agreed to by sending WONT, for handlers that
+     * find out during subnegotiation that the option cannot be used after all.
+     */
+    public void disableLocalOption(int optcode) throws IOException {
+        sendLock.lock();
+        try {
+            _requestWont(optcode);
+            // the host's DONT is then an acknowledgement, not a request to answer
+            receivedDo[optcode] = false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+    
+    /**
+     * @return the writer all commands and negotiation replies go through, with its
+     *         flush statistics
+     */
+    public TelnetCommandWriter getCommandWriter() {
+        return commandWriter;
+    }
+    
+    public boolean isNegotiationProfileEnabled() {
+        return negotiationProfileEnabled;
+    }
+    
+    /**
+     * Whether to remember the options each host agrees to and request them all in the
+     * first write of the next connect to that host. Off by default.
+     */
+    public void setNegotiationProfileEnabled(boolean enabled) {
+        negotiationProfileEnabled = enabled;
+    }
+    
     public void registerNotifHandler(TelnetNotificationHandler notifhand) {
         notifHandler = notifhand;
     }
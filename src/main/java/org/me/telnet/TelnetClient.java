@@ -2,16 +2,19 @@ package org.me.telnet;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Objects;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLException;
 import org.me.io.PeekableInputStream;
 
 public class TelnetClient extends Telnet {
@@ -20,6 +23,7 @@ public class TelnetClient extends Telnet {
     private int defaultPort = 23;
     private String terminalType = "VT100";
     private boolean sslEnabled = true;
+    private boolean plaintextFallback = false;
     
     private InputStream negotiatedInput = null;
     private OutputStream negotiatedOutput = null;
@@ -34,25 +38,35 @@ public class TelnetClient extends Telnet {
     }
     
     public void connect(InetAddress host, int port) throws IOException {
-        if (sslEnabled) {
+        if (sslEnabled && !(plaintextFallback && TlsFallback.isPlaintext(host, port))) {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            FirstByteSocket plain = new FirstByteSocket();
             try {
+                plain.connect(address, connectTimeout);
+                // the default factory shares one session cache, so reconnects to a host resume
                 SSLSocketFactory sslFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-                super.socket = sslFactory.createSocket();
-                super.socket.connect(new java.net.InetSocketAddress(host, port), connectTimeout);
-                ((SSLSocket) super.socket).startHandshake();
-            } catch (SSLHandshakeException e) {
-                if (super.socket != null) {
-                    try {
-                        super.socket.close();
-                    } catch (IOException ignored) {}
+                SSLSocket ssl = (SSLSocket) sslFactory.createSocket(plain, address.getHostString(), port, true);
+                ssl.startHandshake();
+                super.socket = ssl;
+            } catch (SSLException e) {
+                try {
+                    plain.close();
+                } catch (IOException ignored) {}
+                // certificate and other handshake failures from a host that does speak TLS
+                // must not turn into a cleartext connection
+                if (!plaintextFallback || !plain.notTls()) {
+                    throw e;
                 }
+                // a plaintext host answers the ClientHello with telnet data, don't try it again
+                TlsFallback.rememberPlaintext(host, port);
                 super.socket = new Socket();
-                super.socket.connect(new java.net.InetSocketAddress(host, port), connectTimeout);
+                super.socket.connect(address, connectTimeout);
             }
         } else {
             super.socket = new Socket();
             super.socket.connect(new java.net.InetSocketAddress(host, port), connectTimeout);
         }
+        _setRemote(host, port);
         _connectAction_();
     }
     
@@ -102,6 +116,14 @@ public class TelnetClient extends Telnet {
         return negotiatedOutput;
     }
     
+    /**
+     * Unescaped output for callers that already produce wire-ready data,
+     * such as 3270 records terminated by IAC EOR.
+     */
+    public OutputStream getRawOutputStream() {
+        return super.output;
+    }
+    
     public boolean isConnected() {
         return connected && super.socket != null && !super.socket.isClosed();
     }
@@ -226,16 +248,81 @@ public class TelnetClient extends Telnet {
         this.sslEnabled = sslEnabled;
     }
     
+    public boolean isPlaintextFallback() {
+        return plaintextFallback;
+    }
+    
+    /**
+     * Whether a host that does not speak TLS may be reconnected in plaintext, false by
+     * default. Only a host whose first answer to the ClientHello is not a TLS record, or
+     * that hangs up before answering, falls back; certificate and other handshake failures
+     * are always thrown.
+     */
+    public void setPlaintextFallback(boolean plaintextFallback) {
+        this.plaintextFallback = plaintextFallback;
+    }
+    
     public void useSystemProperties(boolean b) {
         System.setProperty("java.net.useSystemProxies", String.valueOf(b));
     }
     
+    /**
+     * Socket under the TLS layer that notes the first byte the host sends, or that it
+     * hung up before sending any, so a failed handshake can tell a host that does not
+     * speak TLS from one that rejected us.
+     */
+    private static class FirstByteSocket extends Socket {
+        private int firstByte = -1;
+        private boolean eof;
+        private InputStream in;
+        
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        seen(b < 0 ? -1 : 1, (byte) b);
+                        return b;
+                    }
+                    
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int count = super.read(b, off, len);
+                        seen(count, count > 0 ? b[off] : 0);
+                        return count;
+                    }
+                };
+            }
+            return in;
+        }
+        
+        private void seen(int count, byte first) {
+            if (firstByte < 0 && !eof) {
+                if (count > 0) {
+                    firstByte = first & 0xFF;
+                } else if (count < 0) {
+                    eof = true;
+                }
+            }
+        }
+        
+        boolean notTls() {
+            return firstByte >= 0 ? !TlsFallback.isTlsRecord(firstByte) : eof;
+        }
+    }
+    
     private class TelnetInputStream extends InputStream {
         private PeekableInputStream wrapped;
         private Telnet telnet;
         private boolean iacMode = false;
         private boolean sbMode = false;
         private int command = 0;
+        // lookahead scratch, reused so decoding does not allocate per byte
+        private final byte[] peekByte = new byte[1];
+        private final byte[] nextBytes = new byte[2];
+        private static final int NO_DATA = -2;
         
         public TelnetInputStream(InputStream is, Telnet tn) {
             wrapped = new PeekableInputStream(is);
@@ -244,13 +331,42 @@ public class TelnetClient extends Telnet {
         
         @Override
         public int read() throws IOException {
-        	byte[] peekByte = new byte[1];
+            return decode(true);
+        }
+        
+        /**
+         * Runs the option state machine until a data byte comes out.
+         * @param block whether to wait for more input, when false NO_DATA is returned
+         *              as soon as nothing is buffered or available
+         */
+        private int decode(boolean block) throws IOException {
+            // replies to the negotiation decoded here are flushed together
+            telnet._beginBatch();
+            try {
+                return decodeBatch(block);
+            } finally {
+                telnet._endBatch();
+            }
+        }
+        
+        private int decodeBatch(boolean block) throws IOException {
             while (true) {
+                if (wrapped.available() == 0) {
+                    if (!block) {
+                        return NO_DATA;
+                    }
+                    // about to wait on the host, which may be waiting on our replies
+                    telnet._flushPending();
+                }
                 if (!wrapped.peek(peekByte, 0, 1)) {
                     return -1;  // EOF
                 }
                 
                 int ch = peekByte[0] & 0xFF;
+                if (ch == TelnetCommand.IAC && !iacMode && !block && wrapped.available() < 2) {
+                    // what follows the IAC decides its meaning, leave it until that arrives
+                    return NO_DATA;
+                }
                 
                 if (iacMode) {
                     wrapped.read();  // consume the peeked byte
@@ -297,9 +413,8 @@ public class TelnetClient extends Telnet {
                 } else if (sbMode) {
                     wrapped.read();  // consume the peeked byte
                     if (ch == TelnetCommand.IAC) {
-                        byte[] nextByte = new byte[1];
-                        if (wrapped.peek(nextByte, 0, 1)) {
-                            int next = nextByte[0] & 0xFF;
+                        if (wrapped.peek(peekByte, 0, 1)) {
+                            int next = peekByte[0] & 0xFF;
                             if (next == TelnetCommand.SE) {
                                 wrapped.read();  // consume SE
                                 telnet._processSuboption(subnegotiationBuffer, subnegotiationCount);
@@ -318,7 +433,6 @@ public class TelnetClient extends Telnet {
                     }
                 } else if (ch == TelnetCommand.IAC) {
                     // Peek ahead to see if this is actually a telnet command
-                    byte[] nextBytes = new byte[2];
                     if (wrapped.peek(nextBytes, 0, 2)) {  // Peek at current byte and next
                         int next = nextBytes[1] & 0xFF;  // Get the byte after IAC
                         
@@ -367,20 +481,33 @@ public class TelnetClient extends Telnet {
             int totalBytesRead = 0;
             
             while (totalBytesRead < len) {
-                int byteByte = read();
-                if (byteByte == -1) {
-                    return totalBytesRead == 0 ? -1 : totalBytesRead;
+                // block for the first bytes only, after that take what has already arrived
+                boolean block = totalBytesRead == 0;
+                
+                if (!iacMode && !sbMode) {
+                    // copy the run of plain data up to the next IAC in one go
+                    int bytesRead = wrapped.readUntil(TelnetCommand.IAC, b, off + totalBytesRead, len - totalBytesRead, block);
+                    if (bytesRead < 0) {
+                        break;
+                    }
+                    if (bytesRead > 0) {
+                        totalBytesRead += bytesRead;
+                        continue;
+                    }
+                    if (!block && wrapped.available() == 0) {
+                        break;
+                    }
                 }
-                b[off + totalBytesRead] = (byte) byteByte;
-                totalBytesRead++;
                 
-                // Check if more data is immediately available
-                if (totalBytesRead < len && wrapped.available() == 0) {
+                // an IAC sequence or subnegotiation is next, hand it to the state machine
+                int ch = decode(block);
+                if (ch < 0) {
                     break;
                 }
+                b[off + totalBytesRead++] = (byte) ch;
             }
             
-            return totalBytesRead;
+            return totalBytesRead == 0 ? -1 : totalBytesRead;
         }
         
         @Override
@@ -421,8 +548,20 @@ public class TelnetClient extends Telnet {
         
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            for (int i = 0; i < len; i++) {
-                write(b[off + i] & 0xFF);
+            Objects.checkFromIndexSize(off, len, b.length);
+            
+            int end = off + len;
+            int runStart = off;
+            for (int i = off; i < end; i++) {
+                if (b[i] == (byte) TelnetCommand.IAC) {
+                    // the run goes out with its IAC included, the extra IAC doubles it
+                    wrapped.write(b, runStart, i + 1 - runStart);
+                    wrapped.write(TelnetCommand.IAC);
+                    runStart = i + 1;
+                }
+            }
+            if (runStart < end) {
+                wrapped.write(b, runStart, end - runStart);
             }
         }
         
@@ -0,0 +1,195 @@
+package org.me.telnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Assembles telnet commands, negotiation replies and subnegotiations in one reusable
+ * buffer and hands each to the connection's output stream as a single write. Inside a
+ * batch the stream is flushed once when the batch ends, otherwise once per command.
+ * <p>
+ * A batch belongs to the thread that opened it, normally a reader decoding a block of
+ * input. Commands other threads send meanwhile are not held back by it, so a reader
+ * waiting on the host never keeps them off the wire.
+ * <p>
+ * Counts flushes and the bytes they carried so the effect of batching can be checked on
+ * a live session.
+ */
+public final class TelnetCommandWriter {
+    private final Telnet telnet;
+    private final ReentrantLock lock;
+
+    // guarded by lock
+    private byte[] buffer = new byte[64];
+    private Thread batchOwner;
+    private int batchDepth = 0;
+    private int unflushed = 0;
+
+    private volatile long flushCount = 0;
+    private volatile long bytesFlushed = 0;
+    private volatile int largestFlush = 0;
+
+    TelnetCommandWriter(Telnet telnet, ReentrantLock lock) {
+        this.telnet = telnet;
+        this.lock = lock;
+    }
+
+    void command(int command) throws IOException {
+        lock.lock();
+        try {
+            buffer[0] = (byte) TelnetCommand.IAC;
+            buffer[1] = (byte) command;
+            write(2);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void negotiation(int command, int option) throws IOException {
+        lock.lock();
+        try {
+            buffer[0] = (byte) TelnetCommand.IAC;
+            buffer[1] = (byte) command;
+            buffer[2] = (byte) option;
+            write(3);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes IAC SB, the data with every IAC doubled, then IAC SE.
+     */
+    void subnegotiation(int[] data) throws IOException {
+        lock.lock();
+        try {
+            // worst case every byte is an IAC
+            ensureCapacity(data.length * 2 + 4);
+            int count = 0;
+            buffer[count++] = (byte) TelnetCommand.IAC;
+            buffer[count++] = (byte) TelnetCommand.SB;
+            for (int b : data) {
+                buffer[count++] = (byte) b;
+                if (b == TelnetCommand.IAC) {
+                    buffer[count++] = (byte) b;
+                }
+            }
+            buffer[count++] = (byte) TelnetCommand.IAC;
+            buffer[count++] = (byte) TelnetCommand.SE;
+            write(count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void beginBatch() {
+        lock.lock();
+        try {
+            // another thread's batch is left alone, this one's commands flush as they go
+            if (batchOwner == null) {
+                batchOwner = Thread.currentThread();
+            }
+            if (batchOwner == Thread.currentThread()) {
+                batchDepth++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void endBatch() throws IOException {
+        lock.lock();
+        try {
+            if (batchOwner == Thread.currentThread() && --batchDepth == 0) {
+                batchOwner = null;
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes what the open batch has written so far.
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            if (unflushed == 0) {
+                return;
+            }
+            OutputStream out = telnet.output;
+            if (out != null) {
+                out.flush();
+            }
+            flushCount++;
+            bytesFlushed += unflushed;
+            if (unflushed > largestFlush) {
+                largestFlush = unflushed;
+            }
+            unflushed = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(int count) throws IOException {
+        OutputStream out = telnet.output;
+        if (out == null) {
+            return;
+        }
+        out.write(buffer, 0, count);
+        if (Telnet.debug) {
+            System.err.println("SENT: " + Arrays.toString(Arrays.copyOf(buffer, count)));
+        }
+        unflushed += count;
+        if (batchOwner != Thread.currentThread()) {
+            flush();
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+        }
+    }
+
+    /**
+     * @return how many times command output has been flushed to the connection
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return the command bytes carried by all flushes so far
+     */
+    public long getBytesFlushed() {
+        return bytesFlushed;
+    }
+
+    /**
+     * @return the most command bytes sent by a single flush
+     */
+    public int getLargestFlush() {
+        return largestFlush;
+    }
+
+    public double getAverageBytesPerFlush() {
+        long flushes = flushCount;
+        return flushes == 0 ? 0 : (double) bytesFlushed / flushes;
+    }
+
+    public void resetStatistics() {
+        lock.lock();
+        try {
+            flushCount = 0;
+            bytesFlushed = 0;
+            largestFlush = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
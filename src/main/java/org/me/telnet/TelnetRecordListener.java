@@ -0,0 +1,23 @@
+package org.me.telnet;
+
+import java.io.IOException;
+
+/**
+ * Receives the records a {@link NioTelnetClient} decodes, each ending at IAC EOR.
+ * Called on the transport's selector thread, so implementations must not block.
+ */
+public interface TelnetRecordListener {
+
+    /**
+     * @param record the record data with telnet escapes removed and without IAC EOR, only
+     *               valid until this method returns
+     * @param length the number of bytes in {@code record}
+     */
+    void recordReceived(byte[] record, int length);
+
+    /**
+     * The connection was closed by either side, {@code cause} is null on a clean close.
+     */
+    default void disconnected(IOException cause) {
+    }
+}
@@ -0,0 +1,73 @@
+package org.me.telnet;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers hosts found not to speak TLS, so the next connect to them goes straight to
+ * plaintext instead of paying for a failed handshake and a second TCP connect. Entries
+ * expire after the retry interval so a host that starts offering TLS is picked up again.
+ * Shared by {@link TelnetClient} and {@link NioTelnetClient}, and only used by sessions
+ * that turned plaintext fallback on.
+ */
+public final class TlsFallback {
+    private static final ConcurrentHashMap<String, Long> plaintextUntil = new ConcurrentHashMap<>();
+    private static volatile long retryNanos = TimeUnit.HOURS.toNanos(1);
+
+    private TlsFallback() {
+    }
+
+    /**
+     * @return true if this host was found not to speak TLS within the retry interval
+     */
+    public static boolean isPlaintext(InetAddress host, int port) {
+        String key = key(host, port);
+        Long until = plaintextUntil.get(key);
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until >= 0) {
+            plaintextUntil.remove(key, until);
+            return false;
+        }
+        return true;
+    }
+
+    static void rememberPlaintext(InetAddress host, int port) {
+        plaintextUntil.put(key(host, port), System.nanoTime() + retryNanos);
+    }
+
+    /**
+     * Forgets the fallback decision for one host, the next connect tries TLS again.
+     */
+    public static void forget(InetAddress host, int port) {
+        plaintextUntil.remove(key(host, port));
+    }
+
+    public static void clear() {
+        plaintextUntil.clear();
+    }
+
+    /**
+     * How long a host is connected in plaintext after it was found not to speak TLS, one
+     * hour by default.
+     */
+    public static void setRetryInterval(long time, TimeUnit unit) {
+        retryNanos = unit.toNanos(time);
+    }
+
+    /**
+     * @return true if {@code firstByte}, the first byte a host sent after the ClientHello,
+     *         can start a TLS record: change cipher spec, alert, handshake, application data
+     *         or heartbeat. Telnet hosts start with IAC or text.
+     */
+    static boolean isTlsRecord(int firstByte) {
+        int type = firstByte & 0xFF;
+        return type >= 20 && type <= 24;
+    }
+
+    private static String key(InetAddress host, int port) {
+        return host.getHostAddress() + ":" + port;
+    }
+}
@@ -1,151 +1,146 @@
 package org.me.telnet.tn3270;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.me.telnet.TelnetCommand;
-import org.me.telnet.tn3270.ScreenBuffer.Field;
-
 
+/**
+ * Encodes the inbound record for an AID key: the AID, the cursor address and the modified
+ * fields, each behind a Set Buffer Address order. IAC is doubled and IAC EOR appended as
+ * the record is written, so the result goes to the raw telnet stream as it is.
+ * <p>
+ * Records are built straight into a {@link ByteBuffer}, the caller's or one kept by the
+ * builder and reused for every key, without creating any objects on the way.
+ */
 public class DataStreamBuilder {
 	private static final byte ORDER_SET_BUFFER_ADDRESS = (byte) 0x11;
-	
+	private static final byte IAC = (byte) TelnetCommand.IAC;
+	private static final int INITIAL_CAPACITY = 1024;
+
 	private ScreenBuffer buffer;
-	private boolean debug = false;
-	
+	private ByteBuffer record = ByteBuffer.allocate(INITIAL_CAPACITY);
+
 	public DataStreamBuilder(ScreenBuffer buffer) {
 		this.buffer = buffer;
 	}
-	
+
 	public byte[] build(byte aid) throws IOException {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        
-        stream.write(aid);
-		
-		if(debug) {
-			System.out.println("--> " + (aid & 0xFF) + " command key");
-			System.out.println("-------- hasFields: " + buffer.hasFields() + " -------------");
+		int length = buildRecord(aid);
+		return Arrays.copyOf(record.array(), length);
+	}
+
+	/**
+	 * Builds the record for {@code aid} and writes it to {@code out} in one write.
+	 */
+	public void send(byte aid, OutputStream out) throws IOException {
+		int length = buildRecord(aid);
+		out.write(record.array(), 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Builds the record for {@code aid} into {@code out} from its position, which is left
+	 * after the IAC EOR.
+	 *
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException if the record does not fit, {@link #getMaxRecordLength()}
+	 *         bytes always do
+	 */
+	public int build(byte aid, ByteBuffer out) {
+		int start = out.position();
+		// keys are pressed on the caller's thread, don't read a record half applied
+		buffer.recordLock().lock();
+		try {
+			out.put(aid);
+			if(aid == CommandKey.CLEAR.getValue()) { // just clear screen and send aid
+				buffer.clear();
+			} else {
+				putAddress(out, buffer.cursorPosition());
+				if(!buffer.hasFields()) {
+					putModifiedCells(out);
+				} else {
+					putModifiedFields(out);
+				}
+			}
+		} finally {
+			buffer.recordLock().unlock();
 		}
-		
-		if(aid == CommandKey.CLEAR.getValue()) { // just clear screen and send aid
-//			clearFlag = true;
-			buffer.clear();
-		}else if(!buffer.hasFields()) { // && !buffer.clearFlag) { // no fields defined, send all modified characters
-				// or if clear command was sent before, send all characters
-			stream.write(Tn3270Conversions.encodeAddress(buffer.cursorPosition()));
-			
-			if(debug) {
-				System.out.println("--> " + (Tn3270Conversions.encodeAddress(buffer.cursorPosition())[0] &0xff) + " high byte");
-				System.out.println("--> " + (Tn3270Conversions.encodeAddress(buffer.cursorPosition())[1] &0xff) + " low byte");
+		out.put(IAC);
+		out.put((byte) TelnetCommand.EOR);
+		return out.position() - start;
+	}
+
+	/**
+	 * @return the longest record the current screen can produce: every cell behind its own
+	 *         Set Buffer Address, with every byte doubled
+	 */
+	public int getMaxRecordLength() {
+		return 2 * (3 + 4 * buffer.getTotal()) + 2;
+	}
+
+	private int buildRecord(byte aid) {
+		while(true) {
+			record.clear();
+			try {
+				return build(aid, record);
+			} catch(BufferOverflowException e) {
+				// only until the buffer has grown to the largest record this screen has sent
+				record = ByteBuffer.allocate(Math.min(record.capacity() * 2, getMaxRecordLength()));
 			}
-			
-			boolean order_sba = false;
-			for(int pos=0;pos<buffer.getTotal();pos++){
-				if(buffer.getAttribute(pos).isModified()) {
-					if(order_sba) {
-						stream.write(Tn3270Conversions.asciiToEbcdic(buffer.asciiAt(pos)));
-						
-						if(debug) {
-							System.out.println("--> " + (int)buffer.asciiAt(pos) + " '" + buffer.asciiAt(pos) + "'");
-						}
-					} else {
-						stream.write(ORDER_SET_BUFFER_ADDRESS);
-    					stream.write(Tn3270Conversions.encodeAddress(pos));
-    					stream.write(Tn3270Conversions.asciiToEbcdic(buffer.asciiAt(pos)));
-    					order_sba = true;
-    					
-    					if(debug) {
-							System.out.println("--> " + (ORDER_SET_BUFFER_ADDRESS & 0xFF) + " ORD_SBA");
-							System.out.println("--> " + (Tn3270Conversions.encodeAddress(pos)[0] & 0xff) + " high byte");
-							System.out.println("--> " + (Tn3270Conversions.encodeAddress(pos)[1] & 0xff) + " low byte");
-							System.out.println("--> " + pos + " final position");
-							System.out.println("--> " + (int)buffer.asciiAt(pos) + " '" + buffer.asciiAt(pos) + "'");
-						}
-					}	
-				}else{
-					order_sba = false;// ORDER_SBA needs to be sent again
+		}
+	}
+
+	/**
+	 * Unformatted screen: every run of modified characters behind its own SBA.
+	 */
+	private void putModifiedCells(ByteBuffer out) {
+		CodePage codePage = buffer.getCodePage();
+		boolean inRun = false;
+		for(int pos=0;pos<buffer.getTotal();pos++){
+			if(buffer.isModified(pos)) {
+				if(!inRun) {
+					out.put(ORDER_SET_BUFFER_ADDRESS);
+					putAddress(out, pos);
+					inRun = true;
 				}
+				put(out, codePage.encode(buffer.asciiAt(pos)));
+			} else {
+				inRun = false; // ORDER_SBA needs to be sent again
 			}
-		}else{	
-			stream.write(Tn3270Conversions.encodeAddress(buffer.cursorPosition()));
-			
-			if(debug) {
-				System.out.println("--> " + (Tn3270Conversions.encodeAddress(buffer.cursorPosition())[0] &0xff) + " high byte");
-				System.out.println("--> " + (Tn3270Conversions.encodeAddress(buffer.cursorPosition())[1] &0xff) + " low byte");
-			}
-			
-			Field[] fields = buffer.fields();
-			
-//			System.out.println("Number of fields: " + (fields != null ? fields.length : 0));
+		}
+	}
 
-			if(fields != null){
-    			for(Field field:fields){
-//    				System.out.println(field);
-    				if(field.attribute().isModified() && field.length()>0){
-    					stream.write(ORDER_SET_BUFFER_ADDRESS);
-    					stream.write(Tn3270Conversions.encodeAddress(field.position()+1)); // move to first character position of field
-    					
-    					if(debug) {
-							System.out.println("--> " + (ORDER_SET_BUFFER_ADDRESS & 0xFF) + " ORD_SBA");
-							System.out.println("--> " + (Tn3270Conversions.encodeAddress(field.position()+1)[0] &0xff) + " high byte");
-							System.out.println("--> " + (Tn3270Conversions.encodeAddress(field.position()+1)[1] &0xff) + " low byte");
-						}
-    					
-    					// write all characters of field until next field or length is reached
-    					for(int i=field.position()+1;i<buffer.getTotal();i++){
-    						if(buffer.getField(i) != null && buffer.getField(i) == field.position()){
-    							//if(buffer.asciiAt(i) != ' '){
-									
-	    							stream.write(Tn3270Conversions.asciiToEbcdic(buffer.asciiAt(i)));
-	    							
-	    							if(debug) {
-	    								System.out.println("--> " + (int)buffer.asciiAt(i) + " '" + buffer.asciiAt(i) + "'");
-	    							}
-//    							} else {
-//    								continue;
-//    							}
+	private void putModifiedFields(ByteBuffer out) {
+		CodePage codePage = buffer.getCodePage();
+		int total = buffer.getTotal();
+		for(int i=0;i<buffer.fieldCount();i++){
+			int start = buffer.fieldStart(i);
+			int length = buffer.fieldLength(start);
+			if(buffer.isModified(start) && length > 0){
+				out.put(ORDER_SET_BUFFER_ADDRESS);
+				putAddress(out, (start + 1) % total); // move to first character position of field
 
-    							// if i remember right this logic used a 2nd ebcdic buffer to check 
-    							// for modified characters, to reduce sending the trailing spaces
-//								if(ebcdicBuffer[i]!=0){
-//									b.put(ebcdicBuffer[i]);
-//									if(debug) {
-//										System.out.println("--> " + asciiBuffer[i] + " '" + (char)asciiBuffer[i] + "'");
-//									}
-//								}else{
-//									continue;
-//								}
-							} else {
-    							break;
-    						}
-    					}
-    				}
-    			}
+				// write all characters of field until next field or length is reached
+				for(int n=1;n<=length;n++){
+					put(out, codePage.encode(buffer.asciiAt((start + n) % total)));
+				}
 			}
 		}
-		
-		stream.write((byte)TelnetCommand.IAC);// telnet IAC
-		stream.write((byte)TelnetCommand.EOR);// telnet EOR option 239
-		
-		if(debug) {
-			System.out.println("--> " + TelnetCommand.IAC + " IAC");
-			System.out.println("--> " + TelnetCommand.EOR + " EOR");
-		}
-		
-		byte[] vals =stream.toByteArray();
+	}
 
-//		for(byte b:vals) {
-//			if(debug) {
-//				System.out.println((b & 0xFF));
-//			}
-//		}
-		
-		return vals;
-//        return stream.toByteArray();
-		
-//		ack = 0;// reset ack count
-//		awaitEor()
+	private static void putAddress(ByteBuffer out, int position) {
+		put(out, Tn3270Conversions.addressHigh(position));
+		put(out, Tn3270Conversions.addressLow(position));
+	}
+
+	private static void put(ByteBuffer out, byte b) {
+		out.put(b);
+		if(b == IAC) {
+			out.put(b);
+		}
 	}
-	
-	
 }
@@ -1,8 +1,11 @@
 package org.me.telnet.tn3270;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 import org.me.io.PeekableInputStream;
+import org.me.telnet.TelnetCommand;
 
 public class DataStreamParser {
     private static final byte CMD_WRITE = (byte) 0xF1;
@@ -29,112 +32,249 @@ public class DataStreamParser {
     private static final byte WCC_KEYBOARD_RESTORE = (byte) 0x02;
     private static final byte WCC_SOUND_ALARM = (byte) 0x04;
     
+    private static final int SF_READ_PARTITION = 0x01;
+    private static final int SF_ERASE_RESET = 0x03;
+    private static final int SF_OUTBOUND_3270DS = 0x40;
+    private static final int READ_PARTITION_QUERY = 0x02;
+    private static final int READ_PARTITION_QUERY_LIST = 0x03;
+    private static final int QUERY_LIST_CODES = 0x00;
+    
+    // dense order ids, so processOrder switches over 1..10 rather than scattered byte values
+    private static final byte SBA = 1;
+    private static final byte SF = 2;
+    private static final byte SFE = 3;
+    private static final byte SA = 4;
+    private static final byte IC = 5;
+    private static final byte PT = 6;
+    private static final byte RA = 7;
+    private static final byte EUA = 8;
+    private static final byte MF = 9;
+    private static final byte GE = 10;
+    
+    /**
+     * Command byte to its SNA code, 0 for anything that is not a command. Hosts
+     * attached as local (channel) terminals send the CCW codes, 0x01 for Write,
+     * 0x05 for Erase/Write and so on, so both sets map to the same command.
+     */
+    private static final byte[] COMMANDS = new byte[256];
+    private static final boolean[] WRITE_COMMANDS = new boolean[256];
+    // order byte to its id, 0 for data
+    private static final byte[] ORDERS = new byte[256];
+    // bytes that end a run of character data: every order and IAC
+    private static final boolean[] DATA_STOP = new boolean[256];
+    
+    static {
+        command(CMD_WRITE, 0x01, true);
+        command(CMD_ERASE_WRITE, 0x05, true);
+        command(CMD_ERASE_WRITE_ALTERNATE, 0x0D, true);
+        command(CMD_ERASE_ALL_UNPROTECTED, 0x0F, true);
+        command(CMD_READ_BUFFER, 0x02, false);
+        command(CMD_READ_MODIFIED, 0x06, false);
+        command(CMD_READ_MODIFIED_ALL, 0x0E, false);
+        command(CMD_WRITE_STRUCTURED_FIELD, 0x11, false);
+        
+        order(ORDER_SET_BUFFER_ADDRESS, SBA);
+        order(ORDER_START_FIELD, SF);
+        order(ORDER_START_FIELD_EXTENDED, SFE);
+        order(ORDER_SET_ATTRIBUTE, SA);
+        order(ORDER_INSERT_CURSOR, IC);
+        order(ORDER_PROGRAM_TAB, PT);
+        order(ORDER_REPEAT_TO_ADDRESS, RA);
+        order(ORDER_ERASE_UNPROTECTED_TO_ADDRESS, EUA);
+        order(ORDER_MODIFY_FIELD, MF);
+        order(ORDER_GRAPHICS_ESCAPE, GE);
+        DATA_STOP[TelnetCommand.IAC] = true;
+    }
+    
+    private static void command(byte sna, int local, boolean write) {
+        COMMANDS[sna & 0xFF] = sna;
+        COMMANDS[local] = sna;
+        WRITE_COMMANDS[sna & 0xFF] = write;
+        WRITE_COMMANDS[local] = write;
+    }
+    
+    private static void order(byte order, byte id) {
+        ORDERS[order & 0xFF] = id;
+        DATA_STOP[order & 0xFF] = true;
+    }
+    
     private ScreenBuffer buffer;
+    // null unless tracing is on, checked before every event
+    private TraceSink trace;
+    // where replies to the host's queries go, null while not connected
+    private OutputStream output;
+    
+    // record currently being parsed, orders read from data[position] up to limit
+    private byte[] data;
+    private int position;
+    private int limit;
+    
+    // reusable framing buffer for the stream based entry point
+    private byte[] streamRecord = new byte[4096];
+    private final byte[] peekByte = new byte[1];
     
     public DataStreamParser(ScreenBuffer buffer) {
         this.buffer = buffer;
     }
     
+    public TraceSink getTraceSink() {
+        return trace;
+    }
+    
+    /**
+     * Sends parse events to the sink, or stops tracing when null. Off by default.
+     */
+    public void setTraceSink(TraceSink trace) {
+        this.trace = trace;
+    }
+    
+    public OutputStream getOutputStream() {
+        return output;
+    }
+    
+    /**
+     * Sets the stream Query Replies are written to. Queries are ignored while it is null.
+     */
+    public void setOutputStream(OutputStream output) {
+        this.output = output;
+    }
+    
+    /**
+     * True for both the SNA and the local command codes.
+     */
     public boolean isCommand(byte b) {
-        return b == CMD_WRITE ||
-               b == CMD_ERASE_WRITE ||
-               b == CMD_ERASE_WRITE_ALTERNATE ||
-               b == CMD_ERASE_ALL_UNPROTECTED ||
-               b == CMD_READ_BUFFER ||
-               b == CMD_READ_MODIFIED ||
-               b == CMD_READ_MODIFIED_ALL ||
-               b == CMD_WRITE_STRUCTURED_FIELD;
+        return COMMANDS[b & 0xFF] != 0;
     }
     
     public boolean isWriteCommand(byte b) {
-        return b == CMD_WRITE ||
-               b == CMD_ERASE_WRITE ||
-               b == CMD_ERASE_WRITE_ALTERNATE ||
-               b == CMD_ERASE_ALL_UNPROTECTED;
+        return WRITE_COMMANDS[b & 0xFF];
     }
     
     public boolean isOrder(byte b) {
-        return b == ORDER_START_FIELD ||
-               b == ORDER_START_FIELD_EXTENDED ||
-               b == ORDER_SET_BUFFER_ADDRESS ||
-               b == ORDER_SET_ATTRIBUTE ||
-               b == ORDER_INSERT_CURSOR ||
-               b == ORDER_PROGRAM_TAB ||
-               b == ORDER_REPEAT_TO_ADDRESS ||
-               b == ORDER_ERASE_UNPROTECTED_TO_ADDRESS ||
-               b == ORDER_MODIFY_FIELD ||
-               b == ORDER_GRAPHICS_ESCAPE;
+        return ORDERS[b & 0xFF] != 0;
     }
     
+    /**
+     * Reads one record from the stream, up to and including IAC EOR or the end of
+     * the stream, and parses it. Data after the IAC EOR is left for the next call.
+     */
     public void parse(PeekableInputStream stream) throws IOException {
         if (stream == null) {
             return;
         }
         
+        int length = 0;
+        int b;
+        while ((b = stream.read()) != -1) {
+            if (b == TelnetCommand.IAC && stream.peek(peekByte, 0, 1) && (peekByte[0] & 0xFF) == TelnetCommand.EOR) {
+                stream.read();  // consume EOR
+                break;
+            }
+            if (length == streamRecord.length) {
+                streamRecord = Arrays.copyOf(streamRecord, length * 2);
+            }
+            streamRecord[length++] = (byte) b;
+        }
+        
+        parse(streamRecord, 0, length);
+    }
+    
+    /**
+     * Parses a single 3270 record held in {@code record[offset..offset+length)}.
+     * The slice should not include the IAC EOR terminator, one found in the
+     * slice ends the record early.
+     */
+    public void parse(byte[] record, int offset, int length) {
+        if (record == null) {
+            throw new NullPointerException("Record cannot be null");
+        }
+        if (offset < 0 || length < 0 || offset + length > record.length) {
+            throw new IndexOutOfBoundsException("Invalid offset or length");
+        }
+        
+        // waiters test their conditions under the same lock, so they never see half a record
+        buffer.recordLock().lock();
+        try {
+            parseRecord(record, offset, length);
+        } finally {
+            buffer.recordLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes unformatted character data, such as TN3270E SSCP-LU data, at the buffer
+     * position. Nothing in it is taken for a command or an order.
+     */
+    public void parseText(byte[] text, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > text.length) {
+            throw new IndexOutOfBoundsException("Invalid offset or length");
+        }
+        buffer.recordLock().lock();
+        try {
+            if (trace != null) {
+                trace.event(TraceSink.DATA, 0, buffer.getBufferPosition(), length);
+            }
+            buffer.pushEbcdic(text, offset, length);
+            buildFieldsFromBuffer();
+            buffer.endOfRecord();
+        } finally {
+            buffer.recordLock().unlock();
+        }
+    }
+    
+    private void parseRecord(byte[] record, int offset, int length) {
         // Clear existing fields before parsing new data stream
 //        buffer.clearFields();
         
-        byte[] peekByte = new byte[1];
-        if (!stream.peek(peekByte, 0, 1)) {
-        	System.out.println("No data to read");
+        if (trace != null) {
+            trace.event(TraceSink.RECORD, 0, 0, length);
+        }
+        if (length == 0) {
             return;  // No data available
-        } else {
-        	System.out.println("Data available to read: 0x" + String.format("%02X", peekByte[0] & 0xFF));
         }
         
-        // Get the first byte value as unsigned
-        int byteValue = peekByte[0] & 0xFF;
+        data = record;
+        position = offset;
+        limit = offset + length;
         
-       
-        // If byte value is less than 240 (0xF0) when expecting a command,
-        // it might be a corrupted command byte with high bits stripped
-        // 3270 commands are typically in the range 0xF0-0xFF
-        if (byteValue < 240) {
-            int correctedValue = byteValue + 240;
-            peekByte[0] = (byte) correctedValue;
-        }
-            
-        if (isCommand(peekByte[0])) {
-            byte command = (byte) stream.read();
-            if((command & 0xFF) < 240) {
-            	int correctedValue = (command & 0xFF) + 240;
-				command = (byte) correctedValue;
-			}
-            
-//            System.out.println("Processing as command: 0x" + String.format("%02X", command & 0xFF));
+        try {
+            // local command codes are handled from here on as their SNA equivalents
+            byte command = COMMANDS[data[position] & 0xFF];
             
-            if (isWriteCommand(command)) {
-                if (stream.peek(peekByte, 0, 1)) {
-                    byte wcc = (byte) stream.read();
-                    processWriteControlCharacter(command, wcc);
-                    processOrders(stream);
+            if (command != 0) {
+                position++;
+                
+                if (WRITE_COMMANDS[command & 0xFF]) {
+                    if (position < limit) {
+                        byte wcc = data[position++];
+                        processWriteControlCharacter(command, wcc);
+                        processOrders();
+                    }
+                } else {
+                    if (trace != null) {
+                        trace.event(TraceSink.COMMAND, command, 0, 0);
+                    }
+                    processCommand(command);
                 }
             } else {
-                processCommand(command, stream);
+                // If not a command, might be raw 3270 data stream or text
+                // Try to process as orders/text directly
+                processOrders();
             }
-        } else {
-            // If not a command, might be raw 3270 data stream or text
-            // Try to process as orders/text directly
-            System.out.println("Not recognized as command, processing as orders/text");
-            processOrders(stream);
+        } finally {
+            data = null;
         }
         
         // After processing all orders and data, build InputFields from the buffer
         buildFieldsFromBuffer();
+        buffer.endOfRecord();
     }
     
     public void processWriteControlCharacter(byte command, byte wcc) {
-    	String cmd = switch (command) {
-    	case CMD_WRITE -> "CMD_WRITE";
-    	case CMD_ERASE_WRITE -> "CMD_ERASE_WRITE";
-    	case CMD_ERASE_WRITE_ALTERNATE -> "CMD_ERASE_WRITE_ALTERNATE";
-    	case CMD_ERASE_ALL_UNPROTECTED -> "CMD_ERASE_ALL_UNPROTECTED";
-    	default -> "UNKNOWN";
-    	};
-    	
-    	System.out.println((command & 0xFF) + " " + cmd);
-    	System.out.println((wcc & 0xFF) + " WCC"); 	
-    	
+        if (trace != null) {
+            trace.event(TraceSink.COMMAND, command, 0, wcc & 0xFF);
+        }
+        
         if ((wcc & WCC_RESET_MDT) != 0) {
             resetModifiedDataTags();//null, 0);
         }
@@ -150,123 +290,221 @@ public class DataStreamParser {
         }
         
         if (command == CMD_ERASE_WRITE || command == CMD_ERASE_WRITE_ALTERNATE) {
-            buffer.clear();
+            buffer.erase(command == CMD_ERASE_WRITE_ALTERNATE);
         } else if (command == CMD_ERASE_ALL_UNPROTECTED) {
             eraseAllUnprotected();
         }
     }
     
-    private void processCommand(byte command, PeekableInputStream stream) throws IOException {
+    private void processCommand(byte command) {
         switch (command) {
             case CMD_READ_BUFFER:
             case CMD_READ_MODIFIED:
             case CMD_READ_MODIFIED_ALL:
                 break;
             case CMD_WRITE_STRUCTURED_FIELD:
-                processStructuredField(stream);
+                processStructuredField();
                 break;
         }
     }
     
-    private void processStructuredField(PeekableInputStream stream) throws IOException {
-        // Read structured field data from stream as needed
+    /**
+     * Processes the structured fields of a Write Structured Field record. Each starts with a
+     * two byte length, zero for the rest of the record, and a one byte identifier.
+     */
+    private void processStructuredField() {
+        int recordLimit = limit;
+        while (recordLimit - position >= 3) {
+            int length = ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+            if (length != 0 && length < 3) {
+                break;  // malformed, the rest of the record cannot be framed
+            }
+            int end = length == 0 ? recordLimit : Math.min(recordLimit, position + length);
+            int id = data[position + 2] & 0xFF;
+            position += 3;
+            limit = end;
+            try {
+                switch (id) {
+                    case SF_READ_PARTITION:
+                        processReadPartition();
+                        break;
+                    case SF_ERASE_RESET:
+                        buffer.erase((next() & 0x80) != 0);
+                        break;
+                    case SF_OUTBOUND_3270DS:
+                        processOutbound3270DS();
+                        break;
+                    default:
+                        // not supported, skipped
+                        break;
+                }
+            } finally {
+                limit = recordLimit;
+            }
+            position = end;
+        }
+    }
+    
+    private void processReadPartition() {
+        int partition = next();
+        int type = next();
+        // queries are addressed to partition X'FF', reads of the screen itself are not supported
+        if (partition != 0xFF) {
+            return;
+        }
+        if (type == READ_PARTITION_QUERY) {
+            sendQueryReply(null);
+        } else if (type == READ_PARTITION_QUERY_LIST) {
+            if (next() == QUERY_LIST_CODES) {
+                sendQueryReply(Arrays.copyOfRange(data, position, limit));
+            } else {
+                sendQueryReply(null);
+            }
+        }
+    }
+    
+    private void sendQueryReply(byte[] requested) {
+        OutputStream out = output;
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(QueryReply.build(buffer, requested));
+            out.flush();
+        } catch (IOException e) {
+            // the connection is closing, its reader or transport reports that
+        }
+    }
+    
+    /**
+     * A write to the implicit partition wrapped in a structured field.
+     */
+    private void processOutbound3270DS() {
+        next();  // partition id
+        int code = next();
+        if (code == -1) {
+            return;
+        }
+        byte command = COMMANDS[code];
+        if (command != 0 && WRITE_COMMANDS[command & 0xFF] && position < limit) {
+            processWriteControlCharacter(command, data[position++]);
+            processOrders();
+        }
     }
     
     private void eraseAllUnprotected() {
         buffer.eraseAllUnprotected();
     }
     
-    public void processOrders(PeekableInputStream stream) throws IOException {
-        byte[] peekByte = new byte[1];
-        while (stream.peek(peekByte, 0, 1)) {
+    private void processOrders() {
+        while (position < limit) {
             // Check for IAC,EOR sequence (End of Record marker in 3270)
-            if ((peekByte[0] & 0xFF) == 255) {  // IAC = 0xFF
-                byte[] nextBytes = new byte[2];
-                if (
-            		stream.peek(nextBytes, 0, 2) && // IAC
-            		nextBytes[1] != 0 && (nextBytes[1] & 0xFF) == 239 // EOR
-        		) {
-                    // Found IAC,EOR - end of 3270 data stream
-                    stream.read();  // consume IAC
-                    stream.read();  // consume EOR
-                    break;  // Exit the order processing loop
-                }
+            if (
+        		(data[position] & 0xFF) == TelnetCommand.IAC &&
+        		position + 1 < limit &&
+        		(data[position + 1] & 0xFF) == TelnetCommand.EOR
+    		) {
+                // Found IAC,EOR - end of 3270 data stream
+                position += 2;
+                break;  // Exit the order processing loop
             }
             
-            if (isOrder(peekByte[0])) {
-//            	System.out.println("Processing byte in orders: 0x" + String.format("%02X", peekByte[0] & 0xFF));
-                processOrder(stream);
+            if (ORDERS[data[position] & 0xFF] != 0) {
+                processOrder();
             } else {
-                processCharacter(stream);
+                processCharacters();
             }
         }
     }
     
+    /**
+     * Writes the run of plain data up to the next order or IAC into the screen in one go.
+     */
+    private void processCharacters() {
+        int start = position;
+        while (position < limit && !DATA_STOP[data[position] & 0xFF]) {
+            position++;
+        }
+        if (position == start) {
+            // an IAC that does not end the record is data
+            processCharacter();
+            return;
+        }
+        if (trace != null) {
+            trace.event(TraceSink.DATA, 0, buffer.getBufferPosition(), position - start);
+        }
+        buffer.pushEbcdic(data, start, position - start);
+    }
+    
     public void resetModifiedDataTags() {
         buffer.resetModifiedFlags();
     }
     
-    public void processOrder(PeekableInputStream stream) throws IOException {
-        byte order = (byte) stream.read();
+    private void processOrder() {
+        byte order = data[position++];
+        int operands = position;
         
-        switch (order) {
-            case ORDER_SET_BUFFER_ADDRESS:
-                System.out.println(order + " ORD_SBA");
-                processSetBufferAddress(stream);
+        switch (ORDERS[order & 0xFF]) {
+            case SBA:
+                processSetBufferAddress();
                 break;
-            case ORDER_START_FIELD:
-                System.out.println(order + " ORD_SF");
-                processStartField(stream);
+            case SF:
+                processStartField();
                 break;
-            case ORDER_START_FIELD_EXTENDED:
-                System.out.println(order + " ORD_SFE");
-                processStartFieldExtended(stream);
+            case SFE:
+                processStartFieldExtended();
                 break;
-            case ORDER_SET_ATTRIBUTE:
-                System.out.println(order + " ORD_SA");
-                processSetAttribute(stream);
+            case SA:
+                processSetAttribute();
                 break;
-            case ORDER_INSERT_CURSOR:
-                System.out.println(order + " ORD_IC");
-                processInsertCursor(stream);
+            case IC:
+                processInsertCursor();
                 break;
-            case ORDER_PROGRAM_TAB:
-                System.out.println(order + " ORD_PT");
-                processProgramTab(stream);
+            case PT:
+                processProgramTab();
                 break;
-            case ORDER_REPEAT_TO_ADDRESS:
-                System.out.println(order + " ORD_RA");
-                processRepeatToAddress(stream);
+            case RA:
+                processRepeatToAddress();
                 break;
-            case ORDER_ERASE_UNPROTECTED_TO_ADDRESS:
-                System.out.println(order + " ORD_EUA");
-                processEraseUnprotectedToAddress(stream);
+            case EUA:
+                processEraseUnprotectedToAddress();
                 break;
-            case ORDER_MODIFY_FIELD:
-                System.out.println(order + " ORD_MF");
-                processModifyField(stream);
+            case MF:
+                processModifyField();
                 break;
-            case ORDER_GRAPHICS_ESCAPE:
-                System.out.println(order + " ORD_GE");
-                processGraphicsEscape(stream);
+            case GE:
+                processGraphicsEscape();
                 break;
         }
+        
+        if (trace != null) {
+            traceOrder(order, operands);
+        }
     }
     
-    // Stream-based order processing methods
-    public void processSetBufferAddress(PeekableInputStream stream) throws IOException {
-        byte[] addressBytes = new byte[2];
-        if (stream.read(addressBytes, 0, 2) == 2) {
-            int address = decodeAddress(addressBytes[0], addressBytes[1]);
+    private void traceOrder(byte order, int operands) {
+        int count = Math.min(2, position - operands);
+        int value = count << 16;
+        if (count > 0) {
+            value |= (data[operands] & 0xFF) << 8;
+        }
+        if (count > 1) {
+            value |= data[operands + 1] & 0xFF;
+        }
+        trace.event(TraceSink.ORDER, order, buffer.getBufferPosition(), value);
+    }
+    
+    // Record-based order processing methods, operands are read from data[position]
+    private void processSetBufferAddress() {
+        if (readAddress()) {
+            int address = decodeAddress(data[position - 2], data[position - 1]);
 //            buffer.setBufferAddress(address);
             buffer.setBufferPosition(address);
         }
     }
     
-    public void processStartField(PeekableInputStream stream) throws IOException {
-        byte attributeByte = (byte) stream.read();
-        
-        System.out.println((attributeByte & 0xFF) + " Field Attribute");
+    private void processStartField() {
+        byte attributeByte = (byte) next();
         
 //        FieldAttribute attribute = new FieldAttribute(attributeByte);
 //        
@@ -281,13 +519,13 @@ public class DataStreamParser {
         buffer.incBufferPosition();
     }
     
-    public void processStartFieldExtended(PeekableInputStream stream) throws IOException {
-        int count = stream.read() & 0xFF;
+    private void processStartFieldExtended() {
+        int count = next() & 0xFF;
         byte attributeByte = 0;
         
         for (int i = 0; i < count; i++) {
-            byte type = (byte) stream.read();
-            byte value = (byte) stream.read();
+            byte type = (byte) next();
+            byte value = (byte) next();
             
             if (type == (byte) 0xC0) {
                 attributeByte = value;
@@ -306,9 +544,9 @@ public class DataStreamParser {
         buffer.incBufferPosition();
     }
     
-    public void processSetAttribute(PeekableInputStream stream) throws IOException {
-        byte type = (byte) stream.read();
-        byte value = (byte) stream.read();
+    private void processSetAttribute() {
+        byte type = (byte) next();
+        byte value = (byte) next();
         
         // Get current buffer position
 //        int currentAddress = buffer.getBufferAddress();
@@ -353,10 +591,7 @@ public class DataStreamParser {
 //                    if (field != null) {
 //                        field.attribute().highlighting(highlighting);
 //                    } else {
-                        FieldAttribute attr = buffer.getAttribute(currentAddress);
-                        if (attr != null) {
-                            attr.highlighting(highlighting);
-                        }
+                        buffer.setHighlighting(currentAddress, highlighting);
 //                    }
                 }
                 break;
@@ -394,43 +629,35 @@ public class DataStreamParser {
 //                    if (field != null) {
 //                        field.attribute().color(color);
 //                    } else {
-                        FieldAttribute attr = buffer.getAttribute(currentAddress);
-                        if (attr != null) {
-                            attr.color(color);
-                        }
+                        buffer.setColor(currentAddress, color);
 //                    }
                 }
                 break;
                 
             case (byte) 0x43: // Character set
                 // Character set selection - typically for APL, text, etc.
-                // For now, just log it
-                System.out.println("SA: Character set value: 0x" + Integer.toHexString(value & 0xFF));
+                // not supported, the order shows up in the trace with its type and value
                 break;
                 
             case (byte) 0x44: // Background color
                 // Background color - implementation depends on terminal capabilities
-                System.out.println("SA: Background color value: 0x" + Integer.toHexString(value & 0xFF));
                 break;
                 
             case (byte) 0x45: // Transparency
                 // Field transparency - implementation depends on terminal capabilities
-                System.out.println("SA: Transparency value: 0x" + Integer.toHexString(value & 0xFF));
                 break;
                 
             default:
                 // Unknown attribute type
-                System.out.println("SA: Unknown attribute type: 0x" + Integer.toHexString(type & 0xFF) 
-                    + " value: 0x" + Integer.toHexString(value & 0xFF));
                 break;
         }
     }
     
-    public void processInsertCursor(PeekableInputStream stream) throws IOException {
+    private void processInsertCursor() {
         buffer.setCursorPosition(buffer.getBufferPosition());
     }
     
-    public void processProgramTab(PeekableInputStream stream) throws IOException {
+    private void processProgramTab() {
         // Tab to next field
 //        buffer.moveCursorToNextUnprotectedField();
 //        buffer.moveBufferToNextUnprotectedField();
@@ -440,11 +667,10 @@ public class DataStreamParser {
         buffer.setBufferPosition(buffer.getCursorPosition());
     }
     
-    public void processRepeatToAddress(PeekableInputStream stream) throws IOException {
-        byte[] addressBytes = new byte[2];
-        if (stream.read(addressBytes, 0, 2) == 2) {
-            int endAddress = decodeAddress(addressBytes[0], addressBytes[1]);
-            byte repeatChar = (byte) stream.read();
+    private void processRepeatToAddress() {
+        if (readAddress()) {
+            int endAddress = decodeAddress(data[position - 2], data[position - 1]);
+            byte repeatChar = (byte) next();
             
             while(buffer.getBufferPosition() > endAddress) {
 				buffer.pushEbcdic(repeatChar);
@@ -461,10 +687,9 @@ public class DataStreamParser {
         }
     }
     
-    public void processEraseUnprotectedToAddress(PeekableInputStream stream) throws IOException {
-        byte[] addressBytes = new byte[2];
-        if (stream.read(addressBytes, 0, 2) == 2) {
-            int endAddress = decodeAddress(addressBytes[0], addressBytes[1]);
+    private void processEraseUnprotectedToAddress() {
+        if (readAddress()) {
+            int endAddress = decodeAddress(data[position - 2], data[position - 1]);
             
             
             // todo:
@@ -485,10 +710,12 @@ public class DataStreamParser {
         }
     }
     
-    public void processModifyField(PeekableInputStream stream) throws IOException {
+    private void processModifyField() {
         // Read the count of attribute type/value pairs
-        int count = stream.read() & 0xFF;
+        int count = next() & 0xFF;
         
+        // skip the type/value pairs so they are not taken for character data
+        position = Math.min(limit, position + count * 2);
         
         // todo: 
         
@@ -634,11 +861,11 @@ public class DataStreamParser {
 //        System.out.println("MF: Modified field at address " + currentAddress);
     }
     
-    public void processGraphicsEscape(PeekableInputStream stream) throws IOException {
+    private void processGraphicsEscape() {
         // Read the graphics character byte that follows the GE order
-        int graphicsByte = stream.read();
+        int graphicsByte = next();
         if (graphicsByte == -1) {
-            return; // End of stream
+            return; // End of record
         }
         
         // The graphics character is typically not converted through EBCDIC
@@ -647,11 +874,6 @@ public class DataStreamParser {
         char graphicsChar = (char) (graphicsByte & 0xFF);
         
         buffer.pushEbcdic((byte) graphicsByte);
-        
-        // Get current buffer position
-        int currentAddress = buffer.getBufferPosition();
-        int row = (currentAddress / buffer.getCols()) + 1;
-        int col = (currentAddress % buffer.getCols()) + 1;
 //        
 //        
 //        // Place the graphics character at the current buffer position
@@ -659,32 +881,42 @@ public class DataStreamParser {
 //        
 //        // Move bufer to the next position after placing the character
 //        buffer.moveBufferRight();
-        
-        // Debug output if needed
-        System.out.println("GE: Placed graphics char 0x" + Integer.toHexString(graphicsByte & 0xFF) 
-            + " at row " + row + ", col " + col);
     }
     
-    public void processCharacter(PeekableInputStream stream) throws IOException {
-        int ch = stream.read();
+    private void processCharacter() {
+        int ch = next();
         if (ch != -1) {
-            char displayChar =  Tn3270Conversions.ebcdicToAscii(ch);
-            
-            System.out.println(ch + " " + displayChar);
-            
+            if (trace != null) {
+                trace.event(TraceSink.DATA, 0, buffer.getBufferPosition(), 1);
+            }
             buffer.pushEbcdic((byte) ch);
         }
     }
     
+    private int next() {
+        return position < limit ? data[position++] & 0xFF : -1;
+    }
+    
+    private boolean readAddress() {
+        if (limit - position < 2) {
+            position = limit;  // truncated order, nothing sensible left in this record
+            return false;
+        }
+        position += 2;
+        return true;
+    }
+    
     public int decodeAddress(byte high, byte low) {
         int h = high & 0xFF;
         int l = low & 0xFF;
         
-        int address = ((h & 0x3F) << 6) | (l & 0x3F);
-        
-        System.out.println(h + " high");
-        System.out.println(l + " low");
-        System.out.println(address + " final pos");
+        int address;
+        if ((h & 0xC0) == 0) {
+            // 14-bit binary address, used for screens beyond 4096 positions
+            address = ((h & 0x3F) << 8) | l;
+        } else {
+            address = ((h & 0x3F) << 6) | (l & 0x3F);
+        }
         
         return address;
     }
@@ -701,7 +933,7 @@ public class DataStreamParser {
      * and all field attributes and character data have been written to the buffer.
      */
     public void buildFieldsFromBuffer() {
-    	System.out.println("Building fields from buffer");
+    	buffer.rebuildFieldExtents();
 //    	if(1==1) {
 //			return;
 //		}
@@ -782,7 +1014,7 @@ public class DataStreamParser {
 //            int col = (currentPosition % buffer.getCols());
             
 //            if (buffer.getAttribute(row, col) != null) {
-        	if (buffer.getAttribute(currentPosition) != null) {
+        	if (buffer.isFieldStart(currentPosition)) {
                 return currentPosition;
             }
             
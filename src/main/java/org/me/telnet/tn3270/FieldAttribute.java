@@ -1,11 +1,11 @@
 package org.me.telnet.tn3270;
 
 public class FieldAttribute {
-    private static final byte PROTECTED_MASK = 0x20;
-    private static final byte NUMERIC_MASK = 0x10;
-    private static final byte DISPLAY_MASK = 0x0C;
-    private static final byte MODIFIED_MASK = 0x01;
-    private static final byte AUTOSKIP_MASK = 0x30;
+    static final byte PROTECTED_MASK = 0x20;
+    static final byte NUMERIC_MASK = 0x10;
+    static final byte DISPLAY_MASK = 0x0C;
+    static final byte MODIFIED_MASK = 0x01;
+    static final byte AUTOSKIP_MASK = 0x30;
     
     private FieldType type;
     private FieldIntensity intensity;
@@ -112,6 +112,10 @@ public class FieldAttribute {
         return type == FieldType.UNPROTECTED;
     }
     
+    public boolean isProtected() {
+        return type != FieldType.UNPROTECTED;
+    }
+    
     public boolean isAutoSkip() {
         return autoSkip || type == FieldType.SKIP_PROTECTED;
     }
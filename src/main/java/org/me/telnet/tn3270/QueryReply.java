@@ -0,0 +1,142 @@
+package org.me.telnet.tn3270;
+
+import java.io.ByteArrayOutputStream;
+
+import org.me.telnet.TelnetCommand;
+
+/**
+ * Builds the inbound Query Reply record a host asks for with Read Partition Query. It
+ * describes the screen sizes of the session's {@link ScreenBuffer} and the colors,
+ * highlighting and character set the emulator supports, which is what lets a host
+ * use the alternate screen of models larger than 24x80.
+ */
+final class QueryReply {
+    static final byte AID_STRUCTURED_FIELD = (byte) 0x88;
+    static final byte SF_QUERY_REPLY = (byte) 0x81;
+
+    static final byte SUMMARY = (byte) 0x80;
+    static final byte USABLE_AREA = (byte) 0x81;
+    static final byte CHARACTER_SETS = (byte) 0x85;
+    static final byte COLOR = (byte) 0x86;
+    static final byte HIGHLIGHTING = (byte) 0x87;
+    static final byte IMPLICIT_PARTITION = (byte) 0xA6;
+
+    // replies in the order they are sent, the summary lists them all
+    private static final byte[] SUPPORTED = {
+        SUMMARY, USABLE_AREA, CHARACTER_SETS, COLOR, HIGHLIGHTING, IMPLICIT_PARTITION
+    };
+
+    private QueryReply() {
+    }
+
+    /**
+     * @param requested query codes from a Query List, or null for every reply
+     * @return the record, IAC doubled and ending in IAC EOR
+     */
+    static byte[] build(ScreenBuffer buffer, byte[] requested) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        record.write(AID_STRUCTURED_FIELD);
+        for (byte code : SUPPORTED) {
+            // the summary always goes, a host reads the rest of the reply through it
+            if (code == SUMMARY || requested == null || contains(requested, code)) {
+                writeEscaped(record, reply(buffer, code));
+            }
+        }
+        record.write(TelnetCommand.IAC);
+        record.write(TelnetCommand.EOR);
+        return record.toByteArray();
+    }
+
+    private static byte[] reply(ScreenBuffer buffer, byte code) {
+        switch (code) {
+            case SUMMARY:
+                return field(code, SUPPORTED);
+            case USABLE_AREA:
+                int cols = buffer.getAlternateCols();
+                int rows = buffer.getAlternateRows();
+                int cells = rows * cols;
+                return field(code, new byte[] {
+                    0x01, 0x00,                           // 12 and 14 bit addressing
+                    (byte) (cols >> 8), (byte) cols,
+                    (byte) (rows >> 8), (byte) rows,
+                    0x01,                                 // millimetres
+                    0x00, 0x0A, 0x02, (byte) 0xE5,        // horizontal and vertical
+                    0x00, 0x02, 0x00, 0x6F,               // distance between points
+                    0x09, 0x0C,                           // character cell 9x12
+                    (byte) (cells >> 8), (byte) cells
+                });
+            case CHARACTER_SETS:
+                int cpgid = buffer.getCodePage().getCcsid();
+                // character set 695 is 697 plus the euro sign
+                int gcsgid = cpgid == 1140 ? 695 : 697;
+                return field(code, new byte[] {
+                    (byte) 0x82, 0x00,                    // graphic escape, CGCSGIDs present
+                    0x09, 0x0C,                           // default character cell
+                    0x00, 0x00, 0x00, 0x00,               // no loadable formats
+                    0x07,                                 // descriptor length
+                    0x00, 0x10, 0x00,                     // base set, not loadable
+                    (byte) (gcsgid >> 8), (byte) gcsgid,
+                    (byte) (cpgid >> 8), (byte) cpgid,
+                    0x01, 0x00, (byte) 0xF1,              // graphic escape set
+                    0x03, (byte) 0xC3, 0x01, 0x36         // CGCSGID 963/310
+                });
+            case COLOR:
+                return field(code, new byte[] {
+                    0x00, 0x08,
+                    0x00, (byte) 0xF4,                    // default is green
+                    (byte) 0xF1, (byte) 0xF1, (byte) 0xF2, (byte) 0xF2,
+                    (byte) 0xF3, (byte) 0xF3, (byte) 0xF4, (byte) 0xF4,
+                    (byte) 0xF5, (byte) 0xF5, (byte) 0xF6, (byte) 0xF6,
+                    (byte) 0xF7, (byte) 0xF7
+                });
+            case HIGHLIGHTING:
+                return field(code, new byte[] {
+                    0x04,
+                    0x00, (byte) 0xF0,                    // default is normal
+                    (byte) 0xF1, (byte) 0xF1,             // blink
+                    (byte) 0xF2, (byte) 0xF2,             // reverse
+                    (byte) 0xF4, (byte) 0xF4              // underscore
+                });
+            case IMPLICIT_PARTITION:
+                return field(code, new byte[] {
+                    0x00, 0x00,
+                    0x0B, 0x01, 0x00,                     // implicit partition sizes
+                    (byte) (buffer.getDefaultCols() >> 8), (byte) buffer.getDefaultCols(),
+                    (byte) (buffer.getDefaultRows() >> 8), (byte) buffer.getDefaultRows(),
+                    (byte) (buffer.getAlternateCols() >> 8), (byte) buffer.getAlternateCols(),
+                    (byte) (buffer.getAlternateRows() >> 8), (byte) buffer.getAlternateRows()
+                });
+            default:
+                throw new IllegalArgumentException("Unsupported query code " + (code & 0xFF));
+        }
+    }
+
+    private static byte[] field(byte code, byte[] body) {
+        int length = 4 + body.length;
+        byte[] field = new byte[length];
+        field[0] = (byte) (length >> 8);
+        field[1] = (byte) length;
+        field[2] = SF_QUERY_REPLY;
+        field[3] = code;
+        System.arraycopy(body, 0, field, 4, body.length);
+        return field;
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream record, byte[] field) {
+        for (byte b : field) {
+            record.write(b);
+            if ((b & 0xFF) == TelnetCommand.IAC) {
+                record.write(b);
+            }
+        }
+    }
+
+    private static boolean contains(byte[] codes, byte code) {
+        for (byte c : codes) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
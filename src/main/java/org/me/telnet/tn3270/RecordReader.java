@@ -0,0 +1,126 @@
+package org.me.telnet.tn3270;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.me.telnet.TelnetCommand;
+
+/**
+ * Frames the telnet-decoded host stream into 3270 records.
+ * Each call to {@link #readRecord()} blocks until a whole record terminated by
+ * IAC EOR has arrived, so callers can parse as soon as the host finishes a write
+ * instead of polling the stream.
+ */
+public class RecordReader {
+	private static final int DEFAULT_CHUNK_SIZE = 8192;
+	private static final int DEFAULT_RECORD_SIZE = 4096;
+
+	private final InputStream in;
+	private final byte[] chunk;
+	private int chunkPosition;
+	private int chunkLength;
+
+	private byte[] record;
+	private int recordLength;
+	private boolean recordComplete;
+	private boolean pendingIac;
+
+	public RecordReader(InputStream in) {
+		this(in, DEFAULT_CHUNK_SIZE);
+	}
+
+	public RecordReader(InputStream in, int chunkSize) {
+		if (in == null) {
+			throw new NullPointerException("Input stream cannot be null");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		this.in = in;
+		this.chunk = new byte[chunkSize];
+		this.record = new byte[DEFAULT_RECORD_SIZE];
+	}
+
+	/**
+	 * Reads the next record into the internal record buffer.
+	 * If the stream's read timeout expires the exception propagates and the bytes
+	 * received so far are kept, so calling again resumes the same record.
+	 * @return the record length, without the IAC EOR terminator, or -1 at end of stream
+	 */
+	public int readRecord() throws IOException {
+		if (recordComplete) {
+			recordComplete = false;
+			recordLength = 0;
+		}
+
+		while (true) {
+			if (chunkPosition >= chunkLength) {
+				int bytesRead = in.read(chunk, 0, chunk.length);
+				chunkPosition = 0;
+				chunkLength = Math.max(bytesRead, 0);
+				if (bytesRead <= 0) {
+					if (pendingIac) {
+						pendingIac = false;
+						append((byte) TelnetCommand.IAC);
+					}
+					// hand over a trailing record the host never terminated
+					recordComplete = true;
+					return recordLength > 0 ? recordLength : -1;
+				}
+			}
+
+			if (pendingIac) {
+				pendingIac = false;
+				if ((chunk[chunkPosition] & 0xFF) == TelnetCommand.EOR) {
+					chunkPosition++;
+					recordComplete = true;
+					return recordLength;
+				}
+				// a lone IAC is data, the telnet layer has already undoubled IAC IAC
+				append((byte) TelnetCommand.IAC);
+				continue;
+			}
+
+			// copy the run of data bytes up to the next IAC in one go
+			int runStart = chunkPosition;
+			while (chunkPosition < chunkLength && (chunk[chunkPosition] & 0xFF) != TelnetCommand.IAC) {
+				chunkPosition++;
+			}
+			append(chunk, runStart, chunkPosition - runStart);
+
+			if (chunkPosition < chunkLength) {
+				chunkPosition++;  // consume the IAC and decide on the next byte
+				pendingIac = true;
+			}
+		}
+	}
+
+	public byte[] record() {
+		return record;
+	}
+
+	public int length() {
+		return recordLength;
+	}
+
+	private void append(byte b) {
+		ensureCapacity(recordLength + 1);
+		record[recordLength++] = b;
+	}
+
+	private void append(byte[] source, int offset, int length) {
+		if (length > 0) {
+			ensureCapacity(recordLength + length);
+			System.arraycopy(source, offset, record, recordLength, length);
+			recordLength += length;
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > record.length) {
+			byte[] grown = new byte[Math.max(capacity, record.length * 2)];
+			System.arraycopy(record, 0, grown, 0, recordLength);
+			record = grown;
+		}
+	}
+}
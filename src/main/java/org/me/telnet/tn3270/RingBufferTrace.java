@@ -0,0 +1,159 @@
+package org.me.telnet.tn3270;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent trace events of a session in a fixed ring of packed longs.
+ * Recording an event is a counter increment and an array store, with no locking or
+ * allocation; events are only turned into text when {@link #dump} is called.
+ * <p>
+ * A dump taken while the session is still parsing may show a few events from the
+ * next lap of the ring in place of older ones.
+ */
+public final class RingBufferTrace implements TraceSink {
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicLongArray events;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    public RingBufferTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    public RingBufferTrace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        events = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    @Override
+    public void event(int type, int code, int address, int value) {
+        long packed = ((long) (type & 0xFF) << 56)
+            | ((long) (code & 0xFF) << 48)
+            | ((long) (address & 0xFFFFFF) << 24)
+            | (value & 0xFFFFFFL);
+        events.lazySet((int) (next.getAndIncrement() & mask), packed);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return how many events have been recorded, including those the ring has dropped
+     */
+    public long getEventCount() {
+        return next.get();
+    }
+
+    public void clear() {
+        next.set(0);
+    }
+
+    /**
+     * Formats the retained events, oldest first, one per line.
+     */
+    public void dump(Appendable out) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - events.length());
+        for (long i = start; i < end; i++) {
+            format(events.get((int) (i & mask)), out);
+            out.append('\n');
+        }
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            dump(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    private static void format(long event, Appendable out) throws IOException {
+        int type = (int) (event >>> 56) & 0xFF;
+        int code = (int) (event >>> 48) & 0xFF;
+        int address = (int) (event >>> 24) & 0xFFFFFF;
+        int value = (int) event & 0xFFFFFF;
+        switch (type) {
+            case RECORD:
+                out.append("RECORD length=").append(Integer.toString(value));
+                break;
+            case COMMAND:
+                out.append("COMMAND ").append(commandName(code))
+                    .append(" WCC=").append(hex(value));
+                break;
+            case ORDER:
+                out.append("ORDER ").append(orderName(code))
+                    .append(" at ").append(Integer.toString(address));
+                int operands = value >>> 16;
+                if (operands > 0) {
+                    out.append(" operands=").append(hex(value >>> 8));
+                    if (operands > 1) {
+                        out.append(hex(value));
+                    }
+                }
+                break;
+            case DATA:
+                out.append("DATA at ").append(Integer.toString(address))
+                    .append(" length=").append(Integer.toString(value));
+                break;
+            default:
+                out.append("EVENT ").append(Integer.toString(type))
+                    .append(' ').append(hex(code))
+                    .append(' ').append(Integer.toString(address))
+                    .append(' ').append(Integer.toString(value));
+                break;
+        }
+    }
+
+    private static String commandName(int command) {
+        switch (command) {
+            case 0xF1: return "W";
+            case 0xF5: return "EW";
+            case 0x7E: return "EWA";
+            case 0x6F: return "EAU";
+            case 0xF2: return "RB";
+            case 0xF6: return "RM";
+            case 0x6E: return "RMA";
+            case 0xF3: return "WSF";
+            default: return hex(command);
+        }
+    }
+
+    private static String orderName(int order) {
+        switch (order) {
+            case 0x11: return "SBA";
+            case 0x1D: return "SF";
+            case 0x29: return "SFE";
+            case 0x28: return "SA";
+            case 0x13: return "IC";
+            case 0x05: return "PT";
+            case 0x3C: return "RA";
+            case 0x12: return "EUA";
+            case 0x2C: return "MF";
+            case 0x08: return "GE";
+            default: return hex(order);
+        }
+    }
+
+    private static String hex(int b) {
+        String s = Integer.toHexString(b & 0xFF).toUpperCase();
+        return s.length() == 1 ? "0" + s : s;
+    }
+}
@@ -3,6 +3,7 @@ package org.me.telnet.tn3270;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 
 public class Screen {
     private ScreenBuffer buffer;
@@ -20,9 +21,7 @@ public class Screen {
     
     public void sendCommandKey(CommandKey key) throws IOException {
         if (outputStream != null) {
-            byte[] data = builder.build(key.getValue());
-            outputStream.write(data);
-            outputStream.flush();
+            builder.send(key.getValue(), outputStream);
         } else {
         	System.out.println("Output stream is not set. Cannot send command key.");
         }
@@ -342,6 +341,41 @@ public class Screen {
     	return buffer.getAttribute(cursorPosition);
     }
     
+    /**
+     * Blocks until {@code condition} holds or the timeout expires. The condition is tested
+     * now and again each time the host finishes writing a record, never while a record is
+     * half applied. Waiting also ends when the session's connection does.
+     *
+     * @return true if the condition holds, false if the timeout expired or the session
+     *         closed first
+     */
+    public boolean waitFor(ScreenCondition condition, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        buffer.recordLock().lock();
+        try {
+            while (!condition.test(this)) {
+                if (remaining <= 0 || buffer.isSessionClosed()) {
+                    return false;
+                }
+                remaining = buffer.recordEnded().awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            buffer.recordLock().unlock();
+        }
+    }
+    
+    /**
+     * Registers a listener told about the rows and fields each host record changed.
+     */
+    public void addChangeListener(ScreenChangeListener listener) {
+        buffer.addChangeListener(listener);
+    }
+    
+    public void removeChangeListener(ScreenChangeListener listener) {
+        buffer.removeChangeListener(listener);
+    }
+    
     public ScreenBuffer getBuffer() {
         return buffer;
     }
@@ -1,8 +1,11 @@
 package org.me.telnet.tn3270;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ScreenBuffer {
 	private static final int DEFAULT_ROWS = 24;
@@ -12,12 +15,51 @@ public class ScreenBuffer {
     private int cols;
     private int total;
     
+    // Erase/Write selects the default size, Erase/Write Alternate the alternate size of the
+    // terminal model, e.g. 24x80 and 27x132 for a 3278 model 5
+    private int defaultRows;
+    private int defaultCols;
+    private int alternateRows;
+    private int alternateCols;
+    private boolean alternate;
+    
+    private static final int NO_FIELD = -1;
+    
+    // one slot per cell: the raw attribute byte (set at field starts, or per cell on an
+    // unformatted screen), the extended color and highlighting packed as two ordinals,
+    // and the displayed character
     private char[] asciiBuffer;
-    private FieldAttribute[] attributeBuffer;
-    private Integer[] fieldBuffer;
+    private byte[] attributeBuffer;
+    private byte[] extendedBuffer;
+    
+    // field extents: for every cell the position of the field attribute governing it and
+    // the last data cell of that field, or NO_FIELD on an unformatted screen. A field start
+    // always maps to itself, the rest of the table is rebuilt once the fields change
+    private int[] fieldBuffer;
+    private int[] fieldEndBuffer;
+    private boolean extentsValid;
+    
+    private int currentField;
+    
+    // sorted field attribute positions, and the subset that accepts input,
+    // kept up to date as fields are started, overwritten and cleared
+    private PositionIndex fieldStarts;
+    private PositionIndex inputFieldStarts;
+    
+    // one bit per cell written by the host since the last published change set
+    private long[] dirtyCells;
+    private boolean dirty;
+    private boolean cleared;
+    private final List<ScreenChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    
+    // held while a record is applied, waiters are signalled at the end of every record.
+    // a lock rather than a monitor so waiting virtual threads do not pin their carriers
+    private final ReentrantLock recordLock = new ReentrantLock();
+    private final Condition recordEnded = recordLock.newCondition();
+    // set once the session's connection has ended, no further records will come
+    private volatile boolean sessionClosed;
     
-    private Integer currentField;
-    private FieldAttribute currentAttribute;
+    private volatile CodePage codePage = CodePage.CP037;
     
     private int cursorPosition;
     private int bufferPosition;
@@ -31,17 +73,82 @@ public class ScreenBuffer {
 	}
     
     public ScreenBuffer(int rows, int cols) {
+		this(rows, cols, rows, cols);
+    }
+    
+    /**
+     * Creates a buffer for a terminal model with a larger alternate screen. The buffer starts
+     * at the default size and switches on each Erase/Write or Erase/Write Alternate.
+     */
+    public ScreenBuffer(int rows, int cols, int alternateRows, int alternateCols) {
+		if(rows <= 0 || cols <= 0 || alternateRows <= 0 || alternateCols <= 0) {
+			throw new IllegalArgumentException("Screen size must be positive");
+		}
+		this.defaultRows = rows;
+		this.defaultCols = cols;
+		this.alternateRows = alternateRows;
+		this.alternateCols = alternateCols;
+		this.fieldStarts = new PositionIndex();
+		this.inputFieldStarts = new PositionIndex();
+		
+		resize(rows, cols);
+		resetChanges();
+    }
+    
+    private void resize(int rows, int cols) {
 		this.rows = rows;
 		this.cols = cols;
-		this.total = rows * cols;
-		
-		this.asciiBuffer = new char[total];
-		this.attributeBuffer = new FieldAttribute[total];
-		this.fieldBuffer = new Integer[total];
-		
+		if(asciiBuffer == null || asciiBuffer.length != rows * cols) {
+			this.total = rows * cols;
+			this.asciiBuffer = new char[total];
+			this.attributeBuffer = new byte[total];
+			this.extendedBuffer = new byte[total];
+			this.fieldBuffer = new int[total];
+			this.fieldEndBuffer = new int[total];
+			this.dirtyCells = new long[(total + 63) >>> 6];
+		}
 		clear();
     }
     
+    /**
+     * Clears the screen and switches it to the default or the alternate size.
+     */
+    public void erase(boolean alternate) {
+		this.alternate = alternate;
+		if(alternate) {
+			resize(alternateRows, alternateCols);
+		} else {
+			resize(defaultRows, defaultCols);
+		}
+    }
+    
+    /**
+     * Sets the sizes Erase/Write and Erase/Write Alternate switch to. The alternate size is
+     * that of the terminal model unless a BIND says otherwise. Takes effect with the host's
+     * next erase.
+     */
+    public void setDefaultSize(int rows, int cols) {
+		if(rows <= 0 || cols <= 0) {
+			throw new IllegalArgumentException("Screen size must be positive");
+		}
+		this.defaultRows = rows;
+		this.defaultCols = cols;
+    }
+    
+    public void setAlternateSize(int rows, int cols) {
+		if(rows <= 0 || cols <= 0) {
+			throw new IllegalArgumentException("Screen size must be positive");
+		}
+		this.alternateRows = rows;
+		this.alternateCols = cols;
+    }
+    
+    public boolean isAlternate() {return alternate;}
+    public int getDefaultRows() {return defaultRows;}
+    public int getDefaultCols() {return defaultCols;}
+    public int getAlternateRows() {return alternateRows;}
+    public int getAlternateCols() {return alternateCols;}
+    
     public void setKeyboardLocked(boolean locked) {
 		this.keyboardLocked = locked;
 	}
@@ -57,14 +164,67 @@ public class ScreenBuffer {
     public void setCurrentField(int position) {
 		this.currentField = position;
     }
-    public Integer getCurrentField() {return currentField;}
+    public int getCurrentField() {return currentField;}
     
     public void startField(int position, byte attribute) {
     	this.hasFields = true;
     	this.currentField = position;
-    	this.currentAttribute = new FieldAttribute(attribute);
-    	this.attributeBuffer[position] = currentAttribute;
+    	this.attributeBuffer[position] = attribute;
+    	this.extendedBuffer[position] = 0;
     	this.fieldBuffer[position] = position;
+    	this.extentsValid = false;
+    	markDirty(position);
+    	
+    	fieldStarts.add(position);
+    	if((attribute & FieldAttribute.PROTECTED_MASK) == 0) {
+    		inputFieldStarts.add(position);
+    	} else {
+    		inputFieldStarts.remove(position);
+    	}
+    }
+    
+    private void removeField(int position) {
+    	fieldStarts.remove(position);
+    	inputFieldStarts.remove(position);
+    	attributeBuffer[position] = 0;
+    	extendedBuffer[position] = 0;
+    	fieldBuffer[position] = NO_FIELD;
+    	extentsValid = false;
+    	hasFields = fieldStarts.size() > 0;
+    }
+    
+    /**
+     * Recomputes the field extent table from the field starts. The parser calls this once
+     * at the end of every inbound record, queries made after a later change rebuild it on
+     * first use.
+     */
+    public void rebuildFieldExtents() {
+    	int count = fieldStarts.size();
+    	if(count == 0) {
+    		Arrays.fill(fieldBuffer, NO_FIELD);
+    		Arrays.fill(fieldEndBuffer, NO_FIELD);
+    	} else {
+    		for(int i=0;i<count;i++) {
+    			int start = fieldStarts.get(i);
+    			// the last field runs around the end of the screen up to the first one
+    			int next = i + 1 < count ? fieldStarts.get(i + 1) : fieldStarts.get(0) + total;
+    			int end = next - 1;
+    			fillExtent(start, Math.min(next, total), start, end % total);
+    			if(next > total) {
+    				fillExtent(0, next - total, start, end % total);
+    			}
+    		}
+    	}
+    	extentsValid = true;
+    }
+    private void fillExtent(int from, int to, int start, int end) {
+    	Arrays.fill(fieldBuffer, from, to, start);
+    	Arrays.fill(fieldEndBuffer, from, to, end);
+    }
+    private void ensureExtents() {
+    	if(!extentsValid) {
+    		rebuildFieldExtents();
+    	}
     }
     public boolean hasFields() {return hasFields;}
     
@@ -73,12 +233,91 @@ public class ScreenBuffer {
 	}
     public void setCursorPosition(int position) { cursorPosition = position; }
 
+    /**
+     * Decodes the attribute that applies at {@code position}: the owning field's
+     * attribute, or the cell's own on an unformatted screen. The result is a copy,
+     * use the setters on this class to change the buffer.
+     */
     public FieldAttribute getAttribute(int position) {
-    	return (attributeBuffer[position]==null?new FieldAttribute():attributeBuffer[position]);// just return default if null
+    	int index = attributeIndex(position);
+    	int extended = extendedBuffer[index];
+    	return new FieldAttribute(attributeBuffer[index])
+    		.color(FieldColor.values()[(extended >> 4) & 0x0F])
+    		.highlighting(FieldHighlighting.values()[extended & 0x0F]);
     }
-    public Integer getField(int position) {
+    /**
+     * @return the position of the field attribute owning {@code position}, or -1 if none
+     */
+    public int getField(int position) {
+    	ensureExtents();
 		return fieldBuffer[position];
 	}
+    /**
+     * @return the last data position of the field governing {@code position}, which is the
+     *         attribute position itself for an empty field, or -1 if there are no fields
+     */
+    public int getFieldEnd(int position) {
+    	ensureExtents();
+    	return fieldEndBuffer[position];
+    }
+    public boolean isFieldStart(int position) {
+    	return fieldBuffer[position] == position;
+    }
+    public boolean isModified(int position) {
+    	return (attributeBuffer[attributeIndex(position)] & FieldAttribute.MODIFIED_MASK) != 0;
+    }
+    public void setModified(int position, boolean modified) {
+    	int index = attributeIndex(position);
+    	if(modified) {
+    		attributeBuffer[index] |= FieldAttribute.MODIFIED_MASK;
+    	} else {
+    		attributeBuffer[index] &= ~FieldAttribute.MODIFIED_MASK;
+    	}
+    }
+    public void setColor(int position, FieldColor color) {
+    	int index = attributeIndex(position);
+    	markDirty(index);
+    	extendedBuffer[index] = (byte) ((color.ordinal() << 4) | (extendedBuffer[index] & 0x0F));
+    }
+    public void setHighlighting(int position, FieldHighlighting highlighting) {
+    	int index = attributeIndex(position);
+    	markDirty(index);
+    	extendedBuffer[index] = (byte) ((extendedBuffer[index] & 0xF0) | highlighting.ordinal());
+    }
+    
+    private int attributeIndex(int position) {
+    	// while a record is being parsed the table is stale, fall back to the index
+    	int field = extentsValid ? fieldBuffer[position] : fieldStartAt(position);
+    	return field == NO_FIELD ? position : field;
+    }
+    private boolean isProtected(int position) {
+    	return (attributeBuffer[attributeIndex(position)] & FieldAttribute.PROTECTED_MASK) != 0;
+    }
+    private boolean isAutoSkip(int position) {
+    	return (attributeBuffer[attributeIndex(position)] & FieldAttribute.AUTOSKIP_MASK) == FieldAttribute.AUTOSKIP_MASK;
+    }
+    private boolean isNumeric(int position) {
+    	return (attributeBuffer[attributeIndex(position)] & FieldAttribute.NUMERIC_MASK) != 0;
+    }
+    private boolean isVisible(int position) {
+    	// display bits 10 and 11 are non-display
+    	return (attributeBuffer[attributeIndex(position)] & 0x08) == 0;
+    }
+    
+    public CodePage getCodePage() {
+    	return codePage;
+    }
+    
+    /**
+     * Sets the code page host data is decoded with and input encoded with, CCSID 037 by
+     * default. Characters already on the screen are not converted.
+     */
+    public void setCodePage(CodePage codePage) {
+    	if(codePage == null) {
+    		throw new NullPointerException("Code page cannot be null");
+    	}
+    	this.codePage = codePage;
+    }
     
     public int getCols() {return cols;}
     public int getRows() {return rows;}
@@ -89,63 +328,100 @@ public class ScreenBuffer {
     
     public void clear() {
     	Arrays.fill(asciiBuffer, ' ');
-    	Arrays.fill(attributeBuffer, null);
-    	Arrays.fill(fieldBuffer, null);
+    	Arrays.fill(attributeBuffer, (byte) 0);
+    	Arrays.fill(extendedBuffer, (byte) 0);
+    	Arrays.fill(fieldBuffer, NO_FIELD);
+    	Arrays.fill(fieldEndBuffer, NO_FIELD);
+    	extentsValid = true;
+    	fieldStarts.clear();
+    	inputFieldStarts.clear();
     	
-    	currentField = null;
-    	currentAttribute = null;
+    	hasFields = false;
+    	currentField = NO_FIELD;
+    	
+    	Arrays.fill(dirtyCells, -1L);
+    	dirty = true;
+    	cleared = true;
     	
     	cursorPosition = 0;
     	bufferPosition = 0;
     }
     
     public int pushEbcdic(byte b) {
-    	asciiBuffer[bufferPosition] = Tn3270Conversions.ebcdicToAscii(b);
-    	attributeBuffer[bufferPosition] = currentAttribute;
-    	fieldBuffer[bufferPosition] = currentField;
+    	if(fieldBuffer[bufferPosition] == bufferPosition) {
+    		// a character written over a field attribute removes that field
+    		removeField(bufferPosition);
+    		if(currentField == bufferPosition) {
+    			currentField = fieldStartAt(bufferPosition);
+    		}
+    	}
+    	asciiBuffer[bufferPosition] = codePage.decode(b);
+    	markDirty(bufferPosition);
     	
     	return incBufferPosition();
 	}
     
+    /**
+     * Writes a run of host characters from the buffer address on, the bulk form of
+     * {@link #pushEbcdic(byte)} for the data between orders. Characters are decoded
+     * straight into the screen a chunk at a time, wrapping at the end of the buffer.
+     * @return the buffer address after the run
+     */
+    public int pushEbcdic(byte[] data, int offset, int length) {
+    	while(length > 0) {
+    		int chunk = Math.min(length, total - bufferPosition);
+    		int end = bufferPosition + chunk;
+    		if(hasFields) {
+    			removeFields(bufferPosition, end);
+    		}
+    		codePage.decode(data, offset, chunk, asciiBuffer, bufferPosition);
+    		markDirty(bufferPosition, end);
+    		
+    		offset += chunk;
+    		length -= chunk;
+    		bufferPosition = end == total ? 0 : end;
+    	}
+    	return bufferPosition;
+    }
+    
+    /**
+     * Removes the fields whose attribute lies in {@code [from, to)}, which characters are
+     * about to overwrite.
+     */
+    private void removeFields(int from, int to) {
+    	for(int start=fieldStarts.higher(from - 1);start != NO_FIELD && start < to;start=fieldStarts.higher(start)) {
+    		removeField(start);
+    		if(currentField == start) {
+    			currentField = fieldStartAt(start);
+    		}
+    	}
+    }
+    
     public int pushAscii(char c) {
 //    	System.out.println("hasFields: " + hasFields + " cursorPosition: " + cursorPosition + " char: '" + c + "'");
     	if(hasFields) {
-    		// if field attribute is not already modified then set it
-    		if(!attributeBuffer[cursorPosition].isModified()) {
-    			attributeBuffer[cursorPosition].modified(true);
-			}
+    		int field = getField(cursorPosition);
     		
-    		// maybe fix
-    		if(!attributeBuffer[fieldBuffer[cursorPosition]].isModified()) {
-    			attributeBuffer[fieldBuffer[cursorPosition]].modified(true);
-			}
-
     		// since this buffer hasFields we can only modify field data
     		if(
-    			fieldBuffer[cursorPosition] != null &&
-    			fieldBuffer[cursorPosition] != cursorPosition &&
-    			!attributeBuffer[fieldBuffer[cursorPosition]].isProtected() // FieldType.UNPROTECTED
+    			field != cursorPosition &&
+    			!isProtected(field) // FieldType.UNPROTECTED
     		) {
 //    			System.out.println("field is unprotected");
-				int fieldEnd = cursorPosition;
+    			// if field attribute is not already modified then set it
+    			setModified(field, true);
+    			
     			if(isInsertMode) {
-    				// find the end of the field
-					for(int i=cursorPosition;i<(total-1);i++) {
-						if(fieldBuffer[cursorPosition].intValue() == fieldBuffer[i].intValue()){
-							fieldEnd = i - cursorPosition;
-						}else{
-							break;
-						}
-					}
-					
-					// insert mode is on so move everything 1 place to the right
-					for(int i=cursorPosition+fieldEnd;i>cursorPosition;i--){
-						asciiBuffer[i] = asciiBuffer[i-1];
+					// insert mode is on so move everything up to the end of the field 1 place to the right
+					for(int i=fieldEndBuffer[cursorPosition];i!=cursorPosition;){
+						int previous = i == 0 ? total - 1 : i - 1;
+						asciiBuffer[i] = asciiBuffer[previous];
+						i = previous;
 					}
 				}
     			
     			// the value is not suppose to be visible, like passwords
-    			if(!attributeBuffer[cursorPosition].isVisible()) {
+    			if(!isVisible(field)) {
     				asciiBuffer[cursorPosition] = '*';
 				} else {
 					asciiBuffer[cursorPosition] = c;
@@ -153,13 +429,11 @@ public class ScreenBuffer {
     			
     			incCursorPosition();
 			}
-    	} else if( !attributeBuffer[cursorPosition].isProtected() ) {
-    		// if field attribute is not already modified then set it
-    		if(!attributeBuffer[cursorPosition].isModified()) {
-    			attributeBuffer[cursorPosition].modified(true);
-			}
+    	} else if( !isProtected(cursorPosition) ) {
+    		// no fields, so each modified cell carries its own modified flag
+    		setModified(cursorPosition, true);
     		
-			if( !attributeBuffer[cursorPosition].isVisible() ) {
+			if( !isVisible(cursorPosition) ) {
 				asciiBuffer[cursorPosition] = '*';
 			} else {
 				asciiBuffer[cursorPosition] = c;
@@ -172,17 +446,13 @@ public class ScreenBuffer {
     }
     
     protected int incCursorPosition(){
-		if(fieldBuffer[cursorPosition] != null){
-			if(cursorPosition<(total-1)){
-				if(fieldBuffer[cursorPosition + 1] != null && fieldBuffer[cursorPosition + 1].intValue() == fieldBuffer[cursorPosition].intValue()){
-					cursorPosition++;
-				}else{
-					doTab(false);
-				}
+		if(hasFields){
+			if(getFieldEnd(cursorPosition) != cursorPosition){
+				cursorPosition = (cursorPosition + 1) % total;
 			}else{
 				doTab(false);
 			}
-		}else if(!hasFields){
+		}else{
 			cursorPosition++;
 			if(cursorPosition>=total) {
 				cursorPosition = 0;
@@ -212,24 +482,25 @@ public class ScreenBuffer {
 	}
 	
 	protected int doBackspace(){
-		if(cursorPosition>0){
-			if(hasFields){
-				if(fieldBuffer[cursorPosition] !=null
-					&& fieldBuffer[cursorPosition - 1] != null
-					&& fieldBuffer[cursorPosition].intValue() == fieldBuffer[cursorPosition - 1].intValue()
-					&& fieldBuffer[cursorPosition].intValue() != cursorPosition-1
-					&& !attributeBuffer[cursorPosition].isProtected()
-					&& !attributeBuffer[cursorPosition].isAutoSkip()
-				){
-					cursorPosition--;
-					doDelete();
-				}
-			} else if(cursorPosition>0){
-				if(attributeBuffer[cursorPosition-1].isModified()) {
+		if(hasFields){
+			int field = getField(cursorPosition);
+			int previous = cursorPosition == 0 ? total - 1 : cursorPosition - 1;
+			// stop at the first data position of the field
+			if(field != cursorPosition
+				&& field != previous
+				&& !isProtected(cursorPosition)
+				&& !isAutoSkip(cursorPosition)
+			){
+				cursorPosition = previous;
+				doDelete();
+			}
+		}else{
+			if(cursorPosition>0){
+				if(isModified(cursorPosition-1)) {
 					cursorPosition--;
 					asciiBuffer[cursorPosition] = ' ';
 					int x = 0;
-					while(attributeBuffer[cursorPosition + x].isModified()) {
+					while(cursorPosition + x < total - 1 && isModified(cursorPosition + x)) {
 						x++;
 					}
 					
@@ -246,32 +517,24 @@ public class ScreenBuffer {
 	protected int doDelete(){
 		if(hasFields){
 			if(
-				fieldBuffer[cursorPosition] !=null
-				&& !attributeBuffer[cursorPosition].isProtected()
-				&& !attributeBuffer[cursorPosition].isAutoSkip()
+				getField(cursorPosition) != cursorPosition
+				&& !isProtected(cursorPosition)
+				&& !isAutoSkip(cursorPosition)
 			){
-				if(!attributeBuffer[cursorPosition].isModified()) {
-					attributeBuffer[cursorPosition].modified(true);
-				}
+				setModified(cursorPosition, true);
 				
-				int fieldEnd = cursorPosition;
-				for(int i=cursorPosition;i<1920;i++){
-					if(fieldBuffer[cursorPosition].intValue() == fieldBuffer[i+1].intValue()){
-						asciiBuffer[i] = asciiBuffer[i+1];
-						attributeBuffer[i] = attributeBuffer[cursorPosition];
-						fieldEnd = i+1;
-					}else{
-						break;
-					}
-				}
-				if(cursorPosition < fieldEnd){
-					asciiBuffer[fieldEnd] = ' ';
-					attributeBuffer[fieldEnd] = attributeBuffer[cursorPosition];
+				// shift the rest of the field 1 place to the left and blank its last position
+				int fieldEnd = fieldEndBuffer[cursorPosition];
+				for(int i=cursorPosition;i!=fieldEnd;){
+					int next = (i + 1) % total;
+					asciiBuffer[i] = asciiBuffer[next];
+					i = next;
 				}
+				asciiBuffer[fieldEnd] = ' ';
 			}
 		}else{
 			int x = 0;
-			while(attributeBuffer[cursorPosition + x].isModified()) {
+			while(cursorPosition + x < total - 1 && isModified(cursorPosition + x)) {
 				x++;
 			}
 			
@@ -335,88 +598,248 @@ public class ScreenBuffer {
 	
 	protected int doTab(boolean shift){
 		if(hasFields){
-			Field[] fields = fields();
-			if(shift) {
-				Arrays.sort(fields);
+			int start = shift ? previousInputField(cursorPosition) : nextInputField(cursorPosition);
+			if(start != NO_FIELD){
+				cursorPosition = (start + 1) % total;
 			}
-			
-			Field f = null;
-			
-			for(Field field:fields){
-				if(!shift){
-					if(
-						field.position() > cursorPosition &&
-						!field.attribute().isProtected() &&
-						!field.attribute().isAutoSkip() &&
-						field.length() > 0
-					){
-						f = field;
-						break;
-					}
-				}else{
-					if( 
-						field.position()+1 < cursorPosition &&
-						!field.attribute().isProtected() &&
-						!field.attribute().isAutoSkip() &&
-						field.length() > 0
-					){
-						f = field;
-						break;
-					}
-				}
-			}
-
-			if(f == null){
-				for(Field field:fields){
-					if(
-						!field.attribute().isProtected() &&
-						!field.attribute().isAutoSkip() &&
-						field.length() > 0
-					){
-						f = field;
-						break;
-					}
-				}
+		}
+		return cursorPosition;
+	}
+	
+	public int getFieldCount() {
+		return fieldStarts.size();
+	}
+	
+	/**
+	 * @return the position of the field attribute governing {@code position}, which may
+	 *         wrap around from the end of the screen, or -1 on an unformatted screen
+	 */
+	public int fieldStartAt(int position) {
+		if(extentsValid) {
+			return fieldBuffer[position];
+		}
+		if(fieldStarts.size() == 0) {
+			return NO_FIELD;
+		}
+		int start = fieldStarts.floor(position);
+		return start != NO_FIELD ? start : fieldStarts.last();
+	}
+	
+	/**
+	 * @return the number of character positions between the field attribute at
+	 *         {@code start} and the next one
+	 */
+	public int fieldLength(int start) {
+		if(extentsValid) {
+			return Math.floorMod(fieldEndBuffer[start] - start, total);
+		}
+		int next = fieldStarts.higher(start);
+		if(next == NO_FIELD) {
+			next = fieldStarts.first() + total;
+		}
+		return next - start - 1;
+	}
+	
+	public Field fieldAt(int position) {
+		int start = fieldStartAt(position);
+		return start == NO_FIELD ? null : new Field(this, start, fieldLength(start));
+	}
+	
+	/**
+	 * @return the attribute position of the first non-empty unprotected field after
+	 *         {@code position}, wrapping around the screen, or -1 if there is none
+	 */
+	public int nextInputField(int position) {
+		int count = inputFieldStarts.size();
+		int index = inputFieldStarts.higherIndex(position);
+		for(int i=0;i<count;i++) {
+			int start = inputFieldStarts.get((index + i) % count);
+			if(fieldLength(start) > 0) {
+				return start;
 			}
-			
-			if(f != null){
-				cursorPosition = f.position() + 1;
+		}
+		return NO_FIELD;
+	}
+	
+	/**
+	 * @return the attribute position of the nearest non-empty unprotected field whose
+	 *         first character lies before {@code position}, wrapping around the screen,
+	 *         or -1 if there is none
+	 */
+	public int previousInputField(int position) {
+		int count = inputFieldStarts.size();
+		int index = inputFieldStarts.higherIndex(position - 2) - 1;
+		for(int i=0;i<count;i++) {
+			int start = inputFieldStarts.get(Math.floorMod(index - i, count));
+			if(fieldLength(start) > 0) {
+				return start;
 			}
 		}
-		return cursorPosition;
+		return NO_FIELD;
 	}
 	
 	protected void eraseAllUnprotected() {
-		for(int i=0;i<total;i++){
-			if(fieldBuffer[i] != null){
-				for(int x = i+1;x<total;x++){
-					if(x == fieldBuffer[x]){
-						break;
-					} else {
-						i++;
-					}
-
-					if(
-						attributeBuffer[fieldBuffer[x]].isProtected() && 
-						attributeBuffer[fieldBuffer[x]].isNumeric()
-					){
-//						do nothing
-					} else {
-						asciiBuffer[x] = ' ';
-					} 
+		if(!hasFields) {
+			// an unformatted screen is a single unprotected field
+			Arrays.fill(asciiBuffer, ' ');
+			Arrays.fill(dirtyCells, -1L);
+			dirty = true;
+			resetModifiedFlags();
+			cursorPosition = 0;
+			return;
+		}
+		
+		ensureExtents();
+		for(int i=0;i<inputFieldStarts.size();i++){
+			int start = inputFieldStarts.get(i);
+			for(int x=start,end=fieldEndBuffer[start];x!=end;){
+				x = (x + 1) % total;
+				asciiBuffer[x] = ' ';
+				markDirty(x);
+			}
+			attributeBuffer[start] &= ~FieldAttribute.MODIFIED_MASK;
+		}
+		
+		// the cursor goes to the first unprotected position, or 0 when there is none
+		int first = nextInputField(total - 1);
+		cursorPosition = first == NO_FIELD ? 0 : (first + 1) % total;
+	}
+	
+	public void addChangeListener(ScreenChangeListener listener) {
+		changeListeners.add(listener);
+	}
+	public void removeChangeListener(ScreenChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+	
+	ReentrantLock recordLock() {
+		return recordLock;
+	}
+	Condition recordEnded() {
+		return recordEnded;
+	}
+	
+	/**
+	 * Called by the parser once a record has been applied: publishes the change set and
+	 * wakes threads waiting in {@link Screen#waitFor}.
+	 */
+	void endOfRecord() {
+		recordLock.lock();
+		try {
+			publishChanges();
+			recordEnded.signalAll();
+		} finally {
+			recordLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called when the session's connection ends: wakes threads waiting in
+	 * {@link Screen#waitFor}, which stop waiting for records that will not come.
+	 */
+	void sessionClosed() {
+		recordLock.lock();
+		try {
+			sessionClosed = true;
+			recordEnded.signalAll();
+		} finally {
+			recordLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called when the session connects, records are expected again.
+	 */
+	void sessionOpened() {
+		sessionClosed = false;
+	}
+	
+	boolean isSessionClosed() {
+		return sessionClosed;
+	}
+	
+	private void markDirty(int position) {
+		dirtyCells[position >>> 6] |= 1L << position;
+		dirty = true;
+	}
+	
+	/**
+	 * Marks the cells in {@code [from, to)}, whole words at a time.
+	 */
+	private void markDirty(int from, int to) {
+		if(from >= to) {
+			return;
+		}
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> (63 - ((to - 1) & 63));
+		if(first == last) {
+			dirtyCells[first] |= firstMask & lastMask;
+		} else {
+			dirtyCells[first] |= firstMask;
+			Arrays.fill(dirtyCells, first + 1, last, -1L);
+			dirtyCells[last] |= lastMask;
+		}
+		dirty = true;
+	}
+	
+	/**
+	 * Hands the cells written since the last call to the change listeners and starts a new
+	 * change set. The parser calls this once at the end of every inbound record.
+	 */
+	public void publishChanges() {
+		if(!dirty) {
+			return;
+		}
+		if(!changeListeners.isEmpty()) {
+			ScreenChange change = changes();
+			for(ScreenChangeListener listener : changeListeners) {
+				listener.screenChanged(change);
+			}
+		}
+		resetChanges();
+	}
+	
+	private ScreenChange changes() {
+		BitSet dirtyRows = new BitSet(rows);
+		PositionIndex changedFields = new PositionIndex();
+		ensureExtents();
+		
+		int lastField = NO_FIELD;
+		for(int w=0;w<dirtyCells.length;w++) {
+			for(long word=dirtyCells[w];word!=0;word&=word-1) {
+				int position = (w << 6) + Long.numberOfTrailingZeros(word);
+				if(position >= total) {
+					break;
+				}
+				dirtyRows.set(position / cols);
+				int field = fieldBuffer[position];
+				if(field != NO_FIELD && field != lastField) {
+					changedFields.add(field);
+					lastField = field;
 				}
 			}
 		}
+		
+		int[] fields = new int[changedFields.size()];
+		for(int i=0;i<fields.length;i++) {
+			fields[i] = changedFields.get(i);
+		}
+		return new ScreenChange(dirtyRows, fields, cleared);
+	}
+	
+	private void resetChanges() {
+		Arrays.fill(dirtyCells, 0L);
+		dirty = false;
+		cleared = false;
 	}
 	
 	protected void resetModifiedFlags() {
+		// field starts, and cells of an unformatted screen, hold the modified flags
 		for(int i=0;i<total;i++){
-			if(
-				attributeBuffer[i] != null && 
-				attributeBuffer[i].isModified() &&
-				!attributeBuffer[i].isProtected()
-			){
-				attributeBuffer[i].modified(false);
+			if((attributeBuffer[i] & FieldAttribute.PROTECTED_MASK) == 0){
+				attributeBuffer[i] &= ~FieldAttribute.MODIFIED_MASK;
 			}
 		}
 	}
@@ -472,62 +895,53 @@ public class ScreenBuffer {
     	}
 	}
 	
+	/**
+	 * @return the number of fields, for walking them with {@link #fieldStart(int)}
+	 */
+	int fieldCount() {
+		return fieldStarts.size();
+	}
+	
+	/**
+	 * @return the attribute position of the {@code index}th field in screen order
+	 */
+	int fieldStart(int index) {
+		return fieldStarts.get(index);
+	}
+	
 	protected Field[] fields() {
 		return fields(false);
 	}
 	protected Field[] fields(boolean onlyModifiable) {
-		ArrayList<Field> fields = new ArrayList<>();
-
-		StringBuffer sb = new StringBuffer("");
+		PositionIndex index = onlyModifiable ? inputFieldStarts : fieldStarts;
+		if(index.size() == 0){
+			return null;
+		}
 		
-		if(hasFields){
-			for(int sf=0;sf<total;sf++) {
-				if(fieldBuffer[sf] != null && fieldBuffer[sf].intValue() == sf){
-//					System.out.println("Field start at position: " + sf + " attribute: " + attributeBuffer[sf]);
-					sb = new StringBuffer("");
-					
-					if( asciiBuffer[sf] != ' ' ) {
-//						System.out.println("sf sb.append(" + asciiBuffer[sf] + ") " + sf);
-						sb.append( asciiBuffer[sf] );
-					}
-					
-					for(int ef=sf+1;ef<=total;ef++) {						
-						if(ef == total){
-//							System.out.println("ef==total");
-							fields.add( new Field(sf, attributeBuffer[sf], sb.toString()) );
-							sf = ef;
-						} else if(fieldBuffer[ef] != null && fieldBuffer[ef].intValue() != fieldBuffer[sf].intValue()){
-//							System.out.println("fieldBuffer[ef] != null && fieldBuffer[ef].intValue() != fieldBuffer[sf].intValue()");
-							if(asciiBuffer[sf] != ' '){
-//								System.out.println(string(sf , ef -1 -sf));
-								fields.add( new Field(sf, attributeBuffer[sf], string(sf , ef -1 -sf) ) );
-							}else{
-//								System.out.println(string(sf +1 , ef -1 -sf));
-								fields.add( new Field(sf, attributeBuffer[sf], string(sf +1 , ef -1 -sf) ) );
-							}
-							
-							sf = ef-1;
-							break;
-						} else {
-//							System.out.println("ef sb.append(" + asciiBuffer[ef] + ") " + ef);
-							sb.append( asciiBuffer[ef] );
-//							System.out.println(ef + " : " + sb);
-						}
-					}
-				}
-			}	
+		// values are read from the buffer only when a caller asks for them
+		Field[] fields = new Field[index.size()];
+		for(int i=0;i<fields.length;i++) {
+			int start = index.get(i);
+			fields[i] = new Field(this, start, fieldLength(start));
 		}
+		return fields;
+	}
 	
-		if(!fields.isEmpty()){
-			hasFields = true;
-			Collections.sort(fields);
-			return fields.toArray(new Field[fields.size()]);
-		}else{
-			return null;
+	/**
+	 * @return the characters of the field at {@code start}, continuing past the end of
+	 *         the screen for a field that wraps
+	 */
+	protected String fieldValue(int start, int length) {
+		int first = (start + 1) % total;
+		if(first + length <= total) {
+			return string(first, length);
 		}
+		int head = total - first;
+		return string(first, head) + string(0, length - head);
 	}
 	
 	public static class Field implements Comparable<Field> {
+		private ScreenBuffer buffer;
 		private FieldAttribute attribute;
 		private int position;
 		private String value;
@@ -542,8 +956,24 @@ public class ScreenBuffer {
 			}
 		}
 		
-		public FieldAttribute attribute(){return attribute;}
-		public String asciiValue() {return value;}
+		Field(ScreenBuffer buffer, int position, int length){
+			this.buffer = buffer;
+			this.position = position;
+			this.length = length;
+		}
+		
+		public FieldAttribute attribute(){
+			if(attribute == null && buffer != null) {
+				attribute = buffer.getAttribute(position);
+			}
+			return attribute;
+		}
+		public String asciiValue() {
+			if(value == null && buffer != null) {
+				value = buffer.fieldValue(position, length);
+			}
+			return value;
+		}
 		public int length(){return length;}
 		public int position(){return position;}
 		
@@ -554,8 +984,64 @@ public class ScreenBuffer {
 		
 		@Override
 		public String toString() {
-			return "Field [position=" + position + ", length=" + length + ", value=" + value + ", attribute=" + attribute
+			return "Field [position=" + position + ", length=" + length + ", value=" + asciiValue() + ", attribute=" + attribute()
 					+ "]";
 		}
 	}
+	
+	/**
+	 * Sorted set of screen positions backed by an int array, for binary searches
+	 * over field attribute positions without boxing.
+	 */
+	private static final class PositionIndex {
+		private int[] positions = new int[16];
+		private int size;
+		
+		int size() {return size;}
+		int get(int index) {return positions[index];}
+		int first() {return size == 0 ? NO_FIELD : positions[0];}
+		int last() {return size == 0 ? NO_FIELD : positions[size - 1];}
+		
+		void clear() {
+			size = 0;
+		}
+		
+		void add(int position) {
+			int index = Arrays.binarySearch(positions, 0, size, position);
+			if(index >= 0) {
+				return;
+			}
+			index = -index - 1;
+			if(size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			System.arraycopy(positions, index, positions, index + 1, size - index);
+			positions[index] = position;
+			size++;
+		}
+		
+		void remove(int position) {
+			int index = Arrays.binarySearch(positions, 0, size, position);
+			if(index >= 0) {
+				System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+				size--;
+			}
+		}
+		
+		/** @return the index of the first position greater than {@code position}, or size */
+		int higherIndex(int position) {
+			int index = Arrays.binarySearch(positions, 0, size, position);
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+		
+		int higher(int position) {
+			int index = higherIndex(position);
+			return index < size ? positions[index] : NO_FIELD;
+		}
+		
+		int floor(int position) {
+			int index = higherIndex(position) - 1;
+			return index >= 0 ? positions[index] : NO_FIELD;
+		}
+	}
 }
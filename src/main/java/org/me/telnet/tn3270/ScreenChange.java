@@ -0,0 +1,54 @@
+package org.me.telnet.tn3270;
+
+import java.util.BitSet;
+
+/**
+ * The part of the screen one host record changed: the rows holding a written cell and
+ * the attribute positions of the fields those cells belong to.
+ */
+public class ScreenChange {
+    private final BitSet rows;
+    private final int[] fields;
+    private final boolean cleared;
+
+    ScreenChange(BitSet rows, int[] fields, boolean cleared) {
+        this.rows = rows;
+        this.fields = fields;
+        this.cleared = cleared;
+    }
+
+    public boolean isRowDirty(int row) {
+        return rows.get(row);
+    }
+
+    /**
+     * @return a copy of the dirty row bitmap, bit n set when row n changed
+     */
+    public BitSet dirtyRows() {
+        return (BitSet) rows.clone();
+    }
+
+    /**
+     * @return the attribute positions of the changed fields in screen order, empty on
+     *         an unformatted screen
+     */
+    public int[] changedFields() {
+        return fields.clone();
+    }
+
+    /**
+     * @return true if the screen was erased, in which case every row is dirty
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ScreenChange [rows=" + rows + ", fields=" + fields.length + ", cleared=" + cleared + "]";
+    }
+}
@@ -0,0 +1,10 @@
+package org.me.telnet.tn3270;
+
+/**
+ * Receives the changes a host record made to a {@link ScreenBuffer}. Called on the
+ * thread that parses the record, once the whole record has been applied.
+ */
+public interface ScreenChangeListener {
+
+    void screenChanged(ScreenChange change);
+}
@@ -0,0 +1,56 @@
+package org.me.telnet.tn3270;
+
+/**
+ * A test on the screen state used with {@link Screen#waitFor}. Rows and columns are zero
+ * based, as in {@link Screen#putString(int, int, String)}.
+ */
+@FunctionalInterface
+public interface ScreenCondition {
+
+    boolean test(Screen screen);
+
+    default ScreenCondition and(ScreenCondition other) {
+        return screen -> test(screen) && other.test(screen);
+    }
+
+    default ScreenCondition or(ScreenCondition other) {
+        return screen -> test(screen) || other.test(screen);
+    }
+
+    /**
+     * Holds once the host has restored the keyboard through the WCC.
+     */
+    static ScreenCondition keyboardUnlocked() {
+        return screen -> !screen.getBuffer().isKeyboardLocked();
+    }
+
+    /**
+     * Holds when {@code text} is displayed starting at {@code row}, {@code column}.
+     */
+    static ScreenCondition textAt(int row, int column, String text) {
+        return screen -> {
+            ScreenBuffer buffer = screen.getBuffer();
+            int position = row * buffer.getCols() + column;
+            for (int i = 0; i < text.length(); i++) {
+                if (buffer.asciiAt((position + i) % buffer.getTotal()) != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Holds when the cursor is in the field that covers {@code row}, {@code column}.
+     */
+    static ScreenCondition cursorInField(int row, int column) {
+        return screen -> {
+            ScreenBuffer buffer = screen.getBuffer();
+            if (!buffer.hasFields()) {
+                return false;
+            }
+            int field = buffer.getField(row * buffer.getCols() + column);
+            return buffer.getField(buffer.getCursorPosition()) == field;
+        };
+    }
+}
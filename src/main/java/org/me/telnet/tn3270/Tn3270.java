@@ -1,14 +1,19 @@
 package org.me.telnet.tn3270;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
-import org.me.io.PeekableInputStream;
+import org.me.telnet.NioTelnetClient;
+import org.me.telnet.NioTelnetTransport;
 import org.me.telnet.SimpleOptionHandler;
+import org.me.telnet.Telnet;
 import org.me.telnet.TelnetClient;
+import org.me.telnet.TelnetCommand;
 import org.me.telnet.TelnetNotificationHandler;
 import org.me.telnet.TelnetOption;
+import org.me.telnet.TelnetRecordListener;
 import org.me.telnet.TerminalTypeOptionHandler;
 
 public class Tn3270 implements TelnetNotificationHandler {
@@ -16,14 +21,26 @@ public class Tn3270 implements TelnetNotificationHandler {
     private String hostname;
     private int port;
     private TelnetClient telnetClient;
+    private NioTelnetClient nioClient;
     private ScreenBuffer screenBuffer;
     private Screen screen;
     private DataStreamParser parser;
-    private PeekableInputStream inputStream;
-    private OutputStream outputStream;
+    private RecordReader recordReader;
+    // adds the TN3270E header to outbound records while TN3270E is active
+    private volatile Tn3270EOutputStream outputStream;
+    private Tn3270EOptionHandler tn3270e;
+    private boolean tn3270eEnabled = false;
+    private String luName;
+    // the terminal model's alternate size, restored when the host unbinds
+    private int modelRows = 24;
+    private int modelCols = 80;
     private Thread readerThread;
-    private boolean connected;
+    private volatile boolean connected;
+    // what ended the session, null while it runs and after a clean disconnect
+    private volatile IOException failure;
+    private volatile long recordCount;
     private String terminalType = "IBM-3278-2-E";
+    private boolean virtualThreads;
     
     public Tn3270(String hostname, int port) {
         this.hostname = hostname;
@@ -38,50 +55,254 @@ public class Tn3270 implements TelnetNotificationHandler {
     public void connect() throws IOException {
         telnetClient.registerNotifHandler(this);
         
+        addTn3270EHandler(telnetClient);
         telnetClient.addOptionHandler(new TerminalTypeOptionHandler(terminalType, true, true, true, true));
         telnetClient.addOptionHandler(new SimpleOptionHandler(TelnetOption.BINARY, true, true, true, true));
         telnetClient.addOptionHandler(new SimpleOptionHandler(TelnetOption.END_OF_RECORD, true, true, true, true));
         
         telnetClient.connect(hostname, port);
+        // records are small and interactive, don't let Nagle hold them back
+        telnetClient.setTcpNoDelay(true);
         
-        InputStream rawInputStream = telnetClient.getInputStream();
-        inputStream = (rawInputStream instanceof PeekableInputStream) 
-            ? (PeekableInputStream) rawInputStream 
-            : new PeekableInputStream(rawInputStream);
-        outputStream = telnetClient.getOutputStream();
-        
-        screen.setOutputStream(outputStream);
+        recordReader = new RecordReader(telnetClient.getInputStream());
+        // DataStreamBuilder emits complete records ending in IAC EOR, which must not be escaped again
+        attachOutput(telnetClient.getRawOutputStream());
         
+        failure = null;
+        screenBuffer.sessionOpened();
         connected = true;
         
         startReaderThread();
     }
     
+    /**
+     * Connects over a shared selector-based transport instead of a socket with its own
+     * reader thread. Records are parsed on the transport's selector thread as they arrive.
+     */
+    public void connect(NioTelnetTransport transport) throws IOException {
+        nioClient = new NioTelnetClient(new TelnetRecordListener() {
+            @Override
+            public void recordReceived(byte[] record, int length) {
+                // the host may query before connect returns, the stream is there once connecting starts
+                if (outputStream == null) {
+                    attachOutput(nioClient.getRawOutputStream());
+                }
+                processRecord(record, length);
+                recordCount++;
+            }
+            
+            @Override
+            public void disconnected(IOException cause) {
+                failure = cause;
+                connected = false;
+                screenBuffer.sessionClosed();
+            }
+        });
+        nioClient.registerNotifHandler(this);
+        nioClient.setSslEnabled(isSslEnabled());
+        nioClient.setPlaintextFallback(isPlaintextFallback());
+        nioClient.setNegotiationProfileEnabled(isNegotiationProfileEnabled());
+        
+        addTn3270EHandler(nioClient);
+        nioClient.addOptionHandler(new TerminalTypeOptionHandler(terminalType, true, true, true, true));
+        nioClient.addOptionHandler(new SimpleOptionHandler(TelnetOption.BINARY, true, true, true, true));
+        nioClient.addOptionHandler(new SimpleOptionHandler(TelnetOption.END_OF_RECORD, true, true, true, true));
+        
+        // the transport decodes records itself, there is no reader thread to start
+        failure = null;
+        screenBuffer.sessionOpened();
+        connected = true;
+        try {
+            nioClient.connect(transport, hostname, port);
+        } catch (IOException e) {
+            connected = false;
+            throw e;
+        }
+        
+        attachOutput(nioClient.getRawOutputStream());
+    }
+    
+    private void addTn3270EHandler(Telnet client) throws IOException {
+        tn3270e = new Tn3270EOptionHandler(terminalType, luName, reason -> {
+            // the host will not take our device type, carry on as plain TN3270
+            try {
+                client.disableLocalOption(TelnetOption.TN3270E);
+            } catch (IOException e) {
+                // the connection is failing, the reader reports it
+            }
+        });
+        if (tn3270eEnabled) {
+            client.addOptionHandler(tn3270e);
+        }
+    }
+    
+    private synchronized void attachOutput(OutputStream raw) {
+        if (outputStream == null) {
+            outputStream = new Tn3270EOutputStream(raw, tn3270e);
+            screen.setOutputStream(outputStream);
+            parser.setOutputStream(outputStream);
+        }
+    }
+    
+    /**
+     * Applies one host record. With TN3270E active the record starts with a header
+     * whose data type says what the rest is, and the host may ask for a response.
+     */
+    void processRecord(byte[] record, int length) {
+        Tn3270EOptionHandler e = tn3270e;
+        if (e == null || !e.isActive()) {
+            if (length > 0) {
+                parser.parse(record, 0, length);
+            }
+            return;
+        }
+        if (length < Tn3270EOptionHandler.HEADER_LENGTH) {
+            return;
+        }
+        int offset = Tn3270EOptionHandler.HEADER_LENGTH;
+        int dataLength = length - offset;
+        switch (record[0] & 0xFF) {
+            case Tn3270EOptionHandler.TYPE_3270_DATA:
+                // anything but a command cannot be executed, the host hears so if it asked
+                boolean valid = dataLength == 0 || parser.isCommand(record[offset]);
+                if (valid && dataLength > 0) {
+                    parser.parse(record, offset, dataLength);
+                }
+                int flag = record[2] & 0xFF;
+                if (e.isFunction(Tn3270EOptionHandler.RESPONSES)
+                        && (flag == Tn3270EOptionHandler.ALWAYS_RESPONSE
+                            || (flag == Tn3270EOptionHandler.ERROR_RESPONSE && !valid))) {
+                    sendResponse(record, valid, Tn3270EOptionHandler.COMMAND_REJECT);
+                }
+                break;
+            case Tn3270EOptionHandler.TYPE_SSCP_LU_DATA:
+                // unformatted text from the SSCP, no command in front of it
+                parser.parseText(record, offset, dataLength);
+                break;
+            case Tn3270EOptionHandler.TYPE_BIND_IMAGE:
+                processBind(record, offset, dataLength);
+                break;
+            case Tn3270EOptionHandler.TYPE_UNBIND:
+                screenBuffer.setDefaultSize(24, 80);
+                screenBuffer.setAlternateSize(modelRows, modelCols);
+                eraseScreen();
+                break;
+            default:
+                // SCS and NVT data are not for a display, the host's requests and
+                // responses need nothing from us
+                break;
+        }
+    }
+    
+    /**
+     * Takes the screen sizes from the presentation space fields of a BIND request.
+     */
+    private void processBind(byte[] record, int offset, int length) {
+        if (length > 24 && (record[offset] & 0xFF) == 0x31) {
+            int defaultRows = record[offset + 20] & 0xFF;
+            int defaultCols = record[offset + 21] & 0xFF;
+            int alternateRows = record[offset + 22] & 0xFF;
+            int alternateCols = record[offset + 23] & 0xFF;
+            switch (record[offset + 24] & 0xFF) {
+                case 0x03:
+                    // 24x80 and the model's size
+                    screenBuffer.setDefaultSize(24, 80);
+                    screenBuffer.setAlternateSize(modelRows, modelCols);
+                    break;
+                case 0x7E:
+                    // the default size from the BIND, no alternate
+                    if (defaultRows > 0 && defaultCols > 0) {
+                        screenBuffer.setDefaultSize(defaultRows, defaultCols);
+                        screenBuffer.setAlternateSize(defaultRows, defaultCols);
+                    }
+                    break;
+                case 0x7F:
+                    if (defaultRows > 0 && defaultCols > 0 && alternateRows > 0 && alternateCols > 0) {
+                        screenBuffer.setDefaultSize(defaultRows, defaultCols);
+                        screenBuffer.setAlternateSize(alternateRows, alternateCols);
+                    }
+                    break;
+                default:
+                    // 24x80 only
+                    screenBuffer.setDefaultSize(24, 80);
+                    screenBuffer.setAlternateSize(24, 80);
+                    break;
+            }
+        }
+        eraseScreen();
+    }
+    
+    private void eraseScreen() {
+        screenBuffer.recordLock().lock();
+        try {
+            screenBuffer.erase(false);
+            screenBuffer.endOfRecord();
+        } finally {
+            screenBuffer.recordLock().unlock();
+        }
+    }
+    
+    /**
+     * Answers a 3270-DATA record with a positive response, or a negative one carrying
+     * {@code reason}, echoing the host's sequence number.
+     */
+    private void sendResponse(byte[] header, boolean positive, int reason) {
+        Tn3270EOutputStream out = outputStream;
+        if (out == null) {
+            return;
+        }
+        byte[] response = new byte[10];
+        int p = 0;
+        response[p++] = Tn3270EOptionHandler.TYPE_RESPONSE;
+        response[p++] = 0;
+        response[p++] = (byte) (positive ? Tn3270EOptionHandler.POSITIVE_RESPONSE : Tn3270EOptionHandler.NEGATIVE_RESPONSE);
+        for (int i = 3; i < 5; i++) {
+            response[p++] = header[i];
+            if ((header[i] & 0xFF) == TelnetCommand.IAC) {
+                response[p++] = header[i];
+            }
+        }
+        // device end for a positive response
+        response[p++] = (byte) (positive ? 0x00 : reason);
+        response[p++] = (byte) TelnetCommand.IAC;
+        response[p++] = (byte) TelnetCommand.EOR;
+        try {
+            out.writeRecord(Arrays.copyOf(response, p));
+        } catch (IOException e) {
+            // the connection is closing, the reader or transport reports that
+        }
+    }
+    
     private void startReaderThread() {
-        readerThread = new Thread(() -> {
+        RecordReader reader = recordReader;
+        Runnable readLoop = () -> {
+            IOException cause = null;
             try {
-                // Debug output - uncomment if needed
-                // System.out.println("TN3270: Reader thread started");
-                while (connected && inputStream != null) {
-                    // Use PeekableInputStream to process data stream
-                	System.out.println("TN3270: parser.parse(inputStream) called");
-                	Thread.sleep(1000); // Slight delay to allow data accumulation
-                    parser.parse(inputStream);
-                    System.out.println("TN3270: parser.parse(inputStream) returned");
+                // readRecord blocks on the socket, so each host write is parsed as soon as its IAC EOR arrives
+                int length;
+                while (connected && (length = reader.readRecord()) >= 0) {
+                    processRecord(reader.record(), length);
+                    recordCount++;
                 }
-                System.out.println("TN3270: Reader thread exiting loop");
             } catch (IOException e) {
-            	e.printStackTrace();
-                if (connected) {
-                    // System.err.println("TN3270: IOException in reader thread");
-                    e.printStackTrace();
-                }
-            } catch(Exception ee) {
-            	ee.printStackTrace();
+                cause = e;
+            } catch (RuntimeException e) {
+                // a record that could not be applied leaves the screen in an unknown state
+                cause = new IOException("Failed to process host record", e);
             }
-            // System.out.println("TN3270: Reader thread ended");
-        });
-        readerThread.setDaemon(true);
+            if (connected) {
+                // the host hung up or the session failed, don't leave it looking connected
+                failure = cause;
+                disconnect();
+            }
+        };
+        String name = "tn3270-reader-" + hostname + ":" + port;
+        if (virtualThreads) {
+            readerThread = VirtualThreads.factory(name + "-").newThread(readLoop);
+        } else {
+            readerThread = new Thread(readLoop, name);
+            readerThread.setDaemon(true);
+        }
         readerThread.start();
     }
     
@@ -99,12 +320,28 @@ public class Tn3270 implements TelnetNotificationHandler {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (nioClient != null) {
+            nioClient.disconnect();
+        }
         
-        inputStream = null;
+        recordReader = null;
         outputStream = null;
+        parser.setOutputStream(null);
+        screenBuffer.sessionClosed();
+    }
+    
+    /**
+     * @return the error that ended the session, null while it is connected or after the
+     *         host or the caller closed it cleanly
+     */
+    public IOException getFailure() {
+        return failure;
     }
     
     public boolean isConnected() {
+        if (nioClient != null) {
+            return connected && nioClient.isConnected();
+        }
         return connected && telnetClient != null && telnetClient.isConnected();
     }
     
@@ -112,8 +349,37 @@ public class Tn3270 implements TelnetNotificationHandler {
         return screen;
     }
     
+    /**
+     * Blocks until {@code condition} holds on this session's screen or the timeout
+     * expires, see {@link Screen#waitFor(ScreenCondition, long, TimeUnit)}.
+     *
+     * @return true if the condition holds, false if the timeout expired first
+     * @throws IOException if the session disconnected before the condition held, with
+     *         {@link #getFailure()} as the cause when it failed
+     */
+    public boolean waitFor(ScreenCondition condition, long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        if (screen.waitFor(condition, timeout, unit)) {
+            return true;
+        }
+        if (screenBuffer.isSessionClosed()) {
+            throw new IOException("Session disconnected while waiting for the screen", failure);
+        }
+        return false;
+    }
+    
+    /**
+     * Number of host records received since connect. Increases once each record
+     * has been applied to the screen buffer.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
     @Override
     public void receivedNegotiation(int negotiation_code, int option_code) {
+        if (option_code == TelnetOption.TN3270E && negotiation_code == RECEIVED_DONT && tn3270e != null) {
+            tn3270e.reset();
+        }
 //        String negotiation = 
 //		switch (negotiation_code) {
 //            case RECEIVED_DO -> "DO";
@@ -126,11 +392,153 @@ public class Tn3270 implements TelnetNotificationHandler {
 //        System.out.println("Telnet Negotiation: Received " + negotiation + " for option code " + option_code);
     }
     
+    /**
+     * Runs this session's reader on a virtual thread instead of a platform daemon thread,
+     * so a JVM can hold thousands of sessions. Needs Java 21, takes effect on connect.
+     *
+     * @throws UnsupportedOperationException when virtual threads are not available
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        this.virtualThreads = virtualThreads;
+    }
+    
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Sets the terminal type sent to the host, IBM-3278-2-E by default. For models 3 to 5
+     * the screen takes the model's alternate size when the host erases with Erase/Write
+     * Alternate, IBM-DYNAMIC uses the size set with {@link #setScreenSize(int, int)}.
+     */
     public void setTerminalType(String terminalType) {
         this.terminalType = terminalType;
+        int[] size = modelSize(terminalType);
+        if (size != null) {
+            setScreenSize(size[0], size[1]);
+        }
     }
     
     public String getTerminalType() {
         return terminalType;
     }
+    
+    /**
+     * Sets the alternate screen size reported to the host in the Query Reply, for
+     * terminal types such as IBM-DYNAMIC whose name does not imply one.
+     */
+    public void setScreenSize(int rows, int cols) {
+        screenBuffer.setAlternateSize(rows, cols);
+        modelRows = rows;
+        modelCols = cols;
+    }
+    
+    /**
+     * @return the alternate screen size of an IBM-327x-n terminal type as {rows, cols},
+     *         or null if the type does not name a model
+     */
+    static int[] modelSize(String terminalType) {
+        if (terminalType == null || !terminalType.matches("IBM-327[89]-[2-5](-E)?")) {
+            return null;
+        }
+        switch (terminalType.charAt(9)) {
+            case '3': return new int[] {32, 80};
+            case '4': return new int[] {43, 80};
+            case '5': return new int[] {27, 132};
+            default: return new int[] {24, 80};
+        }
+    }
+    
+    /**
+     * Sets the host code page, CCSID 037 by default.
+     */
+    public void setCodePage(CodePage codePage) {
+        screenBuffer.setCodePage(codePage);
+    }
+    
+    public CodePage getCodePage() {
+        return screenBuffer.getCodePage();
+    }
+    
+    /**
+     * Traces this session's inbound data stream into the sink, or stops tracing when null.
+     * @see RingBufferTrace
+     */
+    public void setTraceSink(TraceSink trace) {
+        parser.setTraceSink(trace);
+    }
+    
+    public TraceSink getTraceSink() {
+        return parser.getTraceSink();
+    }
+    
+    public void setSslEnabled(boolean sslEnabled) {
+        telnetClient.setSslEnabled(sslEnabled);
+    }
+    
+    public boolean isSslEnabled() {
+        return telnetClient.isSslEnabled();
+    }
+    
+    /**
+     * @see org.me.telnet.TelnetClient#setPlaintextFallback(boolean)
+     */
+    public void setPlaintextFallback(boolean plaintextFallback) {
+        telnetClient.setPlaintextFallback(plaintextFallback);
+    }
+    
+    public boolean isPlaintextFallback() {
+        return telnetClient.isPlaintextFallback();
+    }
+    
+    /**
+     * @see org.me.telnet.Telnet#setNegotiationProfileEnabled(boolean)
+     */
+    public void setNegotiationProfileEnabled(boolean enabled) {
+        telnetClient.setNegotiationProfileEnabled(enabled);
+    }
+    
+    public boolean isNegotiationProfileEnabled() {
+        return telnetClient.isNegotiationProfileEnabled();
+    }
+    
+    /**
+     * Offers TN3270E when the host asks for it, off by default so hosts keep seeing the
+     * plain TN3270 negotiation and framing. Takes effect on connect.
+     */
+    public void setTn3270eEnabled(boolean enabled) {
+        this.tn3270eEnabled = enabled;
+    }
+    
+    public boolean isTn3270eEnabled() {
+        return tn3270eEnabled;
+    }
+    
+    /**
+     * Asks a TN3270E host for a specific LU instead of one from its pool. Takes effect on connect.
+     */
+    public void setLuName(String luName) {
+        this.luName = luName;
+    }
+    
+    public String getLuName() {
+        return luName;
+    }
+    
+    /**
+     * @return true once the host has agreed to TN3270E for this session
+     */
+    public boolean isTn3270e() {
+        return tn3270e != null && tn3270e.isActive();
+    }
+    
+    /**
+     * @return the LU the TN3270E host connected this session to, or null
+     */
+    public String getConnectedLuName() {
+        return tn3270e != null ? tn3270e.getConnectedLuName() : null;
+    }
 }
@@ -0,0 +1,215 @@
+package org.me.telnet.tn3270;
+
+import java.util.function.IntConsumer;
+
+import org.me.telnet.TelnetOption;
+import org.me.telnet.TelnetOptionHandler;
+
+/**
+ * Negotiates TN3270E (RFC 2355): the device type, optionally a specific LU, and the
+ * functions both sides will use. Once the functions are agreed every record in both
+ * directions starts with a five byte header, see {@link #isActive()}.
+ */
+public class Tn3270EOptionHandler extends TelnetOptionHandler {
+    // subnegotiation operations
+    static final int ASSOCIATE = 0;
+    static final int CONNECT = 1;
+    static final int DEVICE_TYPE = 2;
+    static final int FUNCTIONS = 3;
+    static final int IS = 4;
+    static final int REASON = 5;
+    static final int REJECT = 6;
+    static final int REQUEST = 7;
+    static final int SEND = 8;
+
+    // functions
+    public static final int BIND_IMAGE = 0;
+    public static final int DATA_STREAM_CTL = 1;
+    public static final int RESPONSES = 2;
+    public static final int SCS_CTL_CODES = 3;
+    public static final int SYSREQ = 4;
+
+    // header data types
+    public static final int TYPE_3270_DATA = 0x00;
+    public static final int TYPE_SCS_DATA = 0x01;
+    public static final int TYPE_RESPONSE = 0x02;
+    public static final int TYPE_BIND_IMAGE = 0x03;
+    public static final int TYPE_UNBIND = 0x04;
+    public static final int TYPE_NVT_DATA = 0x05;
+    public static final int TYPE_REQUEST = 0x06;
+    public static final int TYPE_SSCP_LU_DATA = 0x07;
+    public static final int TYPE_PRINT_EOJ = 0x08;
+
+    // header response flags, for 3270-DATA from the host and for our responses
+    public static final int NO_RESPONSE = 0x00;
+    public static final int ERROR_RESPONSE = 0x01;
+    public static final int ALWAYS_RESPONSE = 0x02;
+    public static final int POSITIVE_RESPONSE = 0x00;
+    public static final int NEGATIVE_RESPONSE = 0x01;
+
+    // negative response reasons
+    public static final int COMMAND_REJECT = 0x00;
+    public static final int INTERVENTION_REQUIRED = 0x01;
+    public static final int OPERATION_CHECK = 0x02;
+    public static final int COMPONENT_DISCONNECTED = 0x03;
+
+    public static final int HEADER_LENGTH = 5;
+
+    // functions asked for, one bit per function code
+    private static final int SUPPORTED = (1 << BIND_IMAGE) | (1 << RESPONSES);
+
+    private final String deviceType;
+    private final String luName;
+    private final IntConsumer rejected;
+
+    // written by the reader while negotiating, read by whoever sends the next record
+    private volatile boolean active;
+    private volatile int functions;
+    private volatile String connectedDeviceType;
+    private volatile String connectedLuName;
+
+    /**
+     * @param deviceType the terminal type to ask for, such as IBM-3278-2-E
+     * @param luName the LU to connect to, or null to take one from the host's pool
+     * @param rejected called with the reason code when the host rejects the device type
+     */
+    public Tn3270EOptionHandler(String deviceType, String luName, IntConsumer rejected) {
+        super(TelnetOption.TN3270E, false, false, true, false);
+        this.deviceType = deviceType;
+        this.luName = luName;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return true once device type and functions are agreed, from then on records carry
+     *         the TN3270E header
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isFunction(int function) {
+        return (functions & (1 << function)) != 0;
+    }
+
+    public String getConnectedDeviceType() {
+        return connectedDeviceType;
+    }
+
+    /**
+     * @return the LU the host connected this session to, null until it has said
+     */
+    public String getConnectedLuName() {
+        return connectedLuName;
+    }
+
+    /**
+     * Forgets the negotiated state, when the host turns TN3270E off.
+     */
+    public void reset() {
+        active = false;
+        functions = 0;
+        connectedDeviceType = null;
+        connectedLuName = null;
+    }
+
+    @Override
+    public int[] answerSubnegotiation(int[] suboptionData, int suboptionLength) {
+        if (suboptionData == null || suboptionLength < 3 || suboptionData[0] != TelnetOption.TN3270E) {
+            return null;
+        }
+        int operation = suboptionData[1];
+        int kind = suboptionData[2];
+        if (operation == SEND && kind == DEVICE_TYPE) {
+            return deviceTypeRequest();
+        }
+        if (operation == DEVICE_TYPE && kind == IS) {
+            // IS <device-type> CONNECT <resource-name>
+            int connect = indexOf(suboptionData, 3, suboptionLength, CONNECT);
+            connectedDeviceType = text(suboptionData, 3, connect);
+            connectedLuName = connect < suboptionLength ? text(suboptionData, connect + 1, suboptionLength) : null;
+            return functions(REQUEST, SUPPORTED);
+        }
+        if (operation == DEVICE_TYPE && kind == REJECT) {
+            int reason = suboptionLength > 4 && suboptionData[3] == REASON ? suboptionData[4] : -1;
+            setAcceptLocal(false);
+            if (rejected != null) {
+                rejected.accept(reason);
+            }
+            return null;
+        }
+        if (operation == FUNCTIONS) {
+            int offered = 0;
+            for (int i = 3; i < suboptionLength; i++) {
+                if (suboptionData[i] < 32) {
+                    offered |= 1 << suboptionData[i];
+                }
+            }
+            if (kind == IS) {
+                functions = offered & SUPPORTED;
+                active = true;
+            } else if (kind == REQUEST) {
+                if ((offered & ~SUPPORTED) == 0) {
+                    functions = offered;
+                    active = true;
+                    return functions(IS, offered);
+                }
+                // counter with the part we support
+                return functions(REQUEST, offered & SUPPORTED);
+            }
+        }
+        return null;
+    }
+
+    private int[] deviceTypeRequest() {
+        int length = 3 + deviceType.length() + (luName != null ? 1 + luName.length() : 0);
+        int[] response = new int[length];
+        response[0] = TelnetOption.TN3270E;
+        response[1] = DEVICE_TYPE;
+        response[2] = REQUEST;
+        int p = put(response, 3, deviceType);
+        if (luName != null) {
+            response[p++] = CONNECT;
+            put(response, p, luName);
+        }
+        return response;
+    }
+
+    private static int[] functions(int kind, int set) {
+        int[] response = new int[3 + Integer.bitCount(set)];
+        response[0] = TelnetOption.TN3270E;
+        response[1] = FUNCTIONS;
+        response[2] = kind;
+        int p = 3;
+        for (int function = 0; function < 32; function++) {
+            if ((set & (1 << function)) != 0) {
+                response[p++] = function;
+            }
+        }
+        return response;
+    }
+
+    private static int put(int[] target, int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            target[offset++] = text.charAt(i);
+        }
+        return offset;
+    }
+
+    private static int indexOf(int[] data, int from, int to, int value) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static String text(int[] data, int from, int to) {
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            sb.append((char) data[i]);
+        }
+        return sb.toString();
+    }
+}
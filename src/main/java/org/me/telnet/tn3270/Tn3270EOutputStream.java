@@ -0,0 +1,117 @@
+package org.me.telnet.tn3270;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.me.telnet.TelnetCommand;
+
+/**
+ * Puts the TN3270E 3270-DATA header in front of every record written through it while
+ * TN3270E is active, and passes records through unchanged otherwise. Records are found
+ * by their IAC EOR terminator, so writers do not need to know which mode the session is in.
+ * <p>
+ * Writes are serialised, a response sent from the reader never lands inside a record
+ * another thread is writing. A lock rather than synchronized, so a virtual thread blocked
+ * in the socket write does not pin its carrier.
+ */
+class Tn3270EOutputStream extends FilterOutputStream {
+    // 3270-DATA, no request or response flags, sequence number 0
+    private static final byte[] DATA_HEADER = new byte[Tn3270EOptionHandler.HEADER_LENGTH];
+
+    private final Tn3270EOptionHandler handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean recordStart = true;
+    private boolean pendingIac;
+
+    Tn3270EOutputStream(OutputStream out, Tn3270EOptionHandler handler) {
+        super(out);
+        this.handler = handler;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        lock.lock();
+        try {
+            startRecord();
+            out.write(b);
+            track(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            int end = off + len;
+            int start = off;
+            for (int i = off; i < end; i++) {
+                if (recordStart) {
+                    startRecord();
+                }
+                if (track(b[i])) {
+                    // the record ends here, the next byte starts another one
+                    out.write(b, start, i + 1 - start);
+                    start = i + 1;
+                }
+            }
+            if (start < end) {
+                out.write(b, start, end - start);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a record that already has its own header, such as a response.
+     */
+    void writeRecord(byte[] record) throws IOException {
+        lock.lock();
+        try {
+            out.write(record);
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startRecord() throws IOException {
+        if (recordStart) {
+            recordStart = false;
+            if (handler.isActive()) {
+                out.write(DATA_HEADER);
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code b} completes an IAC EOR
+     */
+    private boolean track(int b) {
+        b &= 0xFF;
+        if (pendingIac) {
+            pendingIac = false;
+            if (b == TelnetCommand.EOR) {
+                recordStart = true;
+                return true;
+            }
+        } else if (b == TelnetCommand.IAC) {
+            pendingIac = true;
+        }
+        return false;
+    }
+}
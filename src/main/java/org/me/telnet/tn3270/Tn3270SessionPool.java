@@ -0,0 +1,434 @@
+package org.me.telnet.tn3270;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps connected, logged-on {@link Tn3270} sessions ready for reuse so a transaction
+ * can skip connect, negotiation and logon.
+ * <p>
+ * Sessions are made by a {@link SessionFactory}, which connects and walks the logon
+ * screens. A borrowed session must be handed back with {@link #release} when the
+ * transaction left it on the home screen, or {@link #invalidate} when it did not.
+ * Idle sessions are checked before they are handed out and by a background sweep, which
+ * closes those idle or alive for too long and tops the pool back up to its minimum.
+ */
+public class Tn3270SessionPool implements Closeable {
+
+    /**
+     * Creates a connected session, logged on and showing the home screen.
+     */
+    @FunctionalInterface
+    public interface SessionFactory {
+        Tn3270 create() throws IOException, InterruptedException;
+    }
+
+    private static final class PooledSession {
+        final Tn3270 session;
+        final long createdAt;
+        long lastUsed;
+
+        PooledSession(Tn3270 session) {
+            this.session = session;
+            this.createdAt = System.nanoTime();
+            this.lastUsed = createdAt;
+        }
+    }
+
+    private final SessionFactory factory;
+    private final int maxSessions;
+    private int minIdle;
+    private ScreenCondition validation = ScreenCondition.keyboardUnlocked();
+    private long maxIdleNanos = TimeUnit.MINUTES.toNanos(10);
+    private long maxLifetimeNanos = TimeUnit.HOURS.toNanos(1);
+
+    // most recently used first, so the sweep closes the sessions that sat longest
+    private final Deque<PooledSession> idle = new ArrayDeque<>();
+    private final Map<Tn3270, PooledSession> borrowed = new IdentityHashMap<>();
+    // sessions idle, borrowed or being created
+    private int sessionCount;
+    private boolean closed;
+
+    private ScheduledExecutorService sweeper;
+    
+    // guards the pool state, borrowers wait on sessionFreed for a release or a free slot
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sessionFreed = lock.newCondition();
+
+    public Tn3270SessionPool(SessionFactory factory, int maxSessions) {
+        if (factory == null) {
+            throw new NullPointerException("Session factory cannot be null");
+        }
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        this.factory = factory;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Number of sessions kept warm by {@link #start(long, TimeUnit)} and the background sweep.
+     */
+    public void setMinIdle(int minIdle) {
+        lock.lock();
+        try {
+            this.minIdle = Math.min(minIdle, maxSessions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Test a session must pass before it is handed out, keyboard unlocked by default.
+     * Combine it with {@link ScreenCondition#textAt} to check for the expected home screen.
+     */
+    public void setValidation(ScreenCondition validation) {
+        lock.lock();
+        try {
+            this.validation = validation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxIdle(long time, TimeUnit unit) {
+        lock.lock();
+        try {
+            this.maxIdleNanos = unit.toNanos(time);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxLifetime(long time, TimeUnit unit) {
+        lock.lock();
+        try {
+            this.maxLifetimeNanos = unit.toNanos(time);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs on the minimum number of idle sessions and starts the background sweep, run
+     * every {@code sweepInterval}.
+     */
+    public void start(long sweepInterval, TimeUnit unit) throws IOException, InterruptedException {
+        fill();
+        lock.lock();
+        try {
+            if (closed || sweeper != null) {
+                return;
+            }
+            sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tn3270-pool-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweepQuietly, sweepInterval, sweepInterval, unit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands out a valid session, logging on a new one if none is idle and the pool is not
+     * full, otherwise waiting for one to be released.
+     *
+     * @throws TimeoutException if no session became available within the timeout
+     */
+    public Tn3270 borrow(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            PooledSession candidate = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("Session pool is closed");
+                    }
+                    if (!idle.isEmpty()) {
+                        candidate = idle.pollFirst();
+                        break;
+                    }
+                    if (sessionCount < maxSessions) {
+                        sessionCount++;
+                        create = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("No session available within " + unit.toMillis(timeout) + "ms");
+                    }
+                    sessionFreed.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                candidate = createSession();
+            } else if (!isUsable(candidate, System.nanoTime())) {
+                discard(candidate);
+                continue;
+            }
+
+            lock.lock();
+            try {
+                borrowed.put(candidate.session, candidate);
+            } finally {
+                lock.unlock();
+            }
+            return candidate.session;
+        }
+    }
+
+    /**
+     * Returns a borrowed session to the pool. Sessions that no longer pass validation are
+     * closed instead.
+     */
+    public void release(Tn3270 session) {
+        PooledSession pooled;
+        lock.lock();
+        try {
+            pooled = borrowed.remove(session);
+            if (pooled == null) {
+                throw new IllegalArgumentException("Session was not borrowed from this pool");
+            }
+            pooled.lastUsed = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+
+        // validated outside the pool lock, like borrow, so a session whose screen is being
+        // repainted does not hold up the rest of the pool
+        boolean returned = false;
+        try {
+            if (isUsable(pooled, pooled.lastUsed)) {
+                lock.lock();
+                try {
+                    if (!closed) {
+                        idle.addFirst(pooled);
+                        sessionFreed.signalAll();
+                        returned = true;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            if (!returned) {
+                discard(pooled);
+            }
+        }
+    }
+
+    /**
+     * Closes a borrowed session that was left in an unknown state, freeing its slot.
+     */
+    public void invalidate(Tn3270 session) {
+        PooledSession pooled;
+        lock.lock();
+        try {
+            pooled = borrowed.remove(session);
+            if (pooled == null) {
+                throw new IllegalArgumentException("Session was not borrowed from this pool");
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(pooled);
+    }
+
+    /**
+     * Closes idle sessions past their idle time or lifetime, then logs on new ones up to
+     * the minimum idle count. Called by the background sweep.
+     */
+    public void sweep() throws IOException, InterruptedException {
+        long now = System.nanoTime();
+        Deque<PooledSession> expired = new ArrayDeque<>();
+        lock.lock();
+        try {
+            for (Iterator<PooledSession> it = idle.iterator(); it.hasNext();) {
+                PooledSession pooled = it.next();
+                if (now - pooled.lastUsed > maxIdleNanos || now - pooled.createdAt > maxLifetimeNanos || !pooled.session.isConnected()) {
+                    it.remove();
+                    expired.add(pooled);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledSession pooled : expired) {
+            discard(pooled);
+        }
+        fill();
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBorrowedCount() {
+        lock.lock();
+        try {
+            return borrowed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSessionCount() {
+        lock.lock();
+        try {
+            return sessionCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the sweep and disconnects the idle sessions. Borrowed sessions are
+     * disconnected when they are released or invalidated.
+     */
+    @Override
+    public void close() {
+        Deque<PooledSession> toClose;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+            }
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+            sessionFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (PooledSession pooled : toClose) {
+            discard(pooled);
+        }
+    }
+
+    private void fill() throws IOException, InterruptedException {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || sessionCount >= maxSessions) {
+                    return;
+                }
+                sessionCount++;
+            } finally {
+                lock.unlock();
+            }
+            PooledSession pooled = createSession();
+            lock.lock();
+            try {
+                // the pool may have been closed while the factory was logging on
+                if (!closed) {
+                    pooled.lastUsed = System.nanoTime();
+                    idle.addLast(pooled);
+                    sessionFreed.signalAll();
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            discard(pooled);
+            return;
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (IOException e) {
+            // the host may be down, the next sweep tries again
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // a failing factory or validation must not end the scheduled sweeps
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the factory for a slot already counted in {@code sessionCount}, giving the slot
+     * back if it fails.
+     */
+    private PooledSession createSession() throws IOException, InterruptedException {
+        boolean created = false;
+        try {
+            Tn3270 session = factory.create();
+            created = true;
+            return new PooledSession(session);
+        } finally {
+            if (!created) {
+                lock.lock();
+                try {
+                    sessionCount--;
+                    sessionFreed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private boolean isUsable(PooledSession pooled, long now) {
+        ScreenCondition check;
+        lock.lock();
+        try {
+            if (now - pooled.createdAt > maxLifetimeNanos || now - pooled.lastUsed > maxIdleNanos) {
+                return false;
+            }
+            check = validation;
+        } finally {
+            lock.unlock();
+        }
+        if (!pooled.session.isConnected()) {
+            return false;
+        }
+        // test under the record lock so a screen being repainted is not judged half done
+        Screen screen = pooled.session.screen();
+        screen.getBuffer().recordLock().lock();
+        try {
+            return check.test(screen);
+        } finally {
+            screen.getBuffer().recordLock().unlock();
+        }
+    }
+
+    private void discard(PooledSession pooled) {
+        pooled.session.disconnect();
+        lock.lock();
+        try {
+            sessionCount--;
+            sessionFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
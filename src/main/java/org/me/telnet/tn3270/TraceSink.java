@@ -0,0 +1,26 @@
+package org.me.telnet.tn3270;
+
+/**
+ * Receives binary trace events from a session's {@link DataStreamParser}. Tracing is off
+ * until a sink is set, and a sink should do no more than store the numbers it is given;
+ * any formatting belongs in whatever reads them back, as {@link RingBufferTrace} does.
+ */
+@FunctionalInterface
+public interface TraceSink {
+    /** A record arrived, {@code value} is its length. */
+    int RECORD = 1;
+    /** A command, {@code code} is the command byte and {@code value} the WCC if it has one. */
+    int COMMAND = 2;
+    /**
+     * An order, {@code code} is the order byte, {@code address} the buffer address after it
+     * and {@code value} its operand count and first two operand bytes.
+     */
+    int ORDER = 3;
+    /** A run of characters written from {@code address}, {@code value} is its length. */
+    int DATA = 4;
+
+    /**
+     * @param type one of the event constants above
+     */
+    void event(int type, int code, int address, int value);
+}
@@ -6,6 +6,9 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.SocketTimeoutException;
 
 public class CircularBufferInputStreamTest {
     
@@ -222,4 +225,68 @@ public class CircularBufferInputStreamTest {
         
         assertEquals(-1, stream.read());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testNonBlockingFillDistinguishesNoDataFromEndOfStream() throws IOException {
+        PipedOutputStream source = new PipedOutputStream();
+        stream = new CircularBufferInputStream(new PipedInputStream(source), 10);
+        
+        assertEquals(0, stream.fillBuffer(false));
+        assertFalse(stream.isEndOfStream());
+        
+        source.write(new byte[] {7, 8, 9});
+        assertEquals(3, stream.fillBuffer(false));
+        
+        source.close();
+        assertEquals(7, stream.read());
+        assertEquals(8, stream.read());
+        assertEquals(9, stream.read());
+        assertEquals(-1, stream.read());
+        assertTrue(stream.isEndOfStream());
+    }
+    
+    @Test
+    public void testReadTimeoutIsNotEndOfStream() throws IOException {
+        InputStream slow = new InputStream() {
+            private final InputStream data = new ByteArrayInputStream(new byte[] {1, 2, 3});
+            private boolean timedOut;
+            
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!timedOut) {
+                    timedOut = true;
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return data.read(b, off, len);
+            }
+        };
+        stream = new CircularBufferInputStream(slow, 10);
+        
+        assertThrows(SocketTimeoutException.class, () -> stream.read());
+        assertFalse(stream.isEndOfStream());
+        
+        byte[] buffer = new byte[10];
+        assertEquals(3, stream.read(buffer, 0, 10));
+        assertEquals(-1, stream.read(buffer, 0, 10));
+    }
+    
+    @Test
+    public void testLargeReadContinuesPastBufferSize() throws IOException {
+        InputStream in = new ByteArrayInputStream(testData);
+        stream = new CircularBufferInputStream(in, 16);
+        
+        assertEquals(0, stream.read());
+        byte[] buffer = new byte[99];
+        assertEquals(99, stream.read(buffer, 0, 99));
+        for (int i = 0; i < 99; i++) {
+            assertEquals(i + 1, buffer[i]);
+        }
+        assertEquals(-1, stream.read());
+    }
+}
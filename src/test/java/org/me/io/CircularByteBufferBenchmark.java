@@ -0,0 +1,142 @@
+package org.me.io;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of moving host-sized records through {@link CircularByteBuffer}
+ * compared with the byte-at-a-time ring it replaced.
+ *
+ * The ring holds one and a half records, so its capacity is not a power of two
+ * and successive records straddle the wrap point.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.me.io.CircularByteBufferBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircularByteBufferBenchmark {
+
+    @Param({"8192", "16384", "32768", "65536"})
+    public int recordSize;
+
+    private byte[] record;
+    private byte[] target;
+    private CircularByteBuffer buffer;
+    private PerByteRing perByteRing;
+
+    @Setup
+    public void setUp() {
+        record = new byte[recordSize];
+        for (int i = 0; i < recordSize; i++) {
+            record[i] = (byte) i;
+        }
+        target = new byte[recordSize];
+        buffer = new CircularByteBuffer(recordSize + recordSize / 2);
+        perByteRing = new PerByteRing(recordSize + recordSize / 2);
+    }
+
+    @Benchmark
+    public void bulkAddPeekRead(Blackhole blackhole) {
+        buffer.add(record, 0, recordSize);
+        buffer.peek(target, 0, recordSize);
+        buffer.read(target, 0, recordSize);
+        blackhole.consume(target);
+    }
+
+    @Benchmark
+    public void perByteAddPeekRead(Blackhole blackhole) {
+        perByteRing.add(record, 0, recordSize);
+        perByteRing.peek(target, 0, recordSize);
+        perByteRing.read(target, 0, recordSize);
+        blackhole.consume(target);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(CircularByteBufferBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+
+    /**
+     * The previous CircularByteBuffer transfer loops: one modulo and one counter
+     * update per byte.
+     */
+    static final class PerByteRing {
+        private final byte[] buffer;
+        private int readIndex;
+        private int writeIndex;
+        private int currentNumberOfBytes;
+
+        PerByteRing(int bufferSize) {
+            this.buffer = new byte[bufferSize];
+        }
+
+        void add(byte b) {
+            if (currentNumberOfBytes >= buffer.length) {
+                throw new IllegalStateException("Buffer is full");
+            }
+            buffer[writeIndex] = b;
+            writeIndex = (writeIndex + 1) % buffer.length;
+            currentNumberOfBytes++;
+        }
+
+        void add(byte[] sourceBuffer, int offset, int length) {
+            if (buffer.length - currentNumberOfBytes < length) {
+                throw new IllegalStateException("Not enough space in buffer");
+            }
+            for (int i = 0; i < length; i++) {
+                add(sourceBuffer[offset + i]);
+            }
+        }
+
+        boolean peek(byte[] targetBuffer, int offset, int length) {
+            if (length > currentNumberOfBytes) {
+                return false;
+            }
+            int tempReadIndex = readIndex;
+            for (int i = 0; i < length; i++) {
+                targetBuffer[offset + i] = buffer[tempReadIndex];
+                tempReadIndex = (tempReadIndex + 1) % buffer.length;
+            }
+            return true;
+        }
+
+        byte read() {
+            if (currentNumberOfBytes == 0) {
+                throw new IllegalStateException("Buffer is empty");
+            }
+            byte result = buffer[readIndex];
+            readIndex = (readIndex + 1) % buffer.length;
+            currentNumberOfBytes--;
+            return result;
+        }
+
+        void read(byte[] targetBuffer, int offset, int length) {
+            if (length > currentNumberOfBytes) {
+                throw new IllegalStateException("Not enough bytes in buffer");
+            }
+            for (int i = 0; i < length; i++) {
+                targetBuffer[offset + i] = read();
+            }
+        }
+    }
+}
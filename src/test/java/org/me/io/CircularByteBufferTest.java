@@ -3,6 +3,8 @@ package org.me.io;
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 
 public class CircularByteBufferTest {
     
@@ -224,4 +226,94 @@ public class CircularByteBufferTest {
             }
         }
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testCapacityIsNotRoundedUp() {
+        CircularByteBuffer odd = new CircularByteBuffer(12);
+        assertEquals(12, odd.getCapacity());
+        odd.add(new byte[12], 0, 12);
+        assertFalse(odd.hasSpace());
+        assertEquals(0, odd.getSpace());
+    }
+    
+    @Test
+    public void testBulkTransfersAcrossWrapPoint() {
+        CircularByteBuffer odd = new CircularByteBuffer(12);
+        byte[] data = new byte[9];
+        byte[] peeked = new byte[9];
+        byte[] result = new byte[9];
+        
+        for (int cycle = 0; cycle < 20; cycle++) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (cycle * 16 + i);
+            }
+            odd.add(data, 0, data.length);
+            assertTrue(odd.peek(peeked, 0, peeked.length));
+            odd.read(result, 0, result.length);
+            
+            assertArrayEquals(data, peeked);
+            assertArrayEquals(data, result);
+            assertFalse(odd.hasBytes());
+        }
+    }
+    
+    @Test
+    public void testSingleAndBulkOperationsInterleave() {
+        CircularByteBuffer odd = new CircularByteBuffer(5);
+        for (int cycle = 0; cycle < 10; cycle++) {
+            odd.add((byte) 1);
+            odd.add(new byte[] {2, 3, 4}, 0, 3);
+            assertEquals(1, odd.read());
+            byte[] result = new byte[3];
+            odd.read(result, 0, 3);
+            assertArrayEquals(new byte[] {2, 3, 4}, result);
+        }
+    }
+    
+    @Test
+    public void testReadFromFillsContiguousSpace() throws IOException {
+        CircularByteBuffer odd = new CircularByteBuffer(12);
+        byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        
+        odd.add(new byte[10], 0, 10);
+        odd.read(new byte[10], 0, 10);
+        
+        // storage is 16 bytes, so only the 6 bytes up to the end are read in one go
+        assertEquals(6, odd.readFrom(in, 12));
+        assertEquals(6, odd.readFrom(in, 12));
+        assertEquals(0, odd.readFrom(in, 12));
+        
+        byte[] result = new byte[12];
+        odd.read(result, 0, 12);
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i, result[i]);
+        }
+        
+        assertEquals(8, odd.readFrom(in, 12));
+        assertEquals(-1, odd.readFrom(in, 12));
+    }
+    
+    @Test
+    public void testReadUntilStopsBeforeDelimiter() {
+        CircularByteBuffer odd = new CircularByteBuffer(12);
+        odd.add(new byte[10], 0, 10);
+        odd.read(new byte[10], 0, 10);
+        // the run wraps past the end of the 16 byte storage
+        odd.add(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF, 9}, 0, 10);
+        
+        byte[] result = new byte[12];
+        assertEquals(8, odd.readUntil((byte) 0xFF, result, 0, 12));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, result[i]);
+        }
+        assertEquals(0, odd.readUntil((byte) 0xFF, result, 0, 12));
+        assertEquals((byte) 0xFF, odd.read());
+        assertEquals(1, odd.readUntil((byte) 0xFF, result, 0, 12));
+        assertEquals(9, result[0]);
+        assertEquals(0, odd.readUntil((byte) 0xFF, result, 0, 12));
+    }
+}
@@ -0,0 +1,259 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.CancelledKeyException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioTelnetClientTest {
+
+    private static final byte IAC = (byte) 0xFF;
+    private static final byte EOR = (byte) 0xEF;
+
+    private ServerSocket serverSocket;
+    private NioTelnetTransport transport;
+    private BlockingQueue<byte[]> records;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        transport = new NioTelnetTransport(1);
+        records = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+        serverSocket.close();
+    }
+
+    private NioTelnetClient newClient() {
+        NioTelnetClient client = new NioTelnetClient((record, length) -> records.add(Arrays.copyOf(record, length)));
+        // these tests talk raw telnet to the server socket
+        client.setSslEnabled(false);
+        return client;
+    }
+
+    @Test
+    public void testRecordsAreFramedAndUnescaped() throws Exception {
+        NioTelnetClient client = newClient();
+        client.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+
+        try (Socket host = serverSocket.accept()) {
+            OutputStream out = host.getOutputStream();
+            // one record split across writes, with an escaped IAC and a command inside it
+            out.write(new byte[] {1, 2, IAC, IAC});
+            out.flush();
+            Thread.sleep(20);
+            out.write(new byte[] {3, IAC, (byte) TelnetCommand.NOP, 4, IAC, EOR, 5, IAC});
+            out.flush();
+            Thread.sleep(20);
+            out.write(new byte[] {EOR});
+            out.flush();
+
+            assertArrayEquals(new byte[] {1, 2, IAC, 3, 4}, records.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(new byte[] {5}, records.poll(5, TimeUnit.SECONDS));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testNegotiatesThroughOptionHandlers() throws Exception {
+        NioTelnetClient client = newClient();
+        client.addOptionHandler(new TerminalTypeOptionHandler("IBM-3278-2-E", false, false, true, false));
+        client.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+
+        try (Socket host = serverSocket.accept()) {
+            host.setSoTimeout(5000);
+            OutputStream out = host.getOutputStream();
+            out.write(new byte[] {IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.TERMINAL_TYPE});
+            out.write(new byte[] {IAC, (byte) TelnetCommand.SB, (byte) TelnetOption.TERMINAL_TYPE, 1, IAC, (byte) TelnetCommand.SE});
+            out.flush();
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(new byte[] {IAC, (byte) TelnetCommand.WILL, (byte) TelnetOption.TERMINAL_TYPE});
+            expected.write(new byte[] {IAC, (byte) TelnetCommand.SB, (byte) TelnetOption.TERMINAL_TYPE, 0});
+            expected.write("IBM-3278-2-E".getBytes("US-ASCII"));
+            expected.write(new byte[] {IAC, (byte) TelnetCommand.SE});
+
+            assertArrayEquals(expected.toByteArray(), readFully(host.getInputStream(), expected.size()));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testManyIdleConnectionsShareOneSelector() throws Exception {
+        int count = 200;
+        NioTelnetClient[] clients = new NioTelnetClient[count];
+        Socket[] hosts = new Socket[count];
+        int threadsBefore = Thread.activeCount();
+        try {
+            for (int i = 0; i < count; i++) {
+                clients[i] = newClient();
+                clients[i].connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                hosts[i] = serverSocket.accept();
+            }
+            assertTrue(Thread.activeCount() <= threadsBefore + 1);
+
+            // the last connection still works while the others sit idle
+            clients[count - 1].getRawOutputStream().write(new byte[] {7, IAC, EOR});
+            clients[count - 1].getRawOutputStream().flush();
+            assertArrayEquals(new byte[] {7, IAC, EOR}, readFully(hosts[count - 1].getInputStream(), 3));
+        } finally {
+            for (int i = 0; i < count; i++) {
+                if (clients[i] != null) {
+                    clients[i].disconnect();
+                }
+                if (hosts[i] != null) {
+                    hosts[i].close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThrowingListenerClosesOnlyItsConnection() throws Exception {
+        BlockingQueue<IOException> failures = new LinkedBlockingQueue<>();
+        NioTelnetClient failing = new NioTelnetClient(new TelnetRecordListener() {
+            @Override
+            public void recordReceived(byte[] record, int length) {
+                throw new IllegalStateException("bad record");
+            }
+
+            @Override
+            public void disconnected(IOException cause) {
+                failures.add(cause);
+            }
+        });
+        failing.setSslEnabled(false);
+        NioTelnetClient healthy = newClient();
+
+        failing.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try (Socket failingHost = serverSocket.accept()) {
+            healthy.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            try (Socket healthyHost = serverSocket.accept()) {
+                failingHost.getOutputStream().write(new byte[] {1, IAC, EOR});
+                failingHost.getOutputStream().flush();
+
+                IOException cause = failures.poll(5, TimeUnit.SECONDS);
+                assertNotNull(cause);
+                assertTrue(cause.getCause() instanceof IllegalStateException);
+                assertFalse(failing.isConnected());
+
+                // the selector thread survived, the other connection reads and writes
+                healthyHost.getOutputStream().write(new byte[] {2, IAC, EOR});
+                healthyHost.getOutputStream().flush();
+                assertArrayEquals(new byte[] {2}, records.poll(5, TimeUnit.SECONDS));
+                healthy.getRawOutputStream().write(new byte[] {3, IAC, EOR});
+                healthy.getRawOutputStream().flush();
+                assertArrayEquals(new byte[] {3, IAC, EOR}, readFully(healthyHost.getInputStream(), 3));
+                assertTrue(healthy.isConnected());
+            } finally {
+                healthy.disconnect();
+            }
+        } finally {
+            failing.disconnect();
+        }
+    }
+
+    @Test
+    public void testThrowingTaskClosesOnlyItsConnection() throws Exception {
+        BlockingQueue<Boolean> disconnects = new LinkedBlockingQueue<>();
+        NioTelnetClient failing = new NioTelnetClient(new TelnetRecordListener() {
+            @Override
+            public void recordReceived(byte[] record, int length) {
+            }
+
+            @Override
+            public void disconnected(IOException cause) {
+                disconnects.add(cause == null);
+            }
+        });
+        failing.setSslEnabled(false);
+        NioTelnetClient healthy = newClient();
+
+        failing.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        healthy.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try (Socket failingHost = serverSocket.accept(); Socket healthyHost = serverSocket.accept()) {
+            // what a flush queued just before a disconnect from another thread runs into
+            transport.nextLoop().execute(failing, () -> {
+                throw new CancelledKeyException();
+            });
+            assertEquals(Boolean.TRUE, disconnects.poll(5, TimeUnit.SECONDS));
+
+            healthy.getRawOutputStream().write(new byte[] {4, IAC, EOR});
+            healthy.getRawOutputStream().flush();
+            assertArrayEquals(new byte[] {4, IAC, EOR}, readFully(healthyHost.getInputStream(), 3));
+        } finally {
+            failing.disconnect();
+            healthy.disconnect();
+        }
+    }
+
+    @Test
+    public void testSelectorFailureClosesItsConnections() throws Exception {
+        BlockingQueue<IOException> disconnects = new LinkedBlockingQueue<>();
+        NioTelnetClient client = new NioTelnetClient(new TelnetRecordListener() {
+            @Override
+            public void recordReceived(byte[] record, int length) {
+            }
+
+            @Override
+            public void disconnected(IOException cause) {
+                disconnects.add(cause);
+            }
+        });
+        client.setSslEnabled(false);
+        client.connect(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try (Socket host = serverSocket.accept()) {
+            // what a failing select() does to the loop
+            IOException failure = new IOException("select failed");
+            transport.nextLoop().close(failure);
+            assertSame(failure, disconnects.poll(5, TimeUnit.SECONDS));
+            assertFalse(client.isConnected());
+            assertEquals(-1, host.getInputStream().read());
+
+            // connections handed to the stopped loop fail instead of waiting on it
+            NioTelnetClient late = newClient();
+            CompletableFuture<Void> connected = late.connectAsync(transport, InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            try {
+                connected.get(5, TimeUnit.SECONDS);
+                fail("Expected the connect to fail");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int total = 0;
+        while (total < length) {
+            int count = in.read(data, total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return Arrays.copyOf(data, total);
+    }
+}
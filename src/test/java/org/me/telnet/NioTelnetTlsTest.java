@@ -0,0 +1,263 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.*;
+
+public class NioTelnetTlsTest {
+
+    private static final byte IAC = (byte) 0xFF;
+    private static final byte EOR = (byte) 0xEF;
+
+    private static SSLContext context;
+
+    private final NioTelnetTransport transport;
+    private final BlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+
+    public NioTelnetTlsTest() throws IOException {
+        transport = new NioTelnetTransport(1);
+    }
+
+    @BeforeClass
+    public static void loadKeys() throws Exception {
+        // self-signed localhost certificate, trusted by the client side of the same context
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = NioTelnetTlsTest.class.getResourceAsStream("/tls-test.p12")) {
+            keys.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, "changeit".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keys);
+        context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        TlsFallback.clear();
+    }
+
+    private NioTelnetClient newClient() {
+        NioTelnetClient client = new NioTelnetClient((record, length) -> records.add(Arrays.copyOf(record, length)));
+        client.setSslContext(context);
+        return client;
+    }
+
+    private SSLServerSocket tlsServer(String... protocols) throws IOException {
+        SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory()
+            .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        if (protocols.length > 0) {
+            server.setEnabledProtocols(protocols);
+        }
+        return server;
+    }
+
+    @Test
+    public void testRecordsOverTls() throws Exception {
+        try (SSLServerSocket server = tlsServer()) {
+            NioTelnetClient client = newClient();
+            client.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (Socket host = server.accept()) {
+                host.getOutputStream().write(new byte[] {1, 2, IAC, IAC, IAC, EOR});
+                host.getOutputStream().flush();
+                assertArrayEquals(new byte[] {1, 2, IAC}, records.poll(5, TimeUnit.SECONDS));
+                assertNotNull(client.getSslSession());
+
+                client.getRawOutputStream().write(new byte[] {9, IAC, EOR});
+                client.getRawOutputStream().flush();
+                assertArrayEquals(new byte[] {9, IAC, EOR}, readFully(host.getInputStream(), 3));
+            } finally {
+                client.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testKeyUpdateAfterHandshake() throws Exception {
+        try (SSLServerSocket server = tlsServer("TLSv1.3")) {
+            NioTelnetClient client = newClient();
+            client.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (SSLSocket host = (SSLSocket) server.accept()) {
+                host.getOutputStream().write(new byte[] {1, IAC, EOR});
+                host.getOutputStream().flush();
+                assertArrayEquals(new byte[] {1}, records.poll(5, TimeUnit.SECONDS));
+
+                // on an established TLS 1.3 connection this sends a KeyUpdate asking for one back
+                host.startHandshake();
+                host.getOutputStream().write(new byte[] {2, IAC, EOR});
+                host.getOutputStream().flush();
+                assertArrayEquals(new byte[] {2}, records.poll(5, TimeUnit.SECONDS));
+
+                // the client answered under its new keys and did not start negotiating again
+                client.getRawOutputStream().write(new byte[] {9, IAC, EOR});
+                client.getRawOutputStream().flush();
+                assertArrayEquals(new byte[] {9, IAC, EOR}, readFully(host.getInputStream(), 3));
+                assertTrue(client.isConnected());
+            } finally {
+                client.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testReconnectResumesSession() throws Exception {
+        // TLS 1.2 keeps the session id across resumption, which makes it easy to see
+        try (SSLServerSocket server = tlsServer("TLSv1.2")) {
+            byte[][] sessionIds = new byte[2][];
+            for (int i = 0; i < 2; i++) {
+                NioTelnetClient client = newClient();
+                client.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+                try (Socket host = server.accept()) {
+                    host.getOutputStream().write(new byte[] {5, IAC, EOR});
+                    host.getOutputStream().flush();
+                    assertNotNull(records.poll(5, TimeUnit.SECONDS));
+                    sessionIds[i] = client.getSslSession().getId();
+                } finally {
+                    client.disconnect();
+                }
+            }
+            assertTrue(sessionIds[0].length > 0);
+            assertArrayEquals(sessionIds[0], sessionIds[1]);
+        }
+    }
+
+    @Test
+    public void testPlaintextHostIsRemembered() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            NioTelnetClient first = newClient();
+            first.setPlaintextFallback(true);
+            first.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (Socket hello = server.accept()) {
+                // a ClientHello record, answered the way a plaintext host would
+                assertEquals(0x16, hello.getInputStream().read());
+                hello.getOutputStream().write(new byte[] {IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.TERMINAL_TYPE});
+                hello.getOutputStream().flush();
+            }
+            try (Socket host = server.accept()) {
+                host.getOutputStream().write(new byte[] {1, IAC, EOR});
+                host.getOutputStream().flush();
+                assertArrayEquals(new byte[] {1}, records.poll(5, TimeUnit.SECONDS));
+            } finally {
+                first.disconnect();
+            }
+            assertTrue(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+
+            // the second connect goes straight to plaintext over a single connection
+            NioTelnetClient second = newClient();
+            second.setPlaintextFallback(true);
+            second.connect(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (Socket host = server.accept()) {
+                second.getRawOutputStream().write(new byte[] {7, IAC, EOR});
+                second.getRawOutputStream().flush();
+                assertArrayEquals(new byte[] {7, IAC, EOR}, readFully(host.getInputStream(), 3));
+
+                server.setSoTimeout(200);
+                try {
+                    server.accept().close();
+                    fail("Expected no second connection");
+                } catch (SocketTimeoutException expected) {
+                    // no handshake retry
+                }
+            } finally {
+                second.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testPlaintextHostFailsWithoutFallback() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            NioTelnetClient client = newClient();
+            CompletableFuture<Void> connected = client.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (Socket hello = server.accept()) {
+                assertEquals(0x16, hello.getInputStream().read());
+                hello.getOutputStream().write(new byte[] {IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.TERMINAL_TYPE});
+                hello.getOutputStream().flush();
+                assertConnectFails(connected);
+            } finally {
+                client.disconnect();
+            }
+            assertFalse(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            assertNoConnection(server);
+        }
+    }
+
+    @Test
+    public void testUntrustedCertificateNeverFallsBack() throws Exception {
+        SSLContext untrusting = SSLContext.getInstance("TLS");
+        untrusting.init(null, null, null);
+        try (SSLServerSocket server = tlsServer()) {
+            NioTelnetClient client = newClient();
+            client.setSslContext(untrusting);
+            client.setPlaintextFallback(true);
+            CompletableFuture<Void> connected = client.connectAsync(transport, InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try (SSLSocket host = (SSLSocket) server.accept()) {
+                try {
+                    host.startHandshake();
+                } catch (IOException expected) {
+                    // the client aborts once it has seen the certificate
+                }
+                assertConnectFails(connected);
+            } finally {
+                client.disconnect();
+            }
+            assertFalse(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            assertNoConnection(server);
+        }
+    }
+
+    private static void assertConnectFails(CompletableFuture<Void> connected) throws Exception {
+        try {
+            connected.get(5, TimeUnit.SECONDS);
+            fail("Expected the TLS handshake to fail");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof SSLException);
+        }
+    }
+
+    private static void assertNoConnection(ServerSocket server) throws IOException {
+        server.setSoTimeout(200);
+        try {
+            server.accept().close();
+            fail("Expected no plaintext connection");
+        } catch (SocketTimeoutException expected) {
+            // no fallback
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int total = 0;
+        while (total < length) {
+            int count = in.read(data, total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return Arrays.copyOf(data, total);
+    }
+}
@@ -0,0 +1,124 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.*;
+
+public class TelnetClientTlsTest {
+
+    private static SSLContext serverContext;
+
+    @BeforeClass
+    public static void loadKeys() throws Exception {
+        // self-signed, so the client's default trust store rejects it
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = TelnetClientTlsTest.class.getResourceAsStream("/tls-test.p12")) {
+            keys.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, "changeit".toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+    }
+
+    @After
+    public void tearDown() {
+        TlsFallback.clear();
+    }
+
+    @Test
+    public void testUntrustedCertificateIsThrownWithFallbackOn() throws Exception {
+        try (SSLServerSocket server = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Void> host = CompletableFuture.runAsync(() -> {
+                try (SSLSocket socket = (SSLSocket) server.accept()) {
+                    socket.startHandshake();
+                } catch (IOException expected) {
+                    // the client aborts once it has seen the certificate
+                }
+            });
+            TelnetClient client = new TelnetClient();
+            client.setPlaintextFallback(true);
+            try {
+                client.connect(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                fail("Expected the TLS handshake to fail");
+            } catch (SSLException expected) {
+                // no plaintext retry for a host that speaks TLS
+            }
+            host.get(5, TimeUnit.SECONDS);
+            assertFalse(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+
+            server.setSoTimeout(200);
+            try {
+                server.accept().close();
+                fail("Expected no plaintext connection");
+            } catch (SocketTimeoutException expected) {
+                // no fallback
+            }
+        }
+    }
+
+    @Test
+    public void testPlaintextHostFallsBackOnlyWhenEnabled() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (boolean fallback : new boolean[] {false, true}) {
+                CompletableFuture<Void> host = CompletableFuture.runAsync(() -> {
+                    try (Socket hello = server.accept()) {
+                        // answer the ClientHello with telnet negotiation, as a plaintext host would
+                        hello.getInputStream().read();
+                        hello.getOutputStream().write(new byte[] {(byte) TelnetCommand.IAC, (byte) TelnetCommand.DO,
+                            (byte) TelnetOption.TERMINAL_TYPE, (byte) TelnetCommand.IAC, (byte) TelnetCommand.DO,
+                            (byte) TelnetOption.BINARY});
+                        hello.getOutputStream().flush();
+                        hello.getInputStream().read();
+                    } catch (IOException e) {
+                        // the client drops the connection
+                    }
+                });
+                TelnetClient client = new TelnetClient();
+                client.setPlaintextFallback(fallback);
+                if (!fallback) {
+                    try {
+                        client.connect(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                        fail("Expected the TLS handshake to fail");
+                    } catch (SSLException expected) {
+                        assertFalse(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                    }
+                    host.get(5, TimeUnit.SECONDS);
+                    continue;
+                }
+                CompletableFuture<Socket> plaintext = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        host.get(5, TimeUnit.SECONDS);
+                        return server.accept();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                client.connect(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                try (Socket socket = plaintext.get(5, TimeUnit.SECONDS)) {
+                    assertFalse(client.socket instanceof SSLSocket);
+                    assertTrue(TlsFallback.isPlaintext(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                } finally {
+                    client.disconnect();
+                }
+            }
+        }
+    }
+}
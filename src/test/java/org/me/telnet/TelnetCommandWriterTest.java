@@ -0,0 +1,146 @@
+package org.me.telnet;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TelnetCommandWriterTest {
+
+    private static final byte IAC = (byte) TelnetCommand.IAC;
+
+    private RecordingStream wire;
+    private Telnet telnet;
+    private TelnetCommandWriter writer;
+
+    /**
+     * Unbuffered stand-in for the socket that counts write and flush calls.
+     */
+    private static class RecordingStream extends ByteArrayOutputStream {
+        int writes;
+        int flushes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        wire = new RecordingStream();
+        telnet = new Telnet();
+        telnet.output = new BufferedOutputStream(wire) {
+            // pass writes straight through so each one is visible
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                wire.write(b, off, len);
+            }
+
+            @Override
+            public synchronized void flush() {
+                wire.flush();
+            }
+        };
+        writer = telnet.getCommandWriter();
+    }
+
+    @Test
+    public void testSubnegotiationIsOneWriteWithIacDoubled() throws IOException {
+        telnet._sendSubnegotiation(new int[] {TelnetOption.TERMINAL_TYPE, 0, 0xFF, 'A'});
+
+        assertEquals(1, wire.writes);
+        assertEquals(1, wire.flushes);
+        assertArrayEquals(new byte[] {
+            IAC, (byte) TelnetCommand.SB, (byte) TelnetOption.TERMINAL_TYPE, 0, IAC, IAC, 'A',
+            IAC, (byte) TelnetCommand.SE}, wire.toByteArray());
+    }
+
+    @Test
+    public void testLongSubnegotiationGrowsBuffer() throws IOException {
+        int[] data = new int[300];
+        data[0] = TelnetOption.TERMINAL_TYPE;
+        for (int i = 1; i < data.length; i++) {
+            data[i] = 0xFF;
+        }
+        telnet._sendSubnegotiation(data);
+
+        assertEquals(1, wire.writes);
+        assertEquals(4 + 1 + 2 * 299, wire.size());
+    }
+
+    @Test
+    public void testBatchIsFlushedOnce() throws IOException {
+        telnet._beginBatch();
+        telnet._sendWill(TelnetOption.BINARY);
+        telnet._sendDo(TelnetOption.BINARY);
+        telnet._sendSubnegotiation(new int[] {TelnetOption.TERMINAL_TYPE, 0, 'X'});
+        assertEquals(3, wire.writes);
+        assertEquals(0, wire.flushes);
+        telnet._endBatch();
+
+        assertEquals(1, wire.flushes);
+        assertEquals(1, writer.getFlushCount());
+        assertEquals(13, writer.getBytesFlushed());
+        assertEquals(13, writer.getLargestFlush());
+    }
+
+    @Test
+    public void testOtherThreadsAreNotHeldByBatch() throws Exception {
+        telnet._beginBatch();
+        telnet._sendWill(TelnetOption.BINARY);
+        Thread sender = new Thread(() -> {
+            try {
+                telnet._sendCommand(TelnetCommand.AYT);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        sender.start();
+        sender.join();
+        assertEquals(1, wire.flushes);
+
+        telnet._sendDo(TelnetOption.BINARY);
+        assertEquals(1, wire.flushes);
+        telnet._endBatch();
+        assertEquals(2, wire.flushes);
+    }
+
+    @Test
+    public void testStatisticsPerFlush() throws IOException {
+        telnet._sendWill(TelnetOption.BINARY);
+        telnet._sendCommand(TelnetCommand.NOP);
+
+        assertEquals(2, writer.getFlushCount());
+        assertEquals(5, writer.getBytesFlushed());
+        assertEquals(3, writer.getLargestFlush());
+        assertEquals(2.5, writer.getAverageBytesPerFlush(), 0.0001);
+
+        writer.resetStatistics();
+        assertEquals(0, writer.getFlushCount());
+        assertEquals(0, writer.getBytesFlushed());
+    }
+
+    @Test
+    public void testEmptyBatchDoesNotFlush() throws IOException {
+        telnet._beginBatch();
+        telnet._endBatch();
+        assertEquals(0, wire.flushes);
+        assertEquals(0, writer.getFlushCount());
+    }
+}
@@ -0,0 +1,162 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TelnetInputStreamTest {
+
+    private ServerSocket serverSocket;
+    private TelnetClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new TelnetClient();
+        client.setSslEnabled(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.disconnect();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testBulkReadStripsTelnetSequences() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        wire.write(new byte[] {1, 2, 3});
+        expected.write(new byte[] {1, 2, 3});
+        wire.write(new byte[] {(byte) 0xFF, (byte) 0xFF});                        // IAC IAC
+        expected.write(0xFF);
+        wire.write(new byte[] {(byte) 0xFF, (byte) 0xFE, (byte) 0x01});           // IAC DONT ECHO
+        wire.write(new byte[] {(byte) 0xFF, (byte) 0xFA, 24, 1, (byte) 0xFF, (byte) 0xF0});  // IAC SB TT SEND IAC SE
+        wire.write(new byte[] {4, 5});
+        expected.write(new byte[] {4, 5});
+        wire.write(new byte[] {(byte) 0xFF, (byte) 0xEF});                        // IAC EOR stays in the data
+        expected.write(new byte[] {(byte) 0xFF, (byte) 0xEF});
+
+        // a 27x132 screen worth of data, larger than the decoder's ring
+        byte[] screen = new byte[27 * 132 * 4];
+        for (int i = 0; i < screen.length; i++) {
+            screen[i] = (byte) (i % 0xF0);
+        }
+        wire.write(screen);
+        expected.write(screen);
+
+        assertArrayEquals(expected.toByteArray(), readAll(wire.toByteArray(), 1000));
+    }
+
+    @Test
+    public void testSingleByteAndBulkReadsAgree() throws Exception {
+        byte[] wire = {10, (byte) 0xFF, (byte) 0xFF, 11, (byte) 0xFF, (byte) 0xFB, 0x03, 12, (byte) 0xFF, (byte) 0xEF};
+        byte[] expected = {10, (byte) 0xFF, 11, 12, (byte) 0xFF, (byte) 0xEF};
+
+        assertArrayEquals(expected, readAll(wire, 1));
+    }
+
+    @Test(timeout = 10000)
+    public void testTrailingIacDoesNotHoldBackData() throws Exception {
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try (Socket host = serverSocket.accept()) {
+            OutputStream out = host.getOutputStream();
+            // the IAC EOR is split across writes
+            out.write(new byte[] {1, 2, (byte) 0xFF});
+            out.flush();
+
+            InputStream in = client.getInputStream();
+            byte[] buffer = new byte[16];
+            CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return in.read(buffer, 0, buffer.length);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertEquals(Integer.valueOf(2), first.get(2, TimeUnit.SECONDS));
+            assertArrayEquals(new byte[] {1, 2}, Arrays.copyOf(buffer, 2));
+
+            out.write(new byte[] {(byte) 0xEF});
+            out.flush();
+            assertEquals(2, in.read(buffer, 0, buffer.length));
+            assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xEF}, Arrays.copyOf(buffer, 2));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCommandsGoOutWhileReaderWaits() throws Exception {
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        try (Socket host = serverSocket.accept()) {
+            host.getOutputStream().write(new byte[] {(byte) 0xFF, (byte) TelnetCommand.NOP});
+            host.getOutputStream().flush();
+
+            InputStream in = client.getInputStream();
+            Thread reader = new Thread(() -> {
+                try {
+                    in.read();
+                } catch (IOException e) {
+                    // disconnected at the end of the test
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            // let the reader decode the NOP and block waiting for data
+            Thread.sleep(200);
+
+            client.sendAYT(0);
+            host.setSoTimeout(2000);
+            InputStream replies = host.getInputStream();
+            int previous = -1;
+            int b;
+            // skip the option requests sent on connect
+            while ((b = replies.read()) != -1 && !(previous == 0xFF && b == TelnetCommand.AYT)) {
+                previous = b;
+            }
+            assertEquals(TelnetCommand.AYT, b);
+        }
+    }
+
+    private byte[] readAll(byte[] wire, int chunkSize) throws Exception {
+        Thread host = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                OutputStream out = socket.getOutputStream();
+                out.write(wire);
+                out.flush();
+                // drain replies until the client hangs up
+                socket.shutdownOutput();
+                InputStream in = socket.getInputStream();
+                while (in.read() != -1) {
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+        });
+        host.setDaemon(true);
+        host.start();
+
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer, 0, buffer.length)) != -1) {
+            assertTrue(bytesRead > 0);
+            decoded.write(buffer, 0, bytesRead);
+        }
+        return decoded.toByteArray();
+    }
+}
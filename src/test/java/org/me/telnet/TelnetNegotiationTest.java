@@ -0,0 +1,198 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class TelnetNegotiationTest {
+
+    private static final int IAC = TelnetCommand.IAC;
+    private static final int PORT = 2323;
+
+    private CountingStream wire;
+    private Telnet telnet;
+
+    /**
+     * Stands in for the socket, counting how many times the buffered replies are pushed out.
+     */
+    private static class CountingStream extends ByteArrayOutputStream {
+        int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        byte[] take() {
+            byte[] data = toByteArray();
+            reset();
+            flushes = 0;
+            return data;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        telnet = newTelnet(false);
+    }
+
+    @After
+    public void tearDown() {
+        NegotiationProfile.clear();
+    }
+
+    private Telnet newTelnet(boolean init) throws IOException {
+        wire = new CountingStream();
+        Telnet t = new Telnet();
+        t.output = new BufferedOutputStream(wire);
+        t.addOptionHandler(new SimpleOptionHandler(TelnetOption.BINARY, init, init, true, true));
+        t.addOptionHandler(new SimpleOptionHandler(TelnetOption.END_OF_RECORD, init, init, true, true));
+        t.addOptionHandler(new TerminalTypeOptionHandler("IBM-3278-2-E", false, false, true, false));
+        return t;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void testRepliesInOneBatchAreFlushedOnce() throws IOException {
+        telnet._beginBatch();
+        telnet._processDo(TelnetOption.TERMINAL_TYPE);
+        telnet._processDo(TelnetOption.BINARY);
+        telnet._processWill(TelnetOption.BINARY);
+        assertEquals(0, wire.flushes);
+        telnet._endBatch();
+
+        assertEquals(1, wire.flushes);
+        assertArrayEquals(bytes(
+            IAC, TelnetCommand.WILL, TelnetOption.TERMINAL_TYPE,
+            IAC, TelnetCommand.WILL, TelnetOption.BINARY,
+            IAC, TelnetCommand.DO, TelnetOption.BINARY), wire.take());
+    }
+
+    @Test
+    public void testRepliesOutsideBatchFlushImmediately() throws IOException {
+        telnet._processDo(TelnetOption.BINARY);
+        assertEquals(1, wire.flushes);
+        assertArrayEquals(bytes(IAC, TelnetCommand.WILL, TelnetOption.BINARY), wire.take());
+    }
+
+    @Test
+    public void testConnectRequestsGoOutInOneWrite() throws IOException {
+        telnet = newTelnet(true);
+        telnet._connectAction_();
+
+        assertEquals(1, wire.flushes);
+        assertEquals(12, wire.take().length);
+    }
+
+    @Test
+    public void testAcknowledgementIsNotAnswered() throws IOException {
+        telnet = newTelnet(true);
+        telnet._connectAction_();
+        wire.take();
+
+        telnet._processDo(TelnetOption.BINARY);
+        telnet._processWill(TelnetOption.END_OF_RECORD);
+        assertEquals(0, wire.take().length);
+    }
+
+    @Test
+    public void testProfilePresendsOptionsTheHostAgreedTo() throws IOException {
+        InetAddress host = InetAddress.getLoopbackAddress();
+        telnet.setNegotiationProfileEnabled(true);
+        telnet._setRemote(host, PORT);
+        telnet._connectAction_();
+        assertEquals(0, wire.take().length);
+
+        telnet._processDo(TelnetOption.BINARY);
+        telnet._processWill(TelnetOption.BINARY);
+        telnet._processDo(TelnetOption.TERMINAL_TYPE);
+        assertTrue(NegotiationProfile.get(host, PORT).isLocal(TelnetOption.TERMINAL_TYPE));
+
+        // the next connection asks for all of it up front, then the host's requests
+        // are acknowledgements
+        telnet = newTelnet(false);
+        telnet.setNegotiationProfileEnabled(true);
+        telnet._setRemote(host, PORT);
+        telnet._connectAction_();
+        assertEquals(1, wire.flushes);
+        assertArrayEquals(bytes(
+            IAC, TelnetCommand.WILL, TelnetOption.BINARY,
+            IAC, TelnetCommand.DO, TelnetOption.BINARY,
+            IAC, TelnetCommand.WILL, TelnetOption.TERMINAL_TYPE), wire.take());
+
+        telnet._processDo(TelnetOption.BINARY);
+        telnet._processWill(TelnetOption.BINARY);
+        telnet._processDo(TelnetOption.TERMINAL_TYPE);
+        assertEquals(0, wire.take().length);
+    }
+
+    @Test
+    public void testRefusedRequestIsDroppedFromProfile() throws IOException {
+        InetAddress host = InetAddress.getLoopbackAddress();
+        telnet.setNegotiationProfileEnabled(true);
+        telnet._setRemote(host, PORT);
+        telnet._connectAction_();
+        telnet._processWill(TelnetOption.END_OF_RECORD);
+        assertTrue(NegotiationProfile.get(host, PORT).isRemote(TelnetOption.END_OF_RECORD));
+
+        telnet._processWont(TelnetOption.END_OF_RECORD);
+        assertFalse(NegotiationProfile.get(host, PORT).isRemote(TelnetOption.END_OF_RECORD));
+    }
+
+    @Test
+    public void testHandlerTableLookupAndReplace() throws IOException {
+        assertEquals(TelnetOption.BINARY, telnet.getOptionHandler(TelnetOption.BINARY).getOptionCode());
+        assertNull(telnet.getOptionHandler(TelnetOption.ECHO));
+
+        telnet.addOptionHandler(new SimpleOptionHandler(TelnetOption.BINARY, false, false, false, false));
+        telnet._processDo(TelnetOption.BINARY);
+        assertArrayEquals(bytes(IAC, TelnetCommand.WONT, TelnetOption.BINARY), wire.take());
+
+        telnet.deleteOptionHandler(TelnetOption.END_OF_RECORD);
+        assertNull(telnet.getOptionHandler(TelnetOption.END_OF_RECORD));
+        telnet._processWill(TelnetOption.END_OF_RECORD);
+        assertArrayEquals(bytes(IAC, TelnetCommand.DONT, TelnetOption.END_OF_RECORD), wire.take());
+    }
+
+    @Test
+    public void testHandlersChangeWhileNegotiating() throws Exception {
+        Thread registrar = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                try {
+                    telnet.addOptionHandler(new SimpleOptionHandler(TelnetOption.ECHO, false, false, true, true));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                telnet.deleteOptionHandler(TelnetOption.ECHO);
+            }
+        });
+        registrar.start();
+        for (int i = 0; i < 20000; i++) {
+            telnet._processSuboption(new int[] {TelnetOption.ECHO, 1}, 2);
+            TelnetOptionHandler handler = telnet.getOptionHandler(TelnetOption.ECHO);
+            assertTrue(handler == null || handler.getOptionCode() == TelnetOption.ECHO);
+        }
+        registrar.join();
+    }
+
+    @Test
+    public void testProfileOffByDefault() throws IOException {
+        telnet._setRemote(InetAddress.getLoopbackAddress(), PORT);
+        telnet._connectAction_();
+        telnet._processDo(TelnetOption.BINARY);
+        assertNull(NegotiationProfile.get(InetAddress.getLoopbackAddress(), PORT));
+    }
+}
@@ -0,0 +1,90 @@
+package org.me.telnet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TelnetOutputStreamTest {
+
+    private ServerSocket serverSocket;
+    private TelnetClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new TelnetClient();
+        client.setSslEnabled(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.disconnect();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testBulkWriteDoublesEveryIac() throws Exception {
+        byte[] data = {(byte) 0xFF, 1, 2, (byte) 0xFF, (byte) 0xFF, 3, (byte) 0xFF};
+        byte[] expected = {
+            (byte) 0xFF, (byte) 0xFF, 1, 2,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 3,
+            (byte) 0xFF, (byte) 0xFF
+        };
+
+        assertArrayEquals(expected, sendAndCapture(out -> out.write(data, 0, data.length)));
+    }
+
+    @Test
+    public void testBulkWriteHonoursOffsetAndLength() throws Exception {
+        byte[] data = {9, 9, 4, (byte) 0xFF, 5, 9};
+        byte[] expected = {4, (byte) 0xFF, (byte) 0xFF, 5};
+
+        assertArrayEquals(expected, sendAndCapture(out -> out.write(data, 2, 3)));
+    }
+
+    @Test
+    public void testLargeWriteWithoutIacPassesThrough() throws Exception {
+        byte[] data = new byte[27 * 132 * 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 0xF0);
+        }
+
+        assertArrayEquals(data, sendAndCapture(out -> out.write(data)));
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private byte[] sendAndCapture(Writer writer) throws Exception {
+        CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream captured = new ByteArrayOutputStream();
+                in.transferTo(captured);
+                return captured.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        OutputStream out = client.getOutputStream();
+        writer.write(out);
+        out.flush();
+        client.disconnect();
+
+        return received.get(10, TimeUnit.SECONDS);
+    }
+}
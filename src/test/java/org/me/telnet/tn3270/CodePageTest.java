@@ -0,0 +1,106 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CodePageTest {
+
+    private static final CodePage[] PAGES = {
+        CodePage.CP037, CodePage.CP1047, CodePage.CP273, CodePage.CP285, CodePage.CP500, CodePage.CP1140
+    };
+
+    @Test
+    public void testEveryGraphicRoundTrips() {
+        for (CodePage page : PAGES) {
+            for (int code = 0x40; code < 0xFF; code++) {
+                char c = page.decode((byte) code);
+                assertEquals(page + " X'" + Integer.toHexString(code) + "'", (byte) code, page.encode(c));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesJdkCharsets() {
+        String[] names = {"IBM037", "IBM1047", "IBM273", "IBM285", "IBM500", "IBM01140"};
+        for (int i = 0; i < PAGES.length; i++) {
+            if (!Charset.isSupported(names[i])) {
+                continue;
+            }
+            byte[] graphics = new byte[0xFF - 0x40];
+            for (int code = 0x40; code < 0xFF; code++) {
+                graphics[code - 0x40] = (byte) code;
+            }
+            char[] decoded = new char[graphics.length];
+            PAGES[i].decode(graphics, 0, graphics.length, decoded, 0);
+            assertEquals(names[i], new String(graphics, Charset.forName(names[i])), new String(decoded));
+        }
+    }
+
+    @Test
+    public void testControlsDisplayAsSpaces() {
+        for (CodePage page : PAGES) {
+            for (int code = 0; code < 0x40; code++) {
+                assertEquals(' ', page.decode((byte) code));
+            }
+            assertEquals(' ', page.decode((byte) 0xFF));
+            assertEquals(0x40, page.encode(' '));
+        }
+    }
+
+    @Test
+    public void testNationalCharacters() {
+        assertEquals('[', CodePage.CP037.decode((byte) 0xBA));
+        assertEquals('[', CodePage.CP1047.decode((byte) 0xAD));
+        assertEquals('Ä', CodePage.CP273.decode((byte) 0x4A));
+        assertEquals('£', CodePage.CP285.decode((byte) 0x5B));
+        assertEquals('[', CodePage.CP500.decode((byte) 0x4A));
+        assertEquals('¤', CodePage.CP037.decode((byte) 0x9F));
+        assertEquals('€', CodePage.CP1140.decode((byte) 0x9F));
+        assertEquals((byte) 0x9F, CodePage.CP1140.encode('€'));
+    }
+
+    @Test
+    public void testUnmappedCharactersEncodeAsSpace() {
+        assertEquals(0x40, CodePage.CP037.encode('€'));
+        assertEquals(0x40, CodePage.CP037.encode('中'));
+        assertEquals(0x40, CodePage.CP037.encode('\u0000'));
+    }
+
+    @Test
+    public void testBulkConversionOfARow() {
+        String row = "[READY] Grüße €100";
+        byte[] encoded = new byte[row.length() + 2];
+        CodePage.CP1140.encode(row.toCharArray(), 0, row.length(), encoded, 2);
+        assertArrayEquals(CodePage.CP1140.encode(row), Arrays.copyOfRange(encoded, 2, encoded.length));
+
+        char[] decoded = new char[row.length()];
+        CodePage.CP1140.decode(encoded, 2, row.length(), decoded, 0);
+        assertEquals(row, new String(decoded));
+    }
+
+    @Test
+    public void testForCcsid() {
+        assertSame(CodePage.CP037, CodePage.forCcsid(37));
+        assertSame(CodePage.CP1140, CodePage.forCcsid(1140));
+        assertEquals(273, CodePage.forCcsid(273).getCcsid());
+        try {
+            CodePage.forCcsid(930);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // double-byte pages are not supported
+        }
+    }
+
+    @Test
+    public void testScreenBufferDecodesWithSessionCodePage() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        buffer.setCodePage(CodePage.CP273);
+        buffer.pushEbcdic((byte) 0x4A);
+        buffer.pushEbcdic((byte) 0xC1);
+        assertEquals('Ä', buffer.asciiAt(0));
+        assertEquals('A', buffer.asciiAt(1));
+    }
+}
@@ -0,0 +1,133 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class DataStreamBuilderTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    /**
+     * @return a screen with a modified input field "AB" at 1, followed by a protected field
+     */
+    private static ScreenBuffer formScreen() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        byte[] record = bytes(
+            0xF5, 0x02,             // Erase/Write
+            0x1D, 0x41,             // SF unprotected, modified
+            0xC1, 0xC2,             // "AB"
+            0x1D, 0x60              // SF protected
+        );
+        new DataStreamParser(buffer).parse(record, 0, record.length);
+        return buffer;
+    }
+
+    @Test
+    public void testModifiedFieldRecord() throws IOException {
+        DataStreamBuilder builder = new DataStreamBuilder(formScreen());
+        byte[] expected = bytes(0x7D, 0x40, 0x40, 0x11, 0x40, 0xC1, 0xC1, 0xC2, 0xFF, 0xEF);
+
+        assertArrayEquals(expected, builder.build(CommandKey.ENTER.getValue()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.send(CommandKey.ENTER.getValue(), out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void testIacInAddressIsDoubled() throws IOException {
+        ScreenBuffer buffer = new ScreenBuffer(62, 160);
+        buffer.setCursorPosition(0x10FF);
+        DataStreamBuilder builder = new DataStreamBuilder(buffer);
+
+        assertArrayEquals(bytes(0x7D, 0x10, 0xFF, 0xFF, 0xFF, 0xEF), builder.build(CommandKey.ENTER.getValue()));
+    }
+
+    @Test
+    public void testClearSendsOnlyTheAid() throws IOException {
+        ScreenBuffer buffer = formScreen();
+        DataStreamBuilder builder = new DataStreamBuilder(buffer);
+
+        assertArrayEquals(bytes(0x6D, 0xFF, 0xEF), builder.build(CommandKey.CLEAR.getValue()));
+        assertFalse(buffer.hasFields());
+    }
+
+    @Test
+    public void testBuildIntoCallerBuffer() {
+        DataStreamBuilder builder = new DataStreamBuilder(formScreen());
+        ByteBuffer out = ByteBuffer.allocateDirect(builder.getMaxRecordLength() + 2);
+        out.put((byte) 0x99);
+
+        int length = builder.build(CommandKey.ENTER.getValue(), out);
+        assertEquals(10, length);
+        assertEquals(11, out.position());
+
+        byte[] record = new byte[length];
+        out.flip();
+        out.position(1);
+        out.get(record);
+        assertArrayEquals(bytes(0x7D, 0x40, 0x40, 0x11, 0x40, 0xC1, 0xC1, 0xC2, 0xFF, 0xEF), record);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testBufferTooSmall() {
+        new DataStreamBuilder(formScreen()).build(CommandKey.ENTER.getValue(), ByteBuffer.allocate(6));
+    }
+
+    @Test
+    public void testLargeRecordGrowsInternalBuffer() throws IOException {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        // one input field covering the whole screen
+        byte[] record = new byte[4 + 1919];
+        record[0] = (byte) 0xF5;
+        record[1] = 0x02;
+        record[2] = 0x1D;
+        record[3] = 0x41;
+        Arrays.fill(record, 4, record.length, (byte) 0xC1);
+        new DataStreamParser(buffer).parse(record, 0, record.length);
+
+        byte[] sent = new DataStreamBuilder(buffer).build(CommandKey.ENTER.getValue());
+        assertEquals(3 + 3 + 1919 + 2, sent.length);
+        assertEquals((byte) 0xC1, sent[sent.length - 3]);
+    }
+
+    @Test
+    public void testSendDoesNotAllocate() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        DataStreamBuilder builder = new DataStreamBuilder(formScreen());
+        OutputStream out = OutputStream.nullOutputStream();
+        byte aid = CommandKey.ENTER.getValue();
+        for (int i = 0; i < 20_000; i++) {
+            builder.send(aid, out);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10_000; i++) {
+            builder.send(aid, out);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // a byte[] per key would be well over 100 KB, leave room for the interpreter
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
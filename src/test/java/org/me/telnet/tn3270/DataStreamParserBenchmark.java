@@ -0,0 +1,141 @@
+package org.me.telnet.tn3270;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of classifying every byte of a full 24x80 form screen with the parser's
+ * lookup tables compared with the chains of comparisons they replaced, plus the
+ * throughput of parsing the whole record.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.me.telnet.tn3270.DataStreamParserBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataStreamParserBenchmark {
+
+    private byte[] record;
+    private DataStreamParser parser;
+
+    @Setup
+    public void setUp() {
+        parser = new DataStreamParser(new ScreenBuffer(24, 80));
+        record = formScreen();
+    }
+
+    @Benchmark
+    public int tableClassify() {
+        int orders = 0;
+        for (byte b : record) {
+            if (parser.isOrder(b)) {
+                orders++;
+            } else if (parser.isCommand(b)) {
+                orders--;
+            }
+        }
+        return orders;
+    }
+
+    @Benchmark
+    public int chainClassify() {
+        int orders = 0;
+        for (byte b : record) {
+            if (Chains.isOrder(b)) {
+                orders++;
+            } else if (Chains.isCommand(b)) {
+                orders--;
+            }
+        }
+        return orders;
+    }
+
+    @Benchmark
+    public DataStreamParser parseScreen() {
+        parser.parse(record, 0, record.length);
+        return parser;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(DataStreamParserBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+
+    /**
+     * Erase/Write of a screen with a label and an input field on every row, the
+     * order density of a typical CICS map.
+     */
+    static byte[] formScreen() {
+        byte[] label = CodePage.CP037.encode("ACCOUNT NUMBER ....");
+        byte[] value = CodePage.CP037.encode("0000012345");
+        byte[] record = new byte[2 + 24 * (3 + 2 + label.length + 2 + value.length + 2) + 1];
+        int p = 0;
+        record[p++] = (byte) 0xF5;
+        record[p++] = (byte) 0xC2;
+        for (int row = 0; row < 24; row++) {
+            byte[] address = Tn3270Conversions.encodeAddress(row * 80);
+            record[p++] = 0x11;
+            record[p++] = address[0];
+            record[p++] = address[1];
+            record[p++] = 0x1D;
+            record[p++] = (byte) 0x60;
+            System.arraycopy(label, 0, record, p, label.length);
+            p += label.length;
+            record[p++] = 0x1D;
+            record[p++] = (byte) 0x40;
+            System.arraycopy(value, 0, record, p, value.length);
+            p += value.length;
+            record[p++] = 0x1D;
+            record[p++] = (byte) 0x60;
+        }
+        record[p] = 0x13;
+        return record;
+    }
+
+    /**
+     * The previous DataStreamParser classification: one comparison per known code.
+     */
+    static final class Chains {
+
+        static boolean isCommand(byte b) {
+            return b == (byte) 0xF1 ||
+                   b == (byte) 0xF5 ||
+                   b == (byte) 0x7E ||
+                   b == (byte) 0x6F ||
+                   b == (byte) 0xF2 ||
+                   b == (byte) 0xF6 ||
+                   b == (byte) 0x6E ||
+                   b == (byte) 0xF3;
+        }
+
+        static boolean isOrder(byte b) {
+            return b == (byte) 0x1D ||
+                   b == (byte) 0x29 ||
+                   b == (byte) 0x11 ||
+                   b == (byte) 0x28 ||
+                   b == (byte) 0x13 ||
+                   b == (byte) 0x05 ||
+                   b == (byte) 0x3C ||
+                   b == (byte) 0x12 ||
+                   b == (byte) 0x2C ||
+                   b == (byte) 0x08;
+        }
+    }
+}
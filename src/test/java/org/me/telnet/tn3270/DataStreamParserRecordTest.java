@@ -0,0 +1,175 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import org.me.io.PeekableInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DataStreamParserRecordTest {
+    
+    @Test
+    public void testParseRecordSlice() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        
+        // record embedded in a larger array, surrounded by bytes that must be ignored
+        byte[] data = new byte[] {
+            (byte) 0x99, (byte) 0x99,
+            (byte) 0xF5,  // CMD_ERASE_WRITE
+            (byte) 0x02,  // WCC
+            (byte) 0x11, (byte) 0x40, (byte) 0x4A,  // SBA row 0, col 10
+            (byte) 0xC8, (byte) 0x85, (byte) 0x93, (byte) 0x93, (byte) 0x96,  // "Hello"
+            (byte) 0x99, (byte) 0x99
+        };
+        
+        parser.parse(data, 2, data.length - 4);
+        
+        assertEquals("Hello", buffer.string(0).trim());
+        assertEquals(10, buffer.string(0).indexOf("Hello"));
+        assertFalse(buffer.isKeyboardLocked());
+    }
+    
+    @Test
+    public void testParseSliceStopsAtIacEor() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        
+        byte[] data = new byte[] {
+            (byte) 0xF5, (byte) 0x02,
+            (byte) 0xC1,                // "A"
+            (byte) 0xFF, (byte) 0xEF,   // IAC EOR
+            (byte) 0xC2                 // "B", after the end of the record
+        };
+        
+        parser.parse(data, 0, data.length);
+        
+        assertEquals("A", buffer.string(0).trim());
+    }
+    
+    @Test
+    public void testParseStreamLeavesNextRecord() throws IOException {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        
+        byte[] data = new byte[] {
+            (byte) 0xF5, (byte) 0x02, (byte) 0xC1, (byte) 0xFF, (byte) 0xEF,
+            (byte) 0xF1, (byte) 0x02, (byte) 0xC2, (byte) 0xFF, (byte) 0xEF
+        };
+        PeekableInputStream stream = new PeekableInputStream(new ByteArrayInputStream(data));
+        
+        parser.parse(stream);
+        assertEquals("A", buffer.string(0).trim());
+        
+        // Write does not clear, so "B" lands after "A"
+        parser.parse(stream);
+        assertEquals("AB", buffer.string(0).trim());
+        
+        assertEquals(-1, stream.read());
+    }
+    
+    @Test
+    public void testTruncatedOrderIsIgnored() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        
+        byte[] data = new byte[] {
+            (byte) 0xF5, (byte) 0x02, (byte) 0xC1,
+            (byte) 0x11, (byte) 0x40   // SBA missing its second address byte
+        };
+        
+        parser.parse(data, 0, data.length);
+        
+        assertEquals("A", buffer.string(0).trim());
+    }
+    
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testParseInvalidSlice() {
+        DataStreamParser parser = new DataStreamParser(new ScreenBuffer(24, 80));
+        parser.parse(new byte[4], 2, 4);
+    }
+    
+    @Test
+    public void testParsePublishesOneChangePerRecord() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        List<ScreenChange> changes = new ArrayList<>();
+        buffer.addChangeListener(changes::add);
+        
+        parser.parse(new byte[] {
+            (byte) 0xF1, (byte) 0x02,               // CMD_WRITE
+            (byte) 0x11, (byte) 0xC1, (byte) 0x50,  // SBA row 1, col 0
+            (byte) 0x1D, (byte) 0x40,               // SF unprotected
+            (byte) 0xC1, (byte) 0xC2                // "AB"
+        }, 0, 9);
+        
+        assertEquals(1, changes.size());
+        assertEquals(1, changes.get(0).dirtyRows().cardinality());
+        assertTrue(changes.get(0).isRowDirty(1));
+        assertArrayEquals(new int[] {80}, changes.get(0).changedFields());
+    }
+    
+    @Test
+    public void testLocalAndSnaCommandCodesAreEquivalent() {
+        DataStreamParser parser = new DataStreamParser(new ScreenBuffer(24, 80));
+        int[][] pairs = {
+            {0x01, 0xF1}, {0x05, 0xF5}, {0x0D, 0x7E}, {0x0F, 0x6F},
+            {0x02, 0xF2}, {0x06, 0xF6}, {0x0E, 0x6E}, {0x11, 0xF3}
+        };
+        for (int[] pair : pairs) {
+            assertTrue(parser.isCommand((byte) pair[0]));
+            assertTrue(parser.isCommand((byte) pair[1]));
+            assertEquals(parser.isWriteCommand((byte) pair[1]), parser.isWriteCommand((byte) pair[0]));
+        }
+        assertTrue(parser.isWriteCommand((byte) 0x0D));
+        assertFalse(parser.isWriteCommand((byte) 0x06));
+        assertFalse(parser.isCommand((byte) 0xC1));
+        assertFalse(parser.isCommand((byte) 0xF4));
+    }
+    
+    @Test
+    public void testEraseWriteAlternateIsNotTakenForAnotherCommand() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        parser.parse(new byte[] {(byte) 0xF5, (byte) 0x02, (byte) 0xC1, (byte) 0xC1}, 0, 4);
+        
+        // 0x7E used to be "corrected" to 0x6E, Read Modified All, and the screen kept its old contents
+        parser.parse(new byte[] {(byte) 0x7E, (byte) 0x02, (byte) 0xC2}, 0, 3);
+        assertEquals("B", buffer.string(0).trim());
+        
+        parser.parse(new byte[] {(byte) 0x0D, (byte) 0x02, (byte) 0xC3}, 0, 3);
+        assertEquals("C", buffer.string(0).trim());
+    }
+    
+    @Test
+    public void testEraseAllUnprotectedIsRecognised() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        parser.parse(new byte[] {
+            (byte) 0xF5, (byte) 0x00,
+            (byte) 0x1D, (byte) 0x40,               // SF unprotected
+            (byte) 0xC1, (byte) 0xC2
+        }, 0, 6);
+        assertTrue(buffer.isKeyboardLocked());
+        
+        parser.parse(new byte[] {(byte) 0x6F, (byte) 0x02}, 0, 2);
+        assertEquals("", buffer.string(0).trim());
+        assertFalse(buffer.isKeyboardLocked());
+    }
+    
+    @Test
+    public void testOrderTableMatchesEveryOrder() {
+        DataStreamParser parser = new DataStreamParser(new ScreenBuffer(24, 80));
+        int orders = 0;
+        for (int b = 0; b < 256; b++) {
+            if (parser.isOrder((byte) b)) {
+                orders++;
+                assertTrue(DataStreamParserBenchmark.Chains.isOrder((byte) b));
+            }
+        }
+        assertEquals(10, orders);
+    }
+}
@@ -0,0 +1,144 @@
+package org.me.telnet.tn3270;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+import org.me.telnet.TelnetCommand;
+import org.me.telnet.TelnetOption;
+
+/**
+ * Minimal in-process TN3270 host for tests and benchmarks. It negotiates
+ * TERMINAL-TYPE, BINARY and END-OF-RECORD, paints a screen on connect and
+ * repaints it every time the client sends a record.
+ */
+public class FakeTn3270Host implements Closeable {
+    private final ServerSocket serverSocket;
+    private final byte[] screenRecord;
+    private final Thread acceptThread;
+    private final ThreadFactory sessionThreads;
+    private volatile boolean running = true;
+
+    public FakeTn3270Host(byte[] screenRecord) throws IOException {
+        this(screenRecord, r -> {
+            Thread session = new Thread(r, "fake-tn3270-session");
+            session.setDaemon(true);
+            return session;
+        });
+    }
+
+    /**
+     * @param sessionThreads creates the thread serving each accepted connection
+     */
+    public FakeTn3270Host(byte[] screenRecord, ThreadFactory sessionThreads) throws IOException {
+        this.screenRecord = screenRecord;
+        this.sessionThreads = sessionThreads;
+        this.serverSocket = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        this.acceptThread = new Thread(this::acceptLoop, "fake-tn3270-accept");
+        this.acceptThread.setDaemon(true);
+        this.acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Builds an Erase/Write record with a protected title line holding {@code text}
+     * and an unprotected input field on the second row.
+     */
+    public static byte[] screen(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xF5);                        // Erase/Write
+        out.write(0xC3);                        // WCC: reset MDT, keyboard restore
+        out.write(0x11); out.write(0x40); out.write(0x40);  // SBA 0
+        out.write(0x1D); out.write(0x60);       // SF protected
+        for (char c : text.toCharArray()) {
+            out.write(Tn3270Conversions.asciiToEbcdic(c));
+        }
+        out.write(0x11); out.write(0xC1); out.write(0x50);  // SBA 80
+        out.write(0x1D); out.write(0x40);       // SF unprotected
+        out.write(0x13);                        // IC
+        out.write(0x11); out.write(0xC1); out.write(0xE4);  // SBA 100
+        out.write(0x1D); out.write(0x60);       // SF protected
+        out.write(TelnetCommand.IAC);
+        out.write(TelnetCommand.EOR);
+        return out.toByteArray();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                sessionThreads.newThread(() -> serve(socket)).start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+
+            out.write(new byte[] {
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.TERMINAL_TYPE,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.SB, (byte) TelnetOption.TERMINAL_TYPE, 1,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.SE,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.END_OF_RECORD,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.WILL, (byte) TelnetOption.END_OF_RECORD,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.DO, (byte) TelnetOption.BINARY,
+                (byte) TelnetCommand.IAC, (byte) TelnetCommand.WILL, (byte) TelnetOption.BINARY
+            });
+            out.write(screenRecord);
+            out.flush();
+
+            int b;
+            while (running && (b = in.read()) != -1) {
+                if (b != TelnetCommand.IAC) {
+                    continue;  // inbound data, the content does not matter here
+                }
+                int command = in.read();
+                switch (command) {
+                    case TelnetCommand.EOR:
+                        out.write(screenRecord);
+                        out.flush();
+                        break;
+                    case TelnetCommand.WILL:
+                    case TelnetCommand.WONT:
+                    case TelnetCommand.DO:
+                    case TelnetCommand.DONT:
+                        in.read();
+                        break;
+                    case TelnetCommand.SB:
+                        int previous = 0;
+                        while ((b = in.read()) != -1 && !(previous == TelnetCommand.IAC && b == TelnetCommand.SE)) {
+                            previous = (previous == TelnetCommand.IAC && b == TelnetCommand.IAC) ? 0 : b;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+}
@@ -17,7 +17,7 @@ public class IacEorHandlingTest {
         
         // Create a data stream that includes IAC,EOR at the end
         byte[] dataStream = new byte[] {
-            (byte) 0x05,  // Will be corrected to 0xF5 (CMD_ERASE_WRITE)
+            (byte) 0x05,  // local Erase/Write, same as 0xF5
             (byte) 0x02,  // WCC (keyboard restore)
             (byte) 0x1D,  // ORDER_START_FIELD
             (byte) 0x40,  // Field attribute (unprotected)
@@ -59,7 +59,7 @@ public class IacEorHandlingTest {
         // Create two data streams separated by IAC,EOR
         byte[] dataStream = new byte[] {
             // First data stream
-            (byte) 0x05,  // Will be corrected to 0xF5 (CMD_ERASE_WRITE)
+            (byte) 0x05,  // local Erase/Write, same as 0xF5
             (byte) 0x02,  // WCC
             (byte) 0x1D,  // ORDER_START_FIELD
             (byte) 0x40,  // Field attribute
@@ -68,7 +68,7 @@ public class IacEorHandlingTest {
             (byte) 0xEF,  // EOR
             
             // Second data stream
-            (byte) 0x01,  // Will be corrected to 0xF1 (CMD_WRITE)
+            (byte) 0x01,  // local Write, same as 0xF1
             (byte) 0x02,  // WCC
             (byte) 0x1D,  // ORDER_START_FIELD
             (byte) 0x40,  // Field attribute
@@ -103,7 +103,7 @@ public class IacEorHandlingTest {
         
         // Create a data stream with IAC followed by a regular byte (not EOR)
         byte[] dataStream = new byte[] {
-            (byte) 0x05,  // Will be corrected to 0xF5 (CMD_ERASE_WRITE)
+            (byte) 0x05,  // local Erase/Write, same as 0xF5
             (byte) 0x02,  // WCC
             (byte) 0x1D,  // ORDER_START_FIELD
             (byte) 0x40,  // Field attribute
@@ -0,0 +1,110 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RecordReaderTest {
+    
+    private static byte[] record(RecordReader reader) {
+        return Arrays.copyOf(reader.record(), reader.length());
+    }
+    
+    @Test
+    public void testFramesRecordsOnIacEor() throws IOException {
+        byte[] data = {1, 2, 3, (byte) 0xFF, (byte) 0xEF, 4, 5, (byte) 0xFF, (byte) 0xEF};
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(data));
+        
+        assertEquals(3, reader.readRecord());
+        assertArrayEquals(new byte[] {1, 2, 3}, record(reader));
+        
+        assertEquals(2, reader.readRecord());
+        assertArrayEquals(new byte[] {4, 5}, record(reader));
+        
+        assertEquals(-1, reader.readRecord());
+    }
+    
+    @Test
+    public void testIacEorSplitAcrossChunks() throws IOException {
+        byte[] data = {1, 2, (byte) 0xFF, (byte) 0xEF, 3, (byte) 0xFF, (byte) 0xEF};
+        // a three byte chunk puts the IAC and the EOR in separate reads
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(data), 3);
+        
+        assertEquals(2, reader.readRecord());
+        assertArrayEquals(new byte[] {1, 2}, record(reader));
+        assertEquals(1, reader.readRecord());
+        assertArrayEquals(new byte[] {3}, record(reader));
+    }
+    
+    @Test
+    public void testLoneIacIsData() throws IOException {
+        byte[] data = {1, (byte) 0xFF, 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xEF};
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(data));
+        
+        assertEquals(4, reader.readRecord());
+        assertArrayEquals(new byte[] {1, (byte) 0xFF, 2, (byte) 0xFF}, record(reader));
+    }
+    
+    @Test
+    public void testRecordLargerThanInitialBuffer() throws IOException {
+        byte[] data = new byte[10002];
+        for (int i = 0; i < 10000; i++) {
+            data[i] = (byte) (i % 200);
+        }
+        data[10000] = (byte) 0xFF;
+        data[10001] = (byte) 0xEF;
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(data), 512);
+        
+        assertEquals(10000, reader.readRecord());
+        assertArrayEquals(Arrays.copyOf(data, 10000), record(reader));
+    }
+    
+    @Test
+    public void testUnterminatedRecordAtEndOfStream() throws IOException {
+        byte[] data = {7, 8};
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(data));
+        
+        assertEquals(2, reader.readRecord());
+        assertEquals(-1, reader.readRecord());
+    }
+    
+    @Test
+    public void testReadTimeoutResumesPartialRecord() throws IOException {
+        InputStream in = new InputStream() {
+            private final byte[][] reads = {{1, 2}, null, {3, (byte) 0xFF}, null, {(byte) 0xEF, 4, (byte) 0xFF, (byte) 0xEF}};
+            private int index;
+            
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (index >= reads.length) {
+                    return -1;
+                }
+                byte[] next = reads[index++];
+                if (next == null) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                System.arraycopy(next, 0, b, off, next.length);
+                return next.length;
+            }
+        };
+        RecordReader reader = new RecordReader(in);
+        
+        assertThrows(SocketTimeoutException.class, reader::readRecord);
+        assertThrows(SocketTimeoutException.class, reader::readRecord);
+        assertEquals(3, reader.readRecord());
+        assertArrayEquals(new byte[] {1, 2, 3}, record(reader));
+        assertEquals(1, reader.readRecord());
+        assertArrayEquals(new byte[] {4}, record(reader));
+        assertEquals(-1, reader.readRecord());
+    }
+}
@@ -0,0 +1,85 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTraceTest {
+
+    @Test
+    public void testParserTracesRecordCommandOrdersAndData() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        assertNull(parser.getTraceSink());
+
+        RingBufferTrace trace = new RingBufferTrace();
+        parser.setTraceSink(trace);
+        byte[] address = Tn3270Conversions.encodeAddress(80);
+        byte[] text = CodePage.CP037.encode("READY");
+        byte[] record = new byte[7 + text.length + 1];
+        record[0] = (byte) 0xF5;  // Erase/Write
+        record[1] = (byte) 0xC2;  // WCC
+        record[2] = (byte) 0x11;  // SBA
+        record[3] = address[0];
+        record[4] = address[1];
+        record[5] = (byte) 0x1D;  // SF
+        record[6] = (byte) 0x60;
+        System.arraycopy(text, 0, record, 7, text.length);
+        record[record.length - 1] = (byte) 0x13;  // IC
+        parser.parse(record, 0, record.length);
+
+        assertEquals(
+            "RECORD length=13\n"
+            + "COMMAND EW WCC=C2\n"
+            + "ORDER SBA at 80 operands=" + hex(address[0]) + hex(address[1]) + "\n"
+            + "ORDER SF at 81 operands=60\n"
+            + "DATA at 81 length=5\n"
+            + "ORDER IC at 86\n",
+            trace.dump());
+    }
+
+    @Test
+    public void testRingKeepsTheMostRecentEvents() {
+        RingBufferTrace trace = new RingBufferTrace(3);
+        assertEquals(4, trace.getCapacity());
+        for (int i = 0; i < 10; i++) {
+            trace.event(TraceSink.DATA, 0, i, 1);
+        }
+
+        assertEquals(10, trace.getEventCount());
+        assertEquals(
+            "DATA at 6 length=1\n"
+            + "DATA at 7 length=1\n"
+            + "DATA at 8 length=1\n"
+            + "DATA at 9 length=1\n",
+            trace.dump());
+
+        trace.clear();
+        assertEquals("", trace.dump());
+    }
+
+    @Test
+    public void testConcurrentWritersDoNotBlock() throws Exception {
+        RingBufferTrace trace = new RingBufferTrace(1024);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    trace.event(TraceSink.ORDER, 0x11, id, 0);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(40000, trace.getEventCount());
+        assertEquals(1024, trace.dump().split("\n").length);
+    }
+
+    private static String hex(byte b) {
+        return String.format("%02X", b & 0xFF);
+    }
+}
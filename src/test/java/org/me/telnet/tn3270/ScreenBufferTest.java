@@ -0,0 +1,409 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScreenBufferTest {
+
+    private ScreenBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new ScreenBuffer(24, 80);
+    }
+
+    private void writeField(int position, byte attribute, String text) {
+        buffer.setBufferPosition(position);
+        buffer.startField(position, attribute);
+        buffer.incBufferPosition();
+        for (char c : text.toCharArray()) {
+            buffer.pushEbcdic(Tn3270Conversions.asciiToEbcdic(c));
+        }
+    }
+
+    @Test
+    public void testCellsBelongToTheirFieldStart() {
+        writeField(0, (byte) 0x60, "TITLE");
+        writeField(80, (byte) 0x40, "     ");
+
+        assertTrue(buffer.isFieldStart(0));
+        assertEquals(0, buffer.getField(3));
+        assertEquals(80, buffer.getField(83));
+        // cells the host never wrote still belong to the field before them
+        assertEquals(80, buffer.getField(200));
+        assertEquals(1919, buffer.getFieldEnd(200));
+        assertEquals(79, buffer.getFieldEnd(0));
+        assertTrue(buffer.getAttribute(3).isProtected());
+        assertFalse(buffer.getAttribute(83).isProtected());
+    }
+
+    @Test
+    public void testTypingSetsModifiedOnUnprotectedFieldOnly() {
+        writeField(0, (byte) 0x60, "TITLE");
+        writeField(80, (byte) 0x40, "     ");
+
+        buffer.setCursorPosition(2);
+        buffer.pushAscii('X');
+        assertFalse(buffer.isModified(0));
+        assertEquals('I', buffer.asciiAt(2));
+
+        buffer.setCursorPosition(81);
+        buffer.pushAscii('A');
+        assertTrue(buffer.isModified(81));
+        assertTrue(buffer.getAttribute(80).isModified());
+        assertEquals('A', buffer.asciiAt(81));
+
+        buffer.resetModifiedFlags();
+        assertFalse(buffer.isModified(81));
+    }
+
+    @Test
+    public void testUnformattedScreenTracksModifiedCells() {
+        buffer.setCursorPosition(10);
+        buffer.pushAscii('H');
+        buffer.pushAscii('I');
+
+        assertFalse(buffer.hasFields());
+        assertTrue(buffer.isModified(10));
+        assertTrue(buffer.isModified(11));
+        assertFalse(buffer.isModified(12));
+        assertEquals("HI", buffer.string(10, 2));
+    }
+
+    @Test
+    public void testNonDisplayFieldMasksInput() {
+        writeField(0, (byte) 0x4C, "    ");
+
+        buffer.setCursorPosition(1);
+        buffer.pushAscii('S');
+        assertEquals('*', buffer.asciiAt(1));
+    }
+
+    @Test
+    public void testExtendedAttributesAreKeptPerField() {
+        writeField(0, (byte) 0x60, "TITLE");
+
+        buffer.setColor(2, FieldColor.RED);
+        buffer.setHighlighting(3, FieldHighlighting.REVERSE);
+
+        FieldAttribute attribute = buffer.getAttribute(4);
+        assertEquals(FieldColor.RED, attribute.color());
+        assertEquals(FieldHighlighting.REVERSE, attribute.highlighting());
+
+        buffer.clear();
+        assertEquals(FieldColor.DEFAULT, buffer.getAttribute(4).color());
+        assertEquals(-1, buffer.getField(4));
+    }
+
+    @Test
+    public void testFieldIndexFollowsStartsAndClear() {
+        writeField(160, (byte) 0x40, "B");
+        writeField(0, (byte) 0x60, "A");
+        writeField(80, (byte) 0x40, "C");
+
+        assertEquals(3, buffer.getFieldCount());
+        ScreenBuffer.Field[] fields = buffer.fields();
+        assertEquals(0, fields[0].position());
+        assertEquals(80, fields[1].position());
+        assertEquals(160, fields[2].position());
+        assertEquals(79, fields[0].length());
+
+        // a character written over an attribute removes the field
+        buffer.setBufferPosition(80);
+        buffer.pushEbcdic(Tn3270Conversions.asciiToEbcdic('X'));
+        assertEquals(2, buffer.getFieldCount());
+        assertEquals(0, buffer.fieldStartAt(100));
+
+        buffer.clear();
+        assertEquals(0, buffer.getFieldCount());
+        assertFalse(buffer.hasFields());
+        assertNull(buffer.fields());
+    }
+
+    @Test
+    public void testFieldAtWrapsFromLastField() {
+        writeField(100, (byte) 0x40, "");
+        writeField(1900, (byte) 0x40, "");
+
+        assertEquals(1900, buffer.fieldStartAt(10));
+        assertEquals(100, buffer.fieldStartAt(100));
+        assertEquals(100, buffer.fieldStartAt(1899));
+
+        ScreenBuffer.Field wrapped = buffer.fieldAt(5);
+        assertEquals(1900, wrapped.position());
+        assertEquals(1920 - 1900 - 1 + 100, wrapped.length());
+    }
+
+    @Test
+    public void testTabSkipsProtectedAndEmptyFields() {
+        writeField(0, (byte) 0x60, "TITLE");
+        writeField(80, (byte) 0x40, "");
+        writeField(81, (byte) 0x40, "NAME");
+        writeField(100, (byte) 0x60, "LABEL");
+        writeField(160, (byte) 0x40, "CITY");
+        writeField(170, (byte) 0x60, "");
+
+        buffer.setCursorPosition(0);
+        buffer.doTab(false);
+        assertEquals(82, buffer.getCursorPosition());
+        buffer.doTab(false);
+        assertEquals(161, buffer.getCursorPosition());
+        buffer.doTab(false);
+        assertEquals(82, buffer.getCursorPosition());
+
+        buffer.setCursorPosition(165);
+        buffer.doTab(true);
+        assertEquals(161, buffer.getCursorPosition());
+        buffer.doTab(true);
+        assertEquals(82, buffer.getCursorPosition());
+        buffer.doTab(true);
+        assertEquals(161, buffer.getCursorPosition());
+    }
+
+    @Test
+    public void testFieldValuesAreReadWhenRequested() {
+        writeField(0, (byte) 0x40, "OLD");
+        writeField(10, (byte) 0x60, "");
+
+        ScreenBuffer.Field field = buffer.fieldAt(2);
+        buffer.setCursorPosition(1);
+        buffer.pushAscii('N');
+
+        assertEquals("NLD      ", field.asciiValue());
+        assertTrue(field.attribute().isModified());
+    }
+
+    @Test
+    public void testTypingIntoCellsTheHostNeverWrote() {
+        writeField(0, (byte) 0x60, "NAME:");
+        writeField(80, (byte) 0x40, "");
+        writeField(100, (byte) 0x60, "");
+
+        buffer.setCursorPosition(81);
+        for (char c : "JOHN".toCharArray()) {
+            buffer.pushAscii(c);
+        }
+        assertEquals("JOHN", buffer.string(81, 4));
+        assertEquals(85, buffer.getCursorPosition());
+
+        // the last position of the field tabs on to the next input field
+        buffer.setCursorPosition(99);
+        buffer.pushAscii('Z');
+        assertEquals('Z', buffer.asciiAt(99));
+        assertEquals(81, buffer.getCursorPosition());
+    }
+
+    @Test
+    public void testDeleteAndBackspaceStayInsideTheField() {
+        writeField(80, (byte) 0x40, "ABCD");
+        writeField(85, (byte) 0x60, "XY");
+
+        buffer.setCursorPosition(82);
+        buffer.doDelete();
+        assertEquals("ACD ", buffer.string(81, 4));
+        assertEquals('X', buffer.asciiAt(86));
+
+        buffer.setCursorPosition(81);
+        buffer.doBackspace();
+        assertEquals(81, buffer.getCursorPosition());
+        assertEquals("ACD ", buffer.string(81, 4));
+    }
+
+    @Test
+    public void testEraseAllUnprotectedBlanksInputFields() {
+        writeField(0, (byte) 0x60, "LABEL");
+        writeField(10, (byte) 0x41, "VALUE");
+        writeField(20, (byte) 0x60, "KEEP");
+
+        buffer.setCursorPosition(500);
+        buffer.eraseAllUnprotected();
+
+        assertEquals("LABEL", buffer.string(1, 5));
+        assertEquals("     ", buffer.string(11, 5));
+        assertEquals("KEEP", buffer.string(21, 4));
+        assertFalse(buffer.isModified(11));
+        assertEquals(11, buffer.getCursorPosition());
+    }
+
+    @Test
+    public void testExtentsOnAlternateScreenSizes() {
+        int[][] sizes = {{27, 132}, {32, 80}, {43, 80}};
+        for (int[] size : sizes) {
+            buffer = new ScreenBuffer(size[0], size[1]);
+            int total = size[0] * size[1];
+            int last = total - 10;
+
+            writeField(100, (byte) 0x40, "");
+            writeField(last, (byte) 0x40, "");
+
+            assertEquals(total, buffer.getTotal());
+            assertEquals(last, buffer.getField(5));
+            assertEquals(99, buffer.getFieldEnd(total - 1));
+            assertEquals(100, buffer.getField(last - 1));
+            assertEquals(last - 1, buffer.getFieldEnd(101));
+            assertEquals(9 + 100, buffer.fieldLength(last));
+
+            // typing at the end of the screen wraps into the same field
+            buffer.setCursorPosition(total - 1);
+            buffer.pushAscii('Q');
+            buffer.pushAscii('R');
+            assertEquals('Q', buffer.asciiAt(total - 1));
+            assertEquals('R', buffer.asciiAt(0));
+            assertEquals(1, buffer.getCursorPosition());
+        }
+    }
+
+    @Test
+    public void testParserRebuildsExtentsPerRecord() {
+        buffer = new ScreenBuffer(43, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+
+        // SBA to 3000 (row 37), SF unprotected, "AB", using a 12-bit address
+        byte[] address = Tn3270Conversions.encodeAddress(3000);
+        parser.parse(new byte[] {
+            (byte) 0xF5, (byte) 0x02,
+            0x11, address[0], address[1],
+            0x1D, 0x40,
+            (byte) 0xC1, (byte) 0xC2
+        }, 0, 9);
+
+        assertEquals(3000, buffer.getField(3001));
+        assertEquals(3000, buffer.getField(10));
+        assertEquals(2999, buffer.getFieldEnd(10));
+        assertEquals("AB", buffer.string(3001, 2));
+    }
+
+    @Test
+    public void testChangesCoverWrittenRowsAndFields() {
+        writeField(0, (byte) 0x60, "TITLE");
+        writeField(80, (byte) 0x40, "");
+        writeField(160, (byte) 0x40, "");
+        List<ScreenChange> changes = new ArrayList<>();
+        buffer.addChangeListener(changes::add);
+        buffer.publishChanges();
+        changes.clear();
+
+        buffer.setBufferPosition(170);
+        buffer.pushEbcdic(Tn3270Conversions.asciiToEbcdic('X'));
+        buffer.setBufferPosition(1000);
+        buffer.pushEbcdic(Tn3270Conversions.asciiToEbcdic('Y'));
+        buffer.publishChanges();
+
+        assertEquals(1, changes.size());
+        ScreenChange change = changes.get(0);
+        assertFalse(change.isCleared());
+        assertEquals(2, change.dirtyRows().cardinality());
+        assertTrue(change.isRowDirty(2));
+        assertTrue(change.isRowDirty(12));
+        assertArrayEquals(new int[] {160}, change.changedFields());
+
+        // nothing written, nothing published
+        buffer.publishChanges();
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void testClearMarksEveryRow() {
+        List<ScreenChange> changes = new ArrayList<>();
+        buffer.addChangeListener(changes::add);
+
+        buffer.clear();
+        writeField(1910, (byte) 0x40, "AB");
+        buffer.publishChanges();
+
+        ScreenChange change = changes.get(0);
+        assertTrue(change.isCleared());
+        assertEquals(24, change.dirtyRows().cardinality());
+        // the only field wraps over the whole screen
+        assertArrayEquals(new int[] {1910}, change.changedFields());
+    }
+
+    @Test
+    public void testBulkPushMatchesPerCharacterPush() {
+        byte[] run = CodePage.CP037.encode("HELLO, [WORLD]");
+        ScreenBuffer single = new ScreenBuffer(24, 80);
+        single.setBufferPosition(100);
+        for (byte b : run) {
+            single.pushEbcdic(b);
+        }
+        buffer.setBufferPosition(100);
+
+        assertEquals(single.getBufferPosition(), buffer.pushEbcdic(run, 0, run.length));
+        for (int i = 0; i < buffer.getTotal(); i++) {
+            assertEquals(single.asciiAt(i), buffer.asciiAt(i));
+        }
+    }
+
+    @Test
+    public void testBulkPushWrapsAtEndOfBuffer() {
+        List<ScreenChange> changes = new ArrayList<>();
+        buffer.addChangeListener(changes::add);
+        byte[] run = CodePage.CP037.encode("ABCDEF");
+        buffer.setBufferPosition(1917);
+
+        assertEquals(3, buffer.pushEbcdic(run, 0, run.length));
+        assertEquals('A', buffer.asciiAt(1917));
+        assertEquals('C', buffer.asciiAt(1919));
+        assertEquals('D', buffer.asciiAt(0));
+        assertEquals('F', buffer.asciiAt(2));
+        assertEquals(' ', buffer.asciiAt(3));
+
+        buffer.publishChanges();
+        assertEquals(2, changes.get(0).dirtyRows().cardinality());
+        assertTrue(changes.get(0).isRowDirty(0));
+        assertTrue(changes.get(0).isRowDirty(23));
+    }
+
+    @Test
+    public void testBulkPushMarksWholeRowsDirty() {
+        List<ScreenChange> changes = new ArrayList<>();
+        buffer.addChangeListener(changes::add);
+        byte[] run = new byte[200];
+        Arrays.fill(run, (byte) 0xC1);
+        buffer.setBufferPosition(70);
+        buffer.pushEbcdic(run, 0, run.length);
+        buffer.publishChanges();
+
+        // cells 70..269 cover rows 0 to 3
+        assertEquals(4, changes.get(0).dirtyRows().cardinality());
+        assertFalse(changes.get(0).isRowDirty(4));
+    }
+
+    @Test
+    public void testBulkPushOverFieldAttributeRemovesField() {
+        writeField(0, (byte) 0x60, "TITLE");
+        writeField(80, (byte) 0x40, "INPUT");
+        byte[] run = CodePage.CP037.encode("XYZ");
+        buffer.setBufferPosition(79);
+        buffer.pushEbcdic(run, 0, run.length);
+
+        assertFalse(buffer.isFieldStart(80));
+        assertEquals(0, buffer.getField(81));
+        assertEquals('Y', buffer.asciiAt(80));
+    }
+
+    @Test
+    public void testParserWritesRunsBetweenOrders() {
+        DataStreamParser parser = new DataStreamParser(buffer);
+        byte[] address = Tn3270Conversions.encodeAddress(80);
+        byte[] text = CodePage.CP037.encode("READY");
+        byte[] record = new byte[5 + text.length + 1];
+        record[0] = (byte) 0xF5;  // Erase/Write
+        record[1] = (byte) 0xC2;  // WCC
+        record[2] = (byte) 0x11;  // SBA
+        record[3] = address[0];
+        record[4] = address[1];
+        System.arraycopy(text, 0, record, 5, text.length);
+        record[record.length - 1] = (byte) 0x13;  // IC
+        parser.parse(record, 0, record.length);
+
+        assertEquals("READY", buffer.string(80, 5));
+        assertEquals(85, buffer.cursorPosition());
+    }
+}
@@ -0,0 +1,72 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ScreenConditionTest {
+
+    // EW, WCC keyboard restore, SBA row 1 col 0, SF protected "NAME", SF unprotected, IC
+    private static final byte[] LOGON = {
+        (byte) 0xF5, (byte) 0x02,
+        (byte) 0x11, (byte) 0xC1, (byte) 0x50,
+        (byte) 0x1D, (byte) 0x60,
+        (byte) 0xD5, (byte) 0xC1, (byte) 0xD4, (byte) 0xC5,
+        (byte) 0x1D, (byte) 0x40,
+        (byte) 0x13
+    };
+
+    private ScreenBuffer buffer;
+    private Screen screen;
+    private DataStreamParser parser;
+
+    @Before
+    public void setUp() {
+        buffer = new ScreenBuffer(24, 80);
+        screen = new Screen(buffer);
+        parser = new DataStreamParser(buffer);
+        buffer.setKeyboardLocked(true);
+    }
+
+    @Test
+    public void testConditionsOnParsedScreen() {
+        parser.parse(LOGON, 0, LOGON.length);
+
+        assertTrue(ScreenCondition.keyboardUnlocked().test(screen));
+        assertTrue(ScreenCondition.textAt(1, 1, "NAME").test(screen));
+        assertFalse(ScreenCondition.textAt(1, 1, "NAMES").test(screen));
+        assertTrue(ScreenCondition.cursorInField(1, 20).test(screen));
+        assertFalse(ScreenCondition.cursorInField(1, 2).test(screen));
+    }
+
+    @Test
+    public void testWaitForIsWokenAtEndOfRecord() throws Exception {
+        Thread host = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            parser.parse(LOGON, 0, LOGON.length);
+        });
+        host.start();
+
+        long start = System.nanoTime();
+        boolean ready = screen.waitFor(
+            ScreenCondition.keyboardUnlocked().and(ScreenCondition.textAt(1, 1, "NAME")),
+            10, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        host.join();
+
+        assertTrue(ready);
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testWaitForTimesOut() throws Exception {
+        assertFalse(screen.waitFor(ScreenCondition.keyboardUnlocked(), 20, TimeUnit.MILLISECONDS));
+        assertTrue(screen.waitFor(ScreenCondition.textAt(0, 0, "  "), 0, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,159 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StructuredFieldTest {
+
+    private static final byte[] READ_PARTITION_QUERY = {
+        (byte) 0xF3,                            // Write Structured Field
+        0x00, 0x05, 0x01, (byte) 0xFF, 0x02     // Read Partition, Query
+    };
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    /**
+     * @return the offset of the query reply for {@code code} in the record, -1 if absent
+     */
+    private static int find(byte[] record, int code) {
+        int p = 1;
+        while (p + 4 <= record.length - 2) {
+            int length = ((record[p] & 0xFF) << 8) | (record[p + 1] & 0xFF);
+            if ((record[p + 3] & 0xFF) == code) {
+                return p;
+            }
+            p += length;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testQueryReplyDescribesModelFive() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80, 27, 132);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        ByteArrayOutputStream host = new ByteArrayOutputStream();
+        parser.setOutputStream(host);
+
+        parser.parse(READ_PARTITION_QUERY, 0, READ_PARTITION_QUERY.length);
+        byte[] reply = host.toByteArray();
+
+        assertEquals((byte) 0x88, reply[0]);
+        assertArrayEquals(bytes(0xFF, 0xEF), Arrays.copyOfRange(reply, reply.length - 2, reply.length));
+        assertArrayEquals(bytes(0x00, 0x0A, 0x81, 0x80, 0x80, 0x81, 0x85, 0x86, 0x87, 0xA6),
+            Arrays.copyOfRange(reply, 1, 11));
+
+        int usable = find(reply, 0x81);
+        assertArrayEquals(bytes(0x00, 0x84, 0x00, 0x1B),  // 132 columns, 27 rows
+            Arrays.copyOfRange(reply, usable + 6, usable + 10));
+        assertArrayEquals(bytes(0x0D, 0xEC),              // 3564 cells
+            Arrays.copyOfRange(reply, usable + 21, usable + 23));
+
+        int partition = find(reply, 0xA6);
+        assertArrayEquals(bytes(0x00, 0x50, 0x00, 0x18, 0x00, 0x84, 0x00, 0x1B),
+            Arrays.copyOfRange(reply, partition + 9, partition + 17));
+
+        assertTrue(find(reply, 0x85) > 0);
+        assertTrue(find(reply, 0x86) > 0);
+        assertTrue(find(reply, 0x87) > 0);
+    }
+
+    @Test
+    public void testQueryListRepliesWithRequestedCodes() {
+        DataStreamParser parser = new DataStreamParser(new ScreenBuffer(24, 80));
+        ByteArrayOutputStream host = new ByteArrayOutputStream();
+        parser.setOutputStream(host);
+
+        byte[] record = bytes(0xF3, 0x00, 0x08, 0x01, 0xFF, 0x03, 0x00, 0x81, 0x86);
+        parser.parse(record, 0, record.length);
+        byte[] reply = host.toByteArray();
+
+        assertTrue(find(reply, 0x80) > 0);
+        assertTrue(find(reply, 0x81) > 0);
+        assertTrue(find(reply, 0x86) > 0);
+        assertEquals(-1, find(reply, 0x85));
+        assertEquals(-1, find(reply, 0x87));
+        assertEquals(-1, find(reply, 0xA6));
+    }
+
+    @Test
+    public void testQueryIsIgnoredWithoutOutput() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        parser.parse(READ_PARTITION_QUERY, 0, READ_PARTITION_QUERY.length);
+        assertEquals("", buffer.string(0).trim());
+    }
+
+    @Test
+    public void testIacInReplyIsDoubled() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80, 24, 255);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        ByteArrayOutputStream host = new ByteArrayOutputStream();
+        parser.setOutputStream(host);
+
+        byte[] record = bytes(0xF3, 0x00, 0x07, 0x01, 0xFF, 0x03, 0x00, 0x81);
+        parser.parse(record, 0, record.length);
+        byte[] reply = host.toByteArray();
+
+        int usable = find(reply, 0x81);
+        assertArrayEquals(bytes(0x00, 0xFF, 0xFF, 0x00, 0x18),
+            Arrays.copyOfRange(reply, usable + 6, usable + 11));
+    }
+
+    @Test
+    public void testEraseWriteAlternateSwitchesScreenSize() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80, 62, 160);
+        DataStreamParser parser = new DataStreamParser(buffer);
+        assertEquals(80, buffer.getCols());
+
+        // 14-bit address of the last row
+        int last = 61 * 160;
+        byte[] record = bytes(0x7E, 0x02, 0x11, (last >> 8) & 0x3F, last & 0xFF, 0xC1);
+        parser.parse(record, 0, record.length);
+        assertTrue(buffer.isAlternate());
+        assertEquals(62, buffer.getRows());
+        assertEquals(160, buffer.getCols());
+        assertEquals("A", buffer.string(61).trim());
+        assertArrayEquals(bytes((last >> 8) & 0x3F, last & 0xFF), Tn3270Conversions.encodeAddress(last));
+
+        parser.parse(bytes(0xF5, 0x02, 0xC2), 0, 3);
+        assertFalse(buffer.isAlternate());
+        assertEquals(24, buffer.getRows());
+        assertEquals(1920, buffer.getTotal());
+        assertEquals("B", buffer.string(0).trim());
+    }
+
+    @Test
+    public void testOutboundDataStreamAndEraseReset() {
+        ScreenBuffer buffer = new ScreenBuffer(24, 80, 27, 132);
+        DataStreamParser parser = new DataStreamParser(buffer);
+
+        byte[] record = bytes(
+            0xF3,
+            0x00, 0x04, 0x03, 0x80,                         // Erase/Reset to the alternate size
+            0x00, 0x08, 0x40, 0x00, 0xF1, 0x02, 0xC8, 0xC9  // Outbound 3270DS, Write "HI"
+        );
+        parser.parse(record, 0, record.length);
+
+        assertEquals(132, buffer.getCols());
+        assertEquals("HI", buffer.string(0).trim());
+        assertFalse(buffer.isKeyboardLocked());
+    }
+
+    @Test
+    public void testModelSizeFromTerminalType() {
+        assertArrayEquals(new int[] {24, 80}, Tn3270.modelSize("IBM-3278-2-E"));
+        assertArrayEquals(new int[] {32, 80}, Tn3270.modelSize("IBM-3279-3"));
+        assertArrayEquals(new int[] {43, 80}, Tn3270.modelSize("IBM-3278-4-E"));
+        assertArrayEquals(new int[] {27, 132}, Tn3270.modelSize("IBM-3278-5-E"));
+        assertNull(Tn3270.modelSize("IBM-DYNAMIC"));
+    }
+}
@@ -0,0 +1,258 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import org.me.telnet.TelnetCommand;
+import org.me.telnet.TelnetOption;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Tn3270ETest {
+
+    private static final int IAC = TelnetCommand.IAC;
+    private static final int TN3270E = TelnetOption.TN3270E;
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private static int[] ints(int... values) {
+        return values;
+    }
+
+    private static int[] withText(int[] head, String text) {
+        int[] data = Arrays.copyOf(head, head.length + text.length());
+        for (int i = 0; i < text.length(); i++) {
+            data[head.length + i] = text.charAt(i);
+        }
+        return data;
+    }
+
+    @Test
+    public void testDeviceTypeAndFunctionsNegotiation() {
+        Tn3270EOptionHandler handler = new Tn3270EOptionHandler("IBM-3278-2-E", "LU01", null);
+
+        int[] request = handler.answerSubnegotiation(ints(TN3270E, 8, 2), 3);
+        int[] expected = withText(ints(TN3270E, 2, 7), "IBM-3278-2-E");
+        expected = withText(Arrays.copyOf(append(expected, 1), expected.length + 1), "LU01");
+        assertArrayEquals(expected, request);
+
+        int[] is = withText(append(withText(ints(TN3270E, 2, 4), "IBM-3278-2-E"), 1), "LU07");
+        assertArrayEquals(ints(TN3270E, 3, 7, 0, 2), handler.answerSubnegotiation(is, is.length));
+        assertEquals("IBM-3278-2-E", handler.getConnectedDeviceType());
+        assertEquals("LU07", handler.getConnectedLuName());
+        assertFalse(handler.isActive());
+
+        assertNull(handler.answerSubnegotiation(ints(TN3270E, 3, 4, 2), 4));
+        assertTrue(handler.isActive());
+        assertTrue(handler.isFunction(Tn3270EOptionHandler.RESPONSES));
+        assertFalse(handler.isFunction(Tn3270EOptionHandler.BIND_IMAGE));
+
+        handler.reset();
+        assertFalse(handler.isActive());
+        assertNull(handler.getConnectedLuName());
+    }
+
+    @Test
+    public void testHostFunctionRequests() {
+        Tn3270EOptionHandler handler = new Tn3270EOptionHandler("IBM-3278-2-E", null, null);
+        assertArrayEquals(withText(ints(TN3270E, 2, 7), "IBM-3278-2-E"),
+            handler.answerSubnegotiation(ints(TN3270E, 8, 2), 3));
+
+        // SYSREQ is not supported, counter with the rest
+        assertArrayEquals(ints(TN3270E, 3, 7, 0, 2), handler.answerSubnegotiation(ints(TN3270E, 3, 7, 0, 2, 4), 6));
+        assertFalse(handler.isActive());
+
+        assertArrayEquals(ints(TN3270E, 3, 4, 0, 2), handler.answerSubnegotiation(ints(TN3270E, 3, 7, 0, 2), 5));
+        assertTrue(handler.isActive());
+        assertTrue(handler.isFunction(Tn3270EOptionHandler.BIND_IMAGE));
+    }
+
+    @Test
+    public void testRejectedDeviceType() {
+        int[] reason = {-1};
+        Tn3270EOptionHandler handler = new Tn3270EOptionHandler("IBM-3278-2-E", "NOSUCHLU", r -> reason[0] = r);
+        assertNull(handler.answerSubnegotiation(ints(TN3270E, 2, 6, 5, 3), 5));
+        assertEquals(3, reason[0]);
+        assertFalse(handler.getAcceptLocal());
+        assertFalse(handler.isActive());
+    }
+
+    @Test
+    public void testOutputStreamAddsHeaderToEachRecord() throws IOException {
+        Tn3270EOptionHandler handler = new Tn3270EOptionHandler("IBM-3278-2-E", null, null);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tn3270EOutputStream out = new Tn3270EOutputStream(wire, handler);
+
+        out.write(bytes(0x7D, 0x40, 0x40, IAC, 0xEF));
+        assertArrayEquals(bytes(0x7D, 0x40, 0x40, IAC, 0xEF), wire.toByteArray());
+        wire.reset();
+
+        handler.answerSubnegotiation(ints(TN3270E, 3, 4, 2), 4);
+        // an escaped IAC followed by 0xEF is data, not the end of the record
+        out.write(bytes(0x7D, IAC, IAC, 0xEF, IAC, 0xEF, 0x6D, 0x40));
+        out.write(bytes(0x40, IAC));
+        out.write(0xEF);
+        assertArrayEquals(bytes(
+            0, 0, 0, 0, 0, 0x7D, IAC, IAC, 0xEF, IAC, 0xEF,
+            0, 0, 0, 0, 0, 0x6D, 0x40, 0x40, IAC, 0xEF), wire.toByteArray());
+    }
+
+    @Test
+    public void testSessionWithResponsesAndBind() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Tn3270 tn3270 = new Tn3270("127.0.0.1", server.getLocalPort());
+            tn3270.setSslEnabled(false);
+            tn3270.setTerminalType("IBM-3278-5-E");
+            tn3270.setLuName("LU01");
+            tn3270.setTn3270eEnabled(true);
+            tn3270.connect();
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(5000);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+
+                out.write(bytes(IAC, TelnetCommand.DO, TN3270E));
+                out.flush();
+                expect(in, bytes(IAC, TelnetCommand.WILL, TN3270E));
+
+                out.write(bytes(IAC, TelnetCommand.SB, TN3270E, 8, 2, IAC, TelnetCommand.SE));
+                out.flush();
+                expect(in, bytes(IAC, TelnetCommand.SB, TN3270E, 2, 7));
+                assertEquals("IBM-3278-5-E\u0001LU01", new String(readToSe(in), "ISO-8859-1"));
+
+                ByteArrayOutputStream is = new ByteArrayOutputStream();
+                is.write(bytes(IAC, TelnetCommand.SB, TN3270E, 2, 4));
+                is.write("IBM-3278-5-E".getBytes("ISO-8859-1"));
+                is.write(1);
+                is.write("LU01".getBytes("ISO-8859-1"));
+                is.write(bytes(IAC, TelnetCommand.SE));
+                out.write(is.toByteArray());
+                out.flush();
+                expect(in, bytes(IAC, TelnetCommand.SB, TN3270E, 3, 7, 0, 2, IAC, TelnetCommand.SE));
+
+                out.write(bytes(IAC, TelnetCommand.SB, TN3270E, 3, 4, 0, 2, IAC, TelnetCommand.SE));
+                // BIND with a 30x100 alternate screen
+                byte[] bind = new byte[26];
+                bind[0] = 0x31;
+                bind[20] = 24;
+                bind[21] = 80;
+                bind[22] = 30;
+                bind[23] = 100;
+                bind[24] = 0x7F;
+                out.write(bytes(Tn3270EOptionHandler.TYPE_BIND_IMAGE, 0, 0, 0, 1));
+                out.write(bind);
+                out.write(bytes(IAC, TelnetCommand.EOR));
+                // Erase/Write Alternate "HI", response always, sequence number X'00FF'
+                out.write(bytes(0, 0, Tn3270EOptionHandler.ALWAYS_RESPONSE, 0x00, IAC, IAC,
+                    0x7E, 0xC2, 0xC8, 0xC9, IAC, TelnetCommand.EOR));
+                out.flush();
+
+                expect(in, bytes(Tn3270EOptionHandler.TYPE_RESPONSE, 0, 0, 0x00, IAC, IAC, 0x00, IAC, TelnetCommand.EOR));
+                assertTrue(tn3270.isTn3270e());
+                assertEquals("LU01", tn3270.getConnectedLuName());
+                assertEquals("HI", tn3270.screen().getString(0).trim());
+                assertEquals(100, tn3270.screen().getString(0).length());
+
+                // not a command, the host asked to hear about errors
+                out.write(bytes(0, 0, Tn3270EOptionHandler.ERROR_RESPONSE, 0x00, 0x08, 0xC1, IAC, TelnetCommand.EOR));
+                out.flush();
+                expect(in, bytes(Tn3270EOptionHandler.TYPE_RESPONSE, 0, Tn3270EOptionHandler.NEGATIVE_RESPONSE, 0x00, 0x08,
+                    Tn3270EOptionHandler.COMMAND_REJECT, IAC, TelnetCommand.EOR));
+
+                tn3270.screen().enter();
+                expect(in, bytes(0, 0, 0, 0, 0, 0x7D));
+            } finally {
+                tn3270.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testPlainTn3270RefusesTn3270EByDefault() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Tn3270 tn3270 = new Tn3270("127.0.0.1", server.getLocalPort());
+            tn3270.setSslEnabled(false);
+            assertFalse(tn3270.isTn3270eEnabled());
+            tn3270.connect();
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(5000);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+
+                out.write(bytes(IAC, TelnetCommand.DO, TN3270E));
+                out.flush();
+                expect(in, bytes(IAC, TelnetCommand.WONT, TN3270E));
+
+                // records carry no TN3270E header in either direction
+                out.write(bytes(0xF5, 0xC3, 0xC8, 0xC9, IAC, TelnetCommand.EOR));
+                out.flush();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!"HI".equals(tn3270.screen().getString(0).trim()) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals("HI", tn3270.screen().getString(0).trim());
+                assertFalse(tn3270.isTn3270e());
+
+                tn3270.screen().enter();
+                assertEquals(0x7D, in.read());
+                expect(in, bytes(IAC, TelnetCommand.EOR));
+            } finally {
+                tn3270.disconnect();
+            }
+        }
+    }
+
+    private static int[] append(int[] data, int value) {
+        int[] result = Arrays.copyOf(data, data.length + 1);
+        result[data.length] = value;
+        return result;
+    }
+
+    /**
+     * Reads until the last bytes read are {@code sequence}.
+     */
+    private static void expect(InputStream in, byte[] sequence) throws IOException {
+        byte[] window = new byte[sequence.length];
+        int count = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                fail("Stream ended before " + Arrays.toString(sequence));
+            }
+            System.arraycopy(window, 1, window, 0, window.length - 1);
+            window[window.length - 1] = (byte) b;
+            count++;
+            if (count >= window.length && Arrays.equals(window, sequence)) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] readToSe(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int previous = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (previous == IAC && b == TelnetCommand.SE) {
+                byte[] result = data.toByteArray();
+                return Arrays.copyOf(result, result.length - 1);
+            }
+            data.write(b);
+            previous = b;
+        }
+        throw new IOException("Stream ended inside a subnegotiation");
+    }
+}
@@ -0,0 +1,124 @@
+package org.me.telnet.tn3270;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.me.telnet.NioTelnetTransport;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Tn3270FailureTest {
+
+    private FakeTn3270Host host;
+
+    @Before
+    public void setUp() throws IOException {
+        host = new FakeTn3270Host(FakeTn3270Host.screen("READY"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        host.close();
+    }
+
+    private Tn3270 failingSession() {
+        Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+        session.setSslEnabled(false);
+        // stands in for any record the parser cannot apply
+        session.setTraceSink((type, code, address, value) -> {
+            throw new IllegalStateException("trace failed");
+        });
+        return session;
+    }
+
+    @Test
+    public void testReaderFailureDisconnectsSession() throws Exception {
+        Tn3270 session = failingSession();
+        session.connect();
+        try {
+            assertDisconnected(session);
+            assertTrue(session.getFailure().getCause() instanceof IllegalStateException);
+        } finally {
+            session.disconnect();
+        }
+    }
+
+    @Test
+    public void testTransportFailureDisconnectsSession() throws Exception {
+        try (NioTelnetTransport transport = new NioTelnetTransport(1)) {
+            Tn3270 session = failingSession();
+            session.connect(transport);
+            try {
+                assertDisconnected(session);
+                assertTrue(session.getFailure().getCause() instanceof IllegalStateException);
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWaitForReportsReaderFailure() throws Exception {
+        Tn3270 session = failingSession();
+        session.connect();
+        try {
+            session.waitFor(ScreenCondition.textAt(0, 1, "NEVER"), 30, TimeUnit.SECONDS);
+            fail("Expected the failure to end the wait");
+        } catch (IOException expected) {
+            assertNotNull(session.getFailure());
+            assertSame(session.getFailure(), expected.getCause());
+        } finally {
+            session.disconnect();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWaitForEndsOnDisconnect() throws Exception {
+        try (NioTelnetTransport transport = new NioTelnetTransport(1)) {
+            Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+            session.setSslEnabled(false);
+            session.connect(transport);
+            assertTrue(session.waitFor(ScreenCondition.textAt(0, 1, "READY"), 5, TimeUnit.SECONDS));
+
+            Thread closer = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                session.disconnect();
+            });
+            closer.start();
+            try {
+                session.waitFor(ScreenCondition.textAt(0, 1, "NEVER"), 30, TimeUnit.SECONDS);
+                fail("Expected the disconnect to end the wait");
+            } catch (IOException expected) {
+                assertNull(expected.getCause());
+            }
+            // the screen itself just stops waiting
+            assertFalse(session.screen().waitFor(ScreenCondition.textAt(0, 1, "NEVER"), 30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCleanDisconnectHasNoFailure() throws Exception {
+        Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+        session.setSslEnabled(false);
+        session.connect();
+        assertTrue(session.waitFor(ScreenCondition.textAt(0, 1, "READY"), 5, TimeUnit.SECONDS));
+        session.disconnect();
+        assertFalse(session.isConnected());
+        assertNull(session.getFailure());
+    }
+
+    private static void assertDisconnected(Tn3270 session) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (session.isConnected() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(session.isConnected());
+        assertNotNull(session.getFailure());
+    }
+}
@@ -0,0 +1,69 @@
+package org.me.telnet.tn3270;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Measures the time from sending ENTER to the host's reply being applied to the
+ * screen buffer, against a {@link FakeTn3270Host} on the loopback interface.
+ *
+ * Run with: java -cp target/classes:target/test-classes org.me.telnet.tn3270.Tn3270LatencyBenchmark [iterations]
+ */
+public class Tn3270LatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int warmup = Math.max(iterations / 4, 100);
+
+        PrintStream console = System.out;
+        // keep the parser's stdout tracing out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (FakeTn3270Host host = new FakeTn3270Host(FakeTn3270Host.screen("READY"))) {
+            Tn3270 tn3270 = new Tn3270("127.0.0.1", host.getPort());
+            tn3270.setSslEnabled(false);
+            tn3270.connect();
+
+            awaitRecord(tn3270, 0);
+
+            for (int i = 0; i < warmup; i++) {
+                roundTrip(tn3270);
+            }
+
+            long[] samples = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                samples[i] = roundTrip(tn3270);
+            }
+
+            tn3270.disconnect();
+
+            Arrays.sort(samples);
+            long total = 0;
+            for (long sample : samples) {
+                total += sample;
+            }
+            console.printf("screens: %d%n", iterations);
+            console.printf("mean:    %8.1f us%n", total / (double) iterations / 1000.0);
+            console.printf("p50:     %8.1f us%n", samples[iterations / 2] / 1000.0);
+            console.printf("p99:     %8.1f us%n", samples[(int) (iterations * 0.99)] / 1000.0);
+            console.printf("max:     %8.1f us%n", samples[iterations - 1] / 1000.0);
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static long roundTrip(Tn3270 tn3270) throws Exception {
+        long before = tn3270.getRecordCount();
+        long start = System.nanoTime();
+        tn3270.screen().enter();
+        awaitRecord(tn3270, before);
+        return System.nanoTime() - start;
+    }
+
+    private static void awaitRecord(Tn3270 tn3270, long before) {
+        while (tn3270.getRecordCount() == before) {
+            Thread.yield();  // leave the CPU to the reader thread on small machines
+        }
+    }
+}
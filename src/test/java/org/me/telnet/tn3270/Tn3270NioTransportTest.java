@@ -0,0 +1,39 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Test;
+import org.me.telnet.NioTelnetTransport;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Tn3270NioTransportTest {
+
+    private static final ScreenCondition READY =
+        ScreenCondition.keyboardUnlocked().and(ScreenCondition.textAt(0, 1, "READY"));
+
+    @Test
+    public void testSessionsRunOverSharedSelector() throws Exception {
+        try (FakeTn3270Host host = new FakeTn3270Host(FakeTn3270Host.screen("READY"));
+             NioTelnetTransport transport = new NioTelnetTransport(1)) {
+            Tn3270[] sessions = new Tn3270[3];
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = new Tn3270("127.0.0.1", host.getPort());
+                // the fake host speaks plain telnet
+                sessions[i].setSslEnabled(false);
+                sessions[i].connect(transport);
+            }
+
+            for (Tn3270 session : sessions) {
+                assertTrue(session.waitFor(READY, 5, TimeUnit.SECONDS));
+                session.screen().putString(1, 1, "X");
+                session.screen().enter();
+            }
+            for (Tn3270 session : sessions) {
+                // the host repaints with an Erase/Write, which blanks the input again
+                assertTrue(session.waitFor(ScreenCondition.textAt(1, 1, " "), 5, TimeUnit.SECONDS));
+                session.disconnect();
+                assertFalse(session.isConnected());
+            }
+        }
+    }
+}
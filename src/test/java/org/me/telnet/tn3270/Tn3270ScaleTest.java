@@ -0,0 +1,90 @@
+package org.me.telnet.tn3270;
+
+import org.junit.Assume;
+import org.junit.Test;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Holds many sessions open at once against a local host, each with its reader on a
+ * virtual thread. Runs with the java21 profile, which sets {@code tn3270.scaleSessions}.
+ * The host shares the JVM, so every session takes two file descriptors: 10k sessions need
+ * an open file limit above 20k.
+ */
+public class Tn3270ScaleTest {
+
+    private static final ScreenCondition READY =
+        ScreenCondition.keyboardUnlocked().and(ScreenCondition.textAt(0, 1, "READY"));
+
+    @Test
+    public void testConcurrentSessionsOnVirtualThreads() throws Exception {
+        int sessions = Integer.getInteger("tn3270.scaleSessions", 0);
+        Assume.assumeTrue("set tn3270.scaleSessions to run", sessions > 0);
+        Assume.assumeTrue("virtual threads need Java 21", VirtualThreads.isAvailable());
+
+        ThreadFactory threads = VirtualThreads.factory("scale-session-");
+        // Thread.activeCount leaves out virtual threads, the MXBean counts platform threads only
+        ThreadMXBean platformThreads = ManagementFactory.getThreadMXBean();
+        int platformBefore = platformThreads.getThreadCount();
+        try (FakeTn3270Host host = new FakeTn3270Host(FakeTn3270Host.screen("READY"), VirtualThreads.factory("fake-tn3270-"))) {
+            CountDownLatch connected = new CountDownLatch(sessions);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(sessions);
+            AtomicInteger completed = new AtomicInteger();
+            ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+            List<Thread> clients = new ArrayList<>(sessions);
+            for (int i = 0; i < sessions; i++) {
+                clients.add(threads.newThread(() -> {
+                    Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+                    try {
+                        session.setVirtualThreads(true);
+                        session.setSslEnabled(false);
+                        session.connect();
+                        assertTrue(session.waitFor(READY, 60, TimeUnit.SECONDS));
+                        connected.countDown();
+
+                        // every session stays connected until all of them are
+                        assertTrue(release.await(120, TimeUnit.SECONDS));
+                        Screen screen = session.screen();
+                        screen.putString(1, 1, "X");
+                        screen.enter();
+                        // the host answers with an Erase/Write that blanks the input
+                        assertTrue(session.waitFor(ScreenCondition.textAt(1, 1, " "), 60, TimeUnit.SECONDS));
+                        completed.incrementAndGet();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                        connected.countDown();
+                    } finally {
+                        session.disconnect();
+                        finished.countDown();
+                    }
+                }));
+            }
+            clients.forEach(Thread::start);
+
+            assertTrue(connected.await(120, TimeUnit.SECONDS));
+            // the readers are not platform threads, only carriers and pollers were added
+            String readerName = "tn3270-reader-127.0.0.1:" + host.getPort();
+            for (ThreadInfo info : platformThreads.getThreadInfo(platformThreads.getAllThreadIds())) {
+                assertFalse(info != null && info.getThreadName().startsWith(readerName));
+            }
+            int added = platformThreads.getThreadCount() - platformBefore;
+            assertTrue("platform threads added: " + added, added < Runtime.getRuntime().availableProcessors() + 32);
+            release.countDown();
+            assertTrue(finished.await(120, TimeUnit.SECONDS));
+
+            assertEquals("first failure: " + failures.peek(), sessions, completed.get());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.me.telnet.tn3270;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class Tn3270SessionPoolTest {
+
+    private static final ScreenCondition HOME = ScreenCondition.textAt(0, 1, "READY");
+
+    private FakeTn3270Host host;
+    private AtomicInteger logons;
+    private Tn3270SessionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        host = new FakeTn3270Host(FakeTn3270Host.screen("READY"));
+        logons = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pool != null) {
+            pool.close();
+        }
+        host.close();
+    }
+
+    private Tn3270SessionPool newPool(int maxSessions) {
+        pool = new Tn3270SessionPool(() -> {
+            Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+            session.setSslEnabled(false);
+            session.connect();
+            if (!session.waitFor(ScreenCondition.keyboardUnlocked().and(HOME), 5, TimeUnit.SECONDS)) {
+                session.disconnect();
+                throw new IOException("Home screen not shown");
+            }
+            logons.incrementAndGet();
+            return session;
+        }, maxSessions);
+        pool.setValidation(ScreenCondition.keyboardUnlocked().and(HOME));
+        return pool;
+    }
+
+    @Test
+    public void testReleasedSessionIsReused() throws Exception {
+        newPool(2);
+        pool.setMinIdle(1);
+        pool.start(1, TimeUnit.HOURS);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, logons.get());
+
+        Tn3270 first = pool.borrow(1, TimeUnit.SECONDS);
+        assertTrue(first.isConnected());
+        assertEquals(1, pool.getBorrowedCount());
+        pool.release(first);
+
+        assertSame(first, pool.borrow(1, TimeUnit.SECONDS));
+        assertEquals(1, logons.get());
+    }
+
+    @Test
+    public void testBorrowWaitsForReleaseWhenFull() throws Exception {
+        newPool(1);
+        Tn3270 session = pool.borrow(5, TimeUnit.SECONDS);
+
+        try {
+            pool.borrow(20, TimeUnit.MILLISECONDS);
+            fail("Expected a timeout while the only session is borrowed");
+        } catch (TimeoutException expected) {
+        }
+
+        CompletableFuture<Tn3270> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        pool.release(session);
+
+        assertSame(session, waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, logons.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testReleaseDoesNotHoldThePoolWhileValidating() throws Exception {
+        newPool(2);
+        Tn3270 first = pool.borrow(5, TimeUnit.SECONDS);
+
+        // the screen is mid-repaint on another thread
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch repainted = new CountDownLatch(1);
+        Thread repaint = new Thread(() -> {
+            first.screen().getBuffer().recordLock().lock();
+            try {
+                locked.countDown();
+                repainted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                first.screen().getBuffer().recordLock().unlock();
+            }
+        });
+        repaint.start();
+        locked.await();
+
+        CompletableFuture<Void> release = CompletableFuture.runAsync(() -> pool.release(first));
+        Thread.sleep(50);
+        assertFalse(release.isDone());
+
+        // the rest of the pool carries on while the release waits for the screen
+        assertEquals(0, pool.getIdleCount());
+        Tn3270 second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertNotSame(first, second);
+
+        repainted.countDown();
+        release.get(5, TimeUnit.SECONDS);
+        repaint.join();
+        assertEquals(1, pool.getIdleCount());
+        pool.release(second);
+    }
+
+    @Test
+    public void testInvalidatedAndExpiredSessionsAreReplaced() throws Exception {
+        newPool(1);
+        Tn3270 first = pool.borrow(5, TimeUnit.SECONDS);
+        pool.invalidate(first);
+        assertFalse(first.isConnected());
+        assertEquals(0, pool.getSessionCount());
+
+        Tn3270 second = pool.borrow(5, TimeUnit.SECONDS);
+        assertNotSame(first, second);
+
+        // past its lifetime, a released session is closed rather than kept
+        pool.setMaxLifetime(0, TimeUnit.NANOSECONDS);
+        pool.release(second);
+        assertFalse(second.isConnected());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, logons.get());
+    }
+
+    @Test
+    public void testSweepSurvivesFactoryRuntimeException() throws Exception {
+        AtomicInteger failures = new AtomicInteger(1);
+        pool = new Tn3270SessionPool(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("factory failed");
+            }
+            Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+            session.setSslEnabled(false);
+            session.connect();
+            return session;
+        }, 1);
+        pool.start(20, TimeUnit.MILLISECONDS);
+        pool.setMinIdle(1);
+
+        // the first sweep fails, a later one still tops the pool up
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getIdleCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(failures.get() < 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseDuringFillDisconnectsNewSession() throws Exception {
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        Tn3270[] created = new Tn3270[1];
+        pool = new Tn3270SessionPool(() -> {
+            creating.countDown();
+            proceed.await();
+            Tn3270 session = new Tn3270("127.0.0.1", host.getPort());
+            session.setSslEnabled(false);
+            session.connect();
+            created[0] = session;
+            return session;
+        }, 1);
+        pool.setMinIdle(1);
+        CompletableFuture<Void> start = CompletableFuture.runAsync(() -> {
+            try {
+                pool.start(1, TimeUnit.HOURS);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // the factory is still logging on when the pool closes
+        creating.await();
+        pool.close();
+        proceed.countDown();
+        start.get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getSessionCount());
+        assertFalse(created[0].isConnected());
+    }
+
+    @Test
+    public void testSweepEvictsIdleSessionsAndRefills() throws Exception {
+        newPool(3);
+        pool.setMinIdle(2);
+        pool.start(1, TimeUnit.HOURS);
+        assertEquals(2, pool.getIdleCount());
+
+        // nothing has been idle long enough yet
+        pool.sweep();
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(2, logons.get());
+
+        pool.setMaxIdle(0, TimeUnit.NANOSECONDS);
+        pool.sweep();
+        // evicted and logged on again
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(4, logons.get());
+    }
+}